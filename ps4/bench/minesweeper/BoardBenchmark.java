@@ -0,0 +1,226 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH microbenchmarks of the operations of Board that a MinesweeperServer runs for its
+ * players: making boards, digging, flagging and deflagging squares, and rendering boards,
+ * alone and from several threads at once. Each is run for square boards of every size and
+ * bomb density in the parameters.
+ * <p>
+ * This source root is built apart from src, with src's classes, jmh-core and
+ * jmh-generator-annprocess on the class path, and JUnit for the tests of the load generator
+ * beside it in minesweeper.server. The benchmarks are run with e.g.
+ * <pre>
+ *   java -cp ... minesweeper.BoardBenchmark [REGEXP]
+ * </pre>
+ * or through org.openjdk.jmh.Main for all of JMH's options.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BoardBenchmark {
+
+	private static final long SEED = 6005;
+
+    /**
+     * Square boards of each size and bomb density, with the tile size of their locks.
+     */
+	@State(Scope.Benchmark)
+	public static class Boards {
+
+		@Param({"100", "1000"})
+		public int size;
+
+		@Param({"0.05", "0.25"})
+		public double density;
+
+		@Param({"2147483647", "32"})
+		public int tileSize;
+
+		/** An untouched board, for benchmarks that leave it untouched. */
+		public Board untouched;
+
+		/** A board file of the size and density. */
+		public File file;
+
+		@Setup(Level.Trial)
+		public void makeBoards() throws IOException {
+			untouched = new Board(size, size, tileSize, SEED, density);
+			file = File.createTempFile("board", ".txt");
+			file.deleteOnExit();
+			SplittableRandom random = new SplittableRandom(SEED);
+			try (PrintWriter out = new PrintWriter(file)) {
+				out.print(size + " " + size + "\n");
+				for (int row = 0; row < size; row++) {
+					StringBuilder line = new StringBuilder();
+					for (int col = 0; col < size; col++) {
+						line.append(col == 0 ? "" : " ").append(random.nextDouble() < density ? '1' : '0');
+					}
+					out.print(line.append('\n'));
+				}
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteFile() {
+			file.delete();
+		}
+	}
+
+    /**
+     * A new untouched board for every call of a benchmark, for moves whose cost depends on
+     * the board being cold.
+     */
+	@State(Scope.Thread)
+	public static class ColdBoard {
+
+		public Board board;
+		public int row;
+		public int col;
+
+		@Setup(Level.Invocation)
+		public void makeBoard(Boards boards) {
+			board = new Board(boards.size, boards.size, boards.tileSize, SEED, boards.density);
+			row = ThreadLocalRandom.current().nextInt(boards.size);
+			col = ThreadLocalRandom.current().nextInt(boards.size);
+		}
+	}
+
+    /**
+     * A new board without bombs for every call of a benchmark, so that digging any square
+     * reveals all of it in one cascade.
+     */
+	@State(Scope.Thread)
+	public static class CascadeBoard {
+
+		public Board board;
+
+		@Setup(Level.Invocation)
+		public void makeBoard(Boards boards) {
+			board = new Board(boards.size, boards.size, boards.tileSize, SEED, 0);
+		}
+	}
+
+    /**
+     * A board shared by the threads of a benchmark, made anew for every iteration, so that
+     * the threads dig it from untouched to mostly dug, as players do.
+     */
+	@State(Scope.Benchmark)
+	public static class SharedBoard {
+
+		public Board board;
+
+		@Setup(Level.Iteration)
+		public void makeBoard(Boards boards) {
+			board = new Board(boards.size, boards.size, boards.tileSize, SEED, boards.density);
+		}
+	}
+
+	@Benchmark
+	public Board constructRandom(Boards boards) {
+		return new Board(boards.size, boards.size, boards.tileSize, SEED, boards.density);
+	}
+
+	@Benchmark
+	public Board constructFromFile(Boards boards) throws IOException {
+		return new Board(boards.file, boards.tileSize);
+	}
+
+	@Benchmark
+	public boolean digCold(ColdBoard cold) {
+		return cold.board.dig(cold.row, cold.col, null);
+	}
+
+	@Benchmark
+	public boolean digCascade(CascadeBoard cascade) {
+		return cascade.board.dig(0, 0, null);
+	}
+
+	@Benchmark
+	public Board flagDeflag(Boards boards) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int row = random.nextInt(boards.size);
+		int col = random.nextInt(boards.size);
+		boards.untouched.flag(row, col, null);
+		boards.untouched.deflag(row, col, null);
+		return boards.untouched;
+	}
+
+	@Benchmark
+	public String render(Boards boards) {
+		return boards.untouched.toString();
+	}
+
+	@Benchmark
+	public String renderAfterMove(Boards boards) {
+		int row = ThreadLocalRandom.current().nextInt(boards.size);
+		boards.untouched.flag(row, 0, null);
+		boards.untouched.deflag(row, 0, null);
+		return boards.untouched.toString();
+	}
+
+	@Benchmark
+	public String lookRegionAfterMove(Boards boards) {
+		int row = ThreadLocalRandom.current().nextInt(boards.size - 24);
+		boards.untouched.flag(row, 0, null);
+		boards.untouched.deflag(row, 0, null);
+		return boards.untouched.look(row, 0, 24, 80);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean digContended(Boards boards, SharedBoard shared) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return shared.board.dig(random.nextInt(boards.size), random.nextInt(boards.size), null);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Board flagDeflagContended(Boards boards, SharedBoard shared) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int row = random.nextInt(boards.size);
+		int col = random.nextInt(boards.size);
+		shared.board.flag(row, col, null);
+		shared.board.deflag(row, col, null);
+		return shared.board;
+	}
+
+    /**
+     * Run the benchmarks of this class.
+     * @param args a regular expression selecting the benchmarks to run, by default all
+     * @throws RunnerException if a benchmark fails
+     */
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : BoardBenchmark.class.getSimpleName();
+		new Runner(new OptionsBuilder().include(include).build()).run();
+	}
+}
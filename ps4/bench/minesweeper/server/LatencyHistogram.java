@@ -0,0 +1,131 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * A mutable data type representing a histogram of latencies in nanoseconds. Latencies are
+ * counted in buckets at most 1/32 as wide as the latencies they hold, so that any percentile
+ * is reported to within about 3% of its true value, in a fixed space of 15 KiB whatever the
+ * number and range of latencies recorded.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long total = 0;
+    private long max = 0;
+
+    // Abstraction function
+    //      represent the multiset of latencies recorded, total in all, the greatest being max,
+    //      of which counts[i] lie in bucket i, whose greatest value is highestValue(i).
+    //      Latencies below SUB_BUCKETS have a bucket each; above, each power of two is split
+    //      into SUB_BUCKETS buckets of equal width.
+    // Rep invariant
+    //      every counts[i] >= 0, total == sum of counts, 0 <= max <= highestValue of the last
+    //      nonzero bucket, and max == 0 if total == 0
+    // Rep exposure
+    //      all fields are private, and counts is never returned.
+    // Thread safety
+    //      not threadsafe: a histogram is confined to the thread recording into it, until
+    //      that thread is joined and the histogram merged into another by add.
+
+    /**
+     * Make an empty histogram.
+     */
+    LatencyHistogram() {
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert total >= 0;
+        assert max >= 0;
+        assert total > 0 || max == 0;
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos latency in nanoseconds, requires nanos >= 0
+     */
+    void record(long nanos) {
+        counts[index(nanos)]++;
+        total++;
+        max = Math.max(max, nanos);
+        checkRep();
+    }
+
+    /**
+     * Record every latency of another histogram.
+     *
+     * @param that histogram to add to this one; not modified
+     */
+    void add(LatencyHistogram that) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += that.counts[i];
+        }
+        total += that.total;
+        max = Math.max(max, that.max);
+        checkRep();
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    long count() {
+        return total;
+    }
+
+    /**
+     * @return greatest latency recorded in nanoseconds, or 0 if none was recorded
+     */
+    long max() {
+        return max;
+    }
+
+    /**
+     * Return a percentile of the latencies recorded.
+     *
+     * @param fraction fraction of the latencies to cover, requires 0 < fraction <= 1
+     * @return a latency in nanoseconds no less than the fraction of recorded latencies, and
+     *         at most 1/32 greater than the least such recorded latency; 0 if none was recorded
+     */
+    long percentile(double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param value latency, requires value >= 0
+     * @return index of the bucket holding value
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @param index index of a bucket
+     * @return greatest value held by the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
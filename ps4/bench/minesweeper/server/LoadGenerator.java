@@ -0,0 +1,501 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load generator for MinesweeperServer. Simulated players connect to a server, each on its
+ * own thread, and send commands drawn from a weighted mix, each waiting for the reply to one
+ * command before sending the next. The throughput and latency percentiles of the commands are
+ * reported, so that server engines and board options can be compared under the same load.
+ * <p>
+ * Like the benchmarks of this source root, it is built apart from src, with src's classes on
+ * the class path, so that the server does not ship it.
+ */
+public class LoadGenerator {
+
+    /** The commands sent by simulated players. */
+    enum Command {
+        LOOK, DIG, FLAG, DEFLAG
+    }
+
+    private static final Pattern HELLO = Pattern.compile("Board: (\\d+) columns by (\\d+) rows");
+    private static final int MAX_CONNECTION_ATTEMPTS = 50;
+
+    private final String host;
+    private final int port;
+    private final int players;
+    private final long warmupNanos;
+    private final long measureNanos;
+    private final Map<Command, Integer> mix;
+    private final long seed;
+    private volatile long startNanos;
+
+    // Abstraction function
+    //      represent a load of players simulated players on the server at host:port, each
+    //      sending the commands of mix with probability proportional to their weights, on
+    //      squares drawn at random from a generator seeded by seed and the player's number.
+    //      The players start together at startNanos, and the latencies of the commands they
+    //      send from warmupNanos after the start until measureNanos later are measured.
+    // Rep invariant
+    //      players > 0, warmupNanos >= 0, measureNanos > 0
+    //      mix has a nonnegative weight for each Command, and the weights add up to a
+    //      positive int
+    // Rep exposure
+    //      all fields are private; mix is copied by the constructor and never returned.
+    // Thread safety
+    //      all fields but startNanos are final and immutable or never modified. startNanos is
+    //      written by the thread calling run before it releases the players, and read by them
+    //      after, through a CountDownLatch.
+
+    /**
+     * Make a load generator.
+     *
+     * @param host host of the server
+     * @param port port the server listens on
+     * @param players number of simulated players, requires players > 0
+     * @param warmupMillis milliseconds commands are sent before they are measured, requires
+     *                     warmupMillis >= 0
+     * @param measureMillis milliseconds commands are measured, requires measureMillis > 0
+     * @param mix weight of each command in the mix, requires a nonnegative weight for each
+     *            command, adding up to a positive int
+     * @param seed seed of the squares the players choose
+     */
+    LoadGenerator(String host, int port, int players, long warmupMillis, long measureMillis,
+            Map<Command, Integer> mix, long seed) {
+        this.host = host;
+        this.port = port;
+        this.players = players;
+        this.warmupNanos = warmupMillis * 1_000_000;
+        this.measureNanos = measureMillis * 1_000_000;
+        this.mix = new EnumMap<>(mix);
+        this.seed = seed;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert players > 0;
+        assert warmupNanos >= 0;
+        assert measureNanos > 0;
+        assert mix.keySet().containsAll(Arrays.asList(Command.values()));
+        assert mix.values().stream().allMatch(weight -> weight >= 0);
+        long total = mix.values().stream().mapToLong(weight -> weight).sum();
+        assert 0 < total && total <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Connect the players, run the load and disconnect them.
+     *
+     * @return latencies of the commands measured, by command
+     * @throws IOException if a player cannot connect, or its connection fails
+     * @throws InterruptedException if interrupted while waiting for the players
+     */
+    Map<Command, LatencyHistogram> run() throws IOException, InterruptedException {
+        ExecutorService threads = Executors.newFixedThreadPool(players, runnable -> {
+            Thread thread = new Thread(runnable, "simulated player");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CountDownLatch connected = new CountDownLatch(players);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<Map<Command, LatencyHistogram>>> results = new ArrayList<>();
+        for (int player = 0; player < players; player++) {
+            int number = player;
+            results.add(threads.submit(() -> play(number, connected, go)));
+        }
+        try {
+            while ( ! connected.await(100, TimeUnit.MILLISECONDS)) {
+                for (Future<Map<Command, LatencyHistogram>> result : results) {
+                    if (result.isDone()) {
+                        result.get(); // throws if the player failed to connect
+                    }
+                }
+            }
+            startNanos = System.nanoTime();
+            go.countDown();
+            Map<Command, LatencyHistogram> latencies = newHistograms();
+            for (Future<Map<Command, LatencyHistogram>> result : results) {
+                for (Map.Entry<Command, LatencyHistogram> entry : result.get().entrySet()) {
+                    latencies.get(entry.getKey()).add(entry.getValue());
+                }
+            }
+            return latencies;
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Play as one simulated player until the measured time is over. Called by the thread of
+     * the player.
+     *
+     * @param player number of the player
+     * @param connected counted down once the player is connected
+     * @param go counted down once every player is connected and startNanos is set
+     * @return latencies of the commands measured, by command
+     * @throws IOException if the player cannot connect, or its connection fails
+     * @throws InterruptedException if interrupted while waiting for the other players
+     */
+    private Map<Command, LatencyHistogram> play(int player, CountDownLatch connected, CountDownLatch go)
+            throws IOException, InterruptedException {
+        Map<Command, LatencyHistogram> latencies = newHistograms();
+        SplittableRandom random = new SplittableRandom(seed * 31 + player);
+        int totalWeight = 0;
+        for (int weight : mix.values()) {
+            totalWeight += weight;
+        }
+        try (Socket socket = connect()) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            Matcher hello = HELLO.matcher(readMessage(in));
+            if ( ! hello.find()) {
+                throw new IOException("expected HELLO message");
+            }
+            int columns = Integer.parseInt(hello.group(1));
+            int rows = Integer.parseInt(hello.group(2));
+            out.println("delta");
+            readMessage(in);
+            connected.countDown();
+            go.await();
+
+            long measureStart = startNanos + warmupNanos;
+            long end = measureStart + measureNanos;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                Command command = choose(random.nextInt(totalWeight));
+                int x = random.nextInt(columns);
+                int y = random.nextInt(rows);
+                if (command == Command.LOOK) {
+                    out.println("look");
+                    readMessage(in);
+                    for (int row = 1; row < rows; row++) {
+                        readLine(in);
+                    }
+                } else {
+                    out.println(command.name().toLowerCase(Locale.ROOT) + " " + x + " " + y);
+                    String header = readMessage(in);
+                    if (header.equals("BOOM!")) {
+                        header = readLine(in);
+                    }
+                    int changes = Integer.parseInt(header.substring("DELTA ".length()));
+                    for (int change = 0; change < changes; change++) {
+                        readLine(in);
+                    }
+                }
+                if (now >= measureStart) {
+                    latencies.get(command).record(System.nanoTime() - now);
+                }
+            }
+            out.println("bye");
+        }
+        return latencies;
+    }
+
+    /**
+     * @param draw a number drawn uniformly from 0 to the sum of the weights of mix, exclusive
+     * @return the command of mix that draw falls on
+     */
+    private Command choose(int draw) {
+        for (Command command : Command.values()) {
+            draw -= mix.get(command);
+            if (draw < 0) {
+                return command;
+            }
+        }
+        throw new AssertionError("draw beyond the weights of the mix");
+    }
+
+    /**
+     * Connect to the server, retrying while it is starting.
+     *
+     * @return socket connected to the server
+     * @throws IOException if the server cannot be connected to
+     */
+    private Socket connect() throws IOException {
+        for (int attempts = 1; ; attempts++) {
+            try {
+                return new Socket(host, port);
+            } catch (IOException ioe) {
+                if (attempts >= MAX_CONNECTION_ATTEMPTS) {
+                    throw ioe;
+                }
+                try {
+                    Thread.sleep(attempts * 10);
+                } catch (InterruptedException ie) {
+                    throw new IOException("interrupted while connecting", ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the first line of a reply, skipping the WIN messages sent to the player outside of
+     * replies.
+     *
+     * @param in input from the server
+     * @return the first line of the next reply
+     * @throws IOException if the connection fails or is closed
+     */
+    private static String readMessage(BufferedReader in) throws IOException {
+        String line;
+        do {
+            line = readLine(in);
+        } while (line.startsWith("WIN!"));
+        return line;
+    }
+
+    /**
+     * @param in input from the server
+     * @return the next line of input
+     * @throws IOException if the connection fails or is closed
+     */
+    private static String readLine(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new IOException("connection closed by the server");
+        }
+        return line;
+    }
+
+    /**
+     * @return a new empty histogram for each command
+     */
+    private static Map<Command, LatencyHistogram> newHistograms() {
+        Map<Command, LatencyHistogram> histograms = new EnumMap<>(Command.class);
+        for (Command command : Command.values()) {
+            histograms.put(command, new LatencyHistogram());
+        }
+        return histograms;
+    }
+
+    /**
+     * Print the throughput and latency percentiles of each command and of all commands.
+     *
+     * @param latencies latencies measured by run, by command
+     * @param measureMillis milliseconds the commands were measured
+     * @param report stream to print to
+     */
+    static void report(Map<Command, LatencyHistogram> latencies, long measureMillis, PrintStream report) {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram histogram : latencies.values()) {
+            all.add(histogram);
+        }
+        report.printf(Locale.ROOT, "%d commands in %.1f s: %.0f commands/s%n",
+                all.count(), measureMillis / 1000.0, all.count() * 1000.0 / measureMillis);
+        report.printf(Locale.ROOT, "%-8s %10s %10s %10s %10s %10s%n",
+                "command", "count", "p50 us", "p99 us", "p999 us", "max us");
+        for (Map.Entry<Command, LatencyHistogram> entry : latencies.entrySet()) {
+            if (entry.getValue().count() > 0) {
+                reportLine(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue(), report);
+            }
+        }
+        reportLine("all", all, report);
+    }
+
+    /**
+     * Print the count and latency percentiles of a histogram on one line.
+     */
+    private static void reportLine(String name, LatencyHistogram histogram, PrintStream report) {
+        report.printf(Locale.ROOT, "%-8s %10d %10.1f %10.1f %10.1f %10.1f%n", name, histogram.count(),
+                histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0,
+                histogram.percentile(0.999) / 1000.0, histogram.max() / 1000.0);
+    }
+
+    /**
+     * Run a load on a MinesweeperServer and report its throughput and latencies.
+     *
+     * <br> Usage:
+     *      LoadGenerator [--players N] [--warmup SECONDS] [--seconds SECONDS] [--mix MIX] [--seed SEED]
+     *                    [--connect HOST:PORT | -- SERVER_ARGUMENTS]
+     *
+     * <br> N is the number of simulated players, by default 16. The commands sent during the first
+     *      SECONDS of --warmup, by default 2, are not measured; the commands sent during the next
+     *      SECONDS of --seconds, by default 10, are.
+     * <br> MIX gives the weight of each command as comma-separated COMMAND:WEIGHT pairs, where COMMAND
+     *      is look, dig, flag or deflag and WEIGHT a nonnegative integer; commands not given have weight
+     *      0. By default, MIX is "look:1,dig:4,flag:2,deflag:1". Players dig, flag and deflag in delta
+     *      mode, on squares chosen uniformly at random by a generator seeded by SEED, by default 0.
+     * <br> With --connect, the players connect to a server already running at HOST:PORT. Otherwise a
+     *      MinesweeperServer is started in this process on a free port, in debug mode, with the
+     *      SERVER_ARGUMENTS that follow "--", as specified by MinesweeperServer.main.
+     * <br> E.g. "LoadGenerator --players 64 -- --size 1000,1000 --nio --tile 64" measures 64 players
+     *      on a 1000*1000 board locked in 64*64 tiles and served by a selector.
+     *
+     * @param args arguments as described
+     */
+    public static void main(String[] args) {
+        int players = 16;
+        long warmupSeconds = 2;
+        long seconds = 10;
+        Map<Command, Integer> mix = parseMix("look:1,dig:4,flag:2,deflag:1");
+        long seed = 0;
+        String host = null;
+        int port = -1;
+        List<String> serverArguments = new ArrayList<>();
+
+        Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        try {
+            while ( ! arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--players")) {
+                        players = Integer.parseInt(arguments.remove());
+                        if (players <= 0) {
+                            throw new IllegalArgumentException("players " + players + " must be positive");
+                        }
+                    } else if (flag.equals("--warmup")) {
+                        warmupSeconds = Long.parseLong(arguments.remove());
+                        if (warmupSeconds < 0 || warmupSeconds > Long.MAX_VALUE / 1_000_000_000) {
+                            throw new IllegalArgumentException("warmup " + warmupSeconds + " out of range");
+                        }
+                    } else if (flag.equals("--seconds")) {
+                        seconds = Long.parseLong(arguments.remove());
+                        if (seconds <= 0 || seconds > Long.MAX_VALUE / 1_000_000_000) {
+                            throw new IllegalArgumentException("seconds " + seconds + " out of range");
+                        }
+                    } else if (flag.equals("--mix")) {
+                        mix = parseMix(arguments.remove());
+                    } else if (flag.equals("--seed")) {
+                        seed = Long.parseLong(arguments.remove());
+                    } else if (flag.equals("--connect")) {
+                        String address = arguments.remove();
+                        int colon = address.lastIndexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("expected HOST:PORT for --connect");
+                        }
+                        host = address.substring(0, colon);
+                        port = Integer.parseInt(address.substring(colon + 1));
+                    } else if (flag.equals("--")) {
+                        serverArguments.addAll(arguments);
+                        arguments.clear();
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+            if (host != null && ! serverArguments.isEmpty()) {
+                throw new IllegalArgumentException("--connect takes no server arguments");
+            }
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: LoadGenerator [--players N] [--warmup SECONDS] [--seconds SECONDS] [--mix MIX]"
+                    + " [--seed SEED] [--connect HOST:PORT | -- SERVER_ARGUMENTS]");
+            return;
+        }
+
+        try {
+            boolean inProcess = host == null;
+            if (inProcess) {
+                host = "127.0.0.1";
+                port = startServer(serverArguments);
+            }
+            LoadGenerator generator = new LoadGenerator(host, port, players, warmupSeconds * 1000,
+                    seconds * 1000, mix, seed);
+            report(generator.run(), seconds * 1000, System.out);
+            if (inProcess) {
+                System.exit(0); // the worker threads of the server are not daemons
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parse a command mix.
+     *
+     * @param text comma-separated COMMAND:WEIGHT pairs, as specified by main
+     * @return the weight of each command
+     * @throws IllegalArgumentException if text is not a valid mix
+     */
+    static Map<Command, Integer> parseMix(String text) {
+        Map<Command, Integer> mix = new EnumMap<>(Command.class);
+        for (Command command : Command.values()) {
+            mix.put(command, 0);
+        }
+        for (String pair : text.split(",")) {
+            String[] parts = pair.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("expected COMMAND:WEIGHT in mix: \"" + pair + "\"");
+            }
+            Command command;
+            int weight;
+            try {
+                command = Command.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+                weight = Integer.parseInt(parts[1].trim());
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("unknown command or weight in mix: \"" + pair + "\"");
+            }
+            if (weight < 0) {
+                throw new IllegalArgumentException("weight " + weight + " must be nonnegative");
+            }
+            mix.put(command, weight);
+        }
+        long total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        if (total <= 0 || total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("weights of mix must add up to a positive int");
+        }
+        return mix;
+    }
+
+    /**
+     * Start a MinesweeperServer in debug mode on a free port, on a daemon thread of this
+     * process.
+     *
+     * @param serverArguments arguments of MinesweeperServer.main, other than the port and debug mode
+     * @return the port the server listens on, once it is started
+     * @throws IOException if no free port is found
+     */
+    static int startServer(List<String> serverArguments) throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<String> args = new ArrayList<>(serverArguments);
+        args.addAll(Arrays.asList("--port", Integer.toString(port), "--debug"));
+        Thread server = new Thread(() -> MinesweeperServer.main(args.toArray(new String[0])), "MinesweeperServer");
+        server.setDaemon(true);
+        server.start();
+        return port;
+    }
+}
@@ -0,0 +1,90 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Test for LoadGenerator and LatencyHistogram
+ */
+public class LoadGeneratorTest {
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    // Testing strategy:
+    //      latency histogram: percentiles below and above 32 ns, at the extremes, merged
+    //      command mixes: valid, missing and zero weights, unknown commands, malformed pairs
+    //      a short load on a server started in this process, its report
+
+    @Test
+    public void latencyHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.5));
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(1000, histogram.max());
+        assertEquals("exact below 32", 10, new LatencyHistogram() {{ record(10); }}.percentile(0.99));
+        for (double fraction : new double[] { 0.001, 0.5, 0.99, 0.999 }) {
+            long exact = (long) Math.ceil(fraction * 1000);
+            long reported = histogram.percentile(fraction);
+            assertTrue(fraction + ": " + reported, exact <= reported && reported <= exact + exact / 32);
+        }
+        assertEquals(1000, histogram.percentile(1));
+        
+        LatencyHistogram large = new LatencyHistogram();
+        large.record(Long.MAX_VALUE);
+        large.record(0);
+        histogram.add(large);
+        assertEquals(1002, histogram.count());
+        assertEquals(Long.MAX_VALUE, histogram.max());
+        assertEquals(Long.MAX_VALUE, histogram.percentile(1));
+        assertEquals(0, histogram.percentile(0.0001));
+    }
+    
+    @Test
+    public void parseMixTest() {
+        Map<LoadGenerator.Command, Integer> mix = LoadGenerator.parseMix("look:1, dig:2,flag:1");
+        assertEquals(Integer.valueOf(0), mix.get(LoadGenerator.Command.DEFLAG));
+        assertEquals(Integer.valueOf(2), mix.get(LoadGenerator.Command.DIG));
+        for (String invalid : new String[] { "look", "look:-1", "look:0", "peek:1", "look:1:2" }) {
+            try {
+                LoadGenerator.parseMix(invalid);
+                fail("expected invalid mix: " + invalid);
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void loadGeneratorTest() throws IOException, InterruptedException {
+        int port = LoadGenerator.startServer(Arrays.asList("--size", "5,5"));
+        Map<LoadGenerator.Command, Integer> mix = LoadGenerator.parseMix("look:1,dig:2,flag:1");
+        
+        LoadGenerator generator = new LoadGenerator(LOCALHOST, port, 4, 0, 300, mix, 42);
+        Map<LoadGenerator.Command, LatencyHistogram> latencies = generator.run();
+        assertTrue(latencies.get(LoadGenerator.Command.LOOK).count() > 0);
+        assertTrue(latencies.get(LoadGenerator.Command.DIG).count() > 0);
+        assertTrue(latencies.get(LoadGenerator.Command.FLAG).count() > 0);
+        assertEquals("not in the mix", 0, latencies.get(LoadGenerator.Command.DEFLAG).count());
+        
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        LoadGenerator.report(latencies, 300, new PrintStream(report, true));
+        String[] lines = report.toString().split("\\R");
+        assertEquals("header, look, dig, flag, all", 6, lines.length);
+        assertTrue(lines[0], lines[0].matches("\\d+ commands in 0\\.3 s: \\d+ commands/s"));
+        assertTrue(lines[5], lines[5].startsWith("all "));
+    }
+}
@@ -3,14 +3,19 @@
  */
 package minesweeper;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.nio.charset.StandardCharsets;
 import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 
 
@@ -19,136 +24,623 @@ import java.io.IOException;
  */
 public class Board {
 	
-	private final List<List<Square>> board = Collections.synchronizedList(new ArrayList<>());
+	/** Probability of a bomb in each square of a random board, unless given. */
+	public static final double DEFAULT_DENSITY = 0.25;
+	/** Number of squares from which a random board is generated in parallel. */
+	private static final long PARALLEL_SQUARES = 1 << 20;
+	/** One move in this many is validated at level SAMPLED. */
+	private static final int SAMPLE_PERIOD = 64;
+	
+    /**
+     * Levels of validation of the rep invariant of a board, checked after each move on the
+     * squares the move touched, while the move still holds them. A move that finds the
+     * invariant violated throws AssertionError, whether or not assertions are enabled.
+     */
+	public enum Validation {
+		/** No validation, beyond the constant-time assertions enabled by -ea. */
+		OFF,
+		/** Validation of one move in 64, picked at random. */
+		SAMPLED,
+		/** Validation of every move. */
+		FULL
+	}
+	
+    /**
+     * States of the game played on a board.
+     */
+	public enum Status {
+		/** Some square without a bomb is not dug yet. */
+		PLAYING,
+		/** Every square without a bomb is dug. */
+		WON
+	}
+	
+	private final Grid board;
+	private final TileLocks locks;
 	private final int ROW;
 	private final int COL;
+	private final AtomicLong moves;
+	private final AtomicLong version = new AtomicLong();
+	private volatile View view = null;
+	private boolean batching = false;
+	private final AtomicInteger safeLeft;
+	private final AtomicInteger flagged;
+	private volatile MoveLog moveLog = null;
+	private volatile ChangeListener changeListener = null;
+	private volatile Validation validation = Validation.OFF;
+	private volatile BoardStats stats = null;
     
     // Abstraction function
-	//     represent a minesweeper board
+	//     represent a minesweeper board on which moves digs, flags and deflags of squares
+	//     have been made, each reported to moveLog unless it is null. safeLeft squares without
+	//     a bomb are not dug yet, and flagged squares are flagged. The locking of every move
+	//     and look, and the squares dug by every dig, are recorded to stats unless it is null.
+	//     version moves have changed a square; view, unless null, is the string representation
+	//     of the board as it was after the first view.version of them. batching is true iff a
+	//     batch holds the single lock guarding the board.
 	// Rep invariant
-	//     each row must have the same number of column
-	//     number of rows == row
+	//     board has ROW rows and COL columns; moves >= 0; 0 <= view.version <= version
+	//     0 <= safeLeft, flagged <= ROW * COL
+	//     no square of board is marked PENDING while no operation holds its tile lock
 	// Rep exposure
 	//	   All field are private and final
 	//     ROW and COL are integer, so guarantees immutability
-	//     board is a mutable list containing mutable lists, but is encapsulated in this object 
-	//	   and never exposed to a client. All parameters and return types for public methods are
-	//     immutable.
+	//     board is a mutable grid and locks are mutable locks, but they are encapsulated in this
+	//     object and never exposed to a client. All parameters and return types for public
+	//     methods are immutable. view is immutable.
 	// Thread safety 
 	//	   ROW and COL are immutable
-	//	   board points to a threadsafe list; all access to board happen within Board methods,
-	//	   which are guarded by the board's lock
+	//	   all access to board happen within Board methods. A square is only read or written
+	//     while holding the lock of the tile containing it, and view is only replaced by
+	//     publish, while holding every tile lock, with the rendered rows of the board, which
+	//     are never modified once rendered. version is atomic, and incremented by each move
+	//     that changes a square while the move holds its tiles, before its first change. If a
+	//     single lock guards the board, every move and batch publishes view before releasing
+	//     it, so toString and look read the volatile view without ever locking: a move that
+	//     completed before they were called is always shown. batching is guarded by that
+	//     lock. With several tiles, a move holds only its own tiles and cannot publish, so
+	//     toString reads view without locking only if no move has started changing a square
+	//     since view was rendered, and otherwise publishes it under every tile lock; look
+	//     cuts its region out of view under the same condition, and otherwise reads the
+	//     squares of the region holding only the tiles containing them, acquired in
+	//     increasing order.
+	//     With several tiles, dig plans its cascade, acquiring the tile of every square it
+	//     touches, before changing anything, so a dig either completes under its tiles or
+	//     undoes its marks and starts over with the tiles it found it needs (see TileLocks
+	//     for deadlock freedom). With a single lock, dig holds it and does not plan.
+	//     moves is atomic, and counts each move while the move holds the tile of its square,
+	//     so moves that touch a common square are numbered in the order they are made, and
+	//     moves read while every tile is held counts exactly the moves made so far. safeLeft
+	//     and flagged are atomic, and updated once by each move that changes them while it
+	//     holds its tiles, so they are exact while every tile is held, and otherwise count the
+	//     squares of some moves still in progress. moveLog, changeListener, validation and
+	//     stats are volatile; moveLog and changeListener are called by each move while it
+	//     holds its tiles, and stats is threadsafe. A validated move checks the squares it
+	//     touched in the tiles it holds, and
+	//     reads the BOMB bits of their neighbors, which may lie in tiles it does not hold: a
+	//     bomb is only cleared by a dig holding the tiles of all its neighbors, so those bits
+	//     cannot change during the check.
 	
     /**
      * Create minesweeper board, randomly assign each square to contain a bomb with
      * probability of 0.25; all squares' states are set to "-" for untouched.
+     * All operations on the board are serialized by a single lock.
      * @param row number of rows in the board
      * @param col number of columns in the board
      */
 	public Board(int row, int col) {
-		ROW = row;
-		COL = col;
-		for (int i = 0; i < row; i++) {
-			List<Square> thisRow = Collections.synchronizedList(new ArrayList<>());
-			for (int j = 0; j < col; j++) {
-				if(new Random().nextDouble() <= 0.25) {
-					thisRow.add(new Square("-", 1));
-				} else {
-					thisRow.add(new Square("-", 0));
-				}
-			}
-			board.add(thisRow);
-		}		
-		checkRep();
+		this(row, col, Integer.MAX_VALUE);
+	}
+	
+    /**
+     * Create minesweeper board, randomly assign each square to contain a bomb with
+     * probability of 0.25; all squares' states are set to "-" for untouched.
+     * Operations on squares in disjoint tiles of tileSize x tileSize squares run in parallel.
+     * @param row number of rows in the board
+     * @param col number of columns in the board
+     * @param tileSize number of rows and columns of squares guarded by one lock, requires
+     *        tileSize > 0
+     */
+	public Board(int row, int col, int tileSize) {
+		this(row, col, tileSize, new SplittableRandom().nextLong(), DEFAULT_DENSITY);
+	}
+	
+    /**
+     * Create minesweeper board, randomly assign each square to contain a bomb with
+     * probability density, drawn from a generator seeded by seed; all squares' states are set
+     * to "-" for untouched. Boards of the same size, seed and density have the same bombs.
+     * The bombs of a large board are drawn by several threads.
+     * Operations on squares in disjoint tiles of tileSize x tileSize squares run in parallel.
+     * @param row number of rows in the board, requires row > 0
+     * @param col number of columns in the board, requires col > 0
+     * @param tileSize number of rows and columns of squares guarded by one lock, requires
+     *        tileSize > 0
+     * @param seed seed of the bombs
+     * @param density probability of a bomb in each square, requires 0 <= density <= 1
+     */
+	public Board(int row, int col, int tileSize, long seed, double density) {
+		this(Grid.random(row, col, seed, density, (long) row * col >= PARALLEL_SQUARES), tileSize, 0);
 	}
 	
     /**
      * Create minesweeper board, assign bombs to squares based on the input file,
      * all squares' states are set to "-" for untouched.
+     * All operations on the board are serialized by a single lock.
      * @param filename file pathname where a board has been stored 
+     * @throws IOException if the file cannot be read or does not match its X Y header
      */
 	public Board(File filename) throws IOException {
-		try (BufferedReader inputStream = new BufferedReader(new FileReader(filename))) {
-			String[] size = inputStream.readLine().split(" ");
-			ROW = Integer.parseInt(size[1]);
-			COL = Integer.parseInt(size[0]);
-			String line = "";
-			while ((line = inputStream.readLine()) != null) {
-				List<Square> thisRow = Collections.synchronizedList(new ArrayList<>());
-				String[] assignBombs = line.split(" ");
-				for (String bomb : assignBombs) {
-					thisRow.add(new Square("-", Integer.parseInt(bomb)));			
-				}	
-				board.add(thisRow);
-			}
-		}
+		this(filename, Integer.MAX_VALUE);
+	}
+	
+    /**
+     * Create minesweeper board, assign bombs to squares based on the input file,
+     * all squares' states are set to "-" for untouched.
+     * Operations on squares in disjoint tiles of tileSize x tileSize squares run in parallel.
+     * @param filename file pathname where a board has been stored 
+     * @param tileSize number of rows and columns of squares guarded by one lock, requires
+     *        tileSize > 0
+     * @throws IOException if the file cannot be read or does not match its X Y header
+     */
+	public Board(File filename, int tileSize) throws IOException {
+		this(BoardFile.read(filename), tileSize, 0);
+	}
+	
+    /**
+     * Create minesweeper board from a grid of squares.
+     * Operations on squares in disjoint tiles of tileSize x tileSize squares run in parallel.
+     * @param grid squares of the board, not shared with any other object
+     * @param tileSize number of rows and columns of squares guarded by one lock, requires
+     *        tileSize > 0
+     * @param moves number of moves already made on the grid, requires moves >= 0
+     */
+	private Board(Grid grid, int tileSize, long moves) {
+		ROW = grid.rows();
+		COL = grid.cols();
+		board = grid;
+		locks = new TileLocks(ROW, COL, tileSize);
+		this.moves = new AtomicLong(moves);
+		this.safeLeft = new AtomicInteger(grid.count(Grid.BOMB | Grid.DUG, 0));
+		this.flagged = new AtomicInteger(grid.count(Grid.FLAGGED, Grid.FLAGGED));
 		checkRep();
-		
+	}
+	
+    /**
+     * Save the bombs and the state of every square of the board to a stream, in the versioned
+     * binary snapshot format read by load. The snapshot is taken atomically with respect to
+     * dig, flag and deflag. The stream is flushed but not closed.
+     * @param out stream to write to
+     * @return the number of moves included in the snapshot, as given by moves()
+     * @throws IOException if the stream cannot be written
+     */
+	public long save(OutputStream out) throws IOException {
+		byte[] squares = new byte[Math.multiplyExact(ROW, COL)];
+		long saved;
+		locks.lockAll();
+		try {
+			board.copyCells(squares);
+			saved = moves.get();
+		} finally {
+			locks.unlockAll();
+		}
+		Snapshot.write(out, ROW, COL, saved, squares);
+		return saved;
+	}
+	
+    /**
+     * Load a board saved by save.
+     * All operations on the board are serialized by a single lock.
+     * @param in stream to read from, positioned at the start of the snapshot; it is not closed
+     * @return a board equal to the one saved
+     * @throws IOException if the stream cannot be read or does not hold a valid snapshot
+     */
+	public static Board load(InputStream in) throws IOException {
+		return load(in, Integer.MAX_VALUE);
+	}
+	
+    /**
+     * Load a board saved by save.
+     * Operations on squares in disjoint tiles of tileSize x tileSize squares run in parallel.
+     * @param in stream to read from, positioned at the start of the snapshot; it is not closed
+     * @param tileSize number of rows and columns of squares guarded by one lock, requires
+     *        tileSize > 0
+     * @return a board equal to the one saved
+     * @throws IOException if the stream cannot be read or does not hold a valid snapshot
+     */
+	public static Board load(InputStream in, int tileSize) throws IOException {
+		Snapshot snapshot = Snapshot.read(in);
+		return new Board(snapshot.grid(), tileSize, snapshot.moves());
+	}
+	
+    /**
+     * Return the number of moves made on the board: digs, flags and deflags of squares on the
+     * board, whether or not they changed it, counting those made before the board was saved if
+     * it was loaded. A snapshot written by save records the number of moves it includes.
+     */
+	public long moves() {
+		return moves.get();
+	}
+	
+    /**
+     * Return the number of squares without a bomb that are not dug yet, flagged or not.
+     * Takes constant time.
+     */
+	public int safeSquaresLeft() {
+		return safeLeft.get();
+	}
+	
+    /**
+     * Return the number of flagged squares. Takes constant time.
+     */
+	public int flaggedSquares() {
+		return flagged.get();
+	}
+	
+    /**
+     * Return the state of the game on the board: WON once every square without a bomb is dug,
+     * including squares whose bombs were cleared by digging them, and PLAYING before. Takes
+     * constant time.
+     */
+	public Status status() {
+		return safeLeft.get() == 0 ? Status.WON : Status.PLAYING;
+	}
+	
+    /**
+     * Report every move made from now on to a log. Each move is numbered by the value of
+     * moves() just after it is made, and is reported while no other move touching the same
+     * squares can be made, so replaying the moves of a log in the order they were reported,
+     * on a board loaded from a snapshot, makes the same board as the moves made after the
+     * snapshot.
+     * @param moveLog log to report moves to, or null to stop reporting them
+     */
+	public void setMoveLog(MoveLog moveLog) {
+		this.moveLog = moveLog;
+	}
+	
+    /**
+     * Report the squares modified by every move made from now on to a listener, while no other
+     * move touching the same squares can be made. Moves that modify no square are not reported.
+     * @param changeListener listener to report changes to, or null to stop reporting them
+     */
+	public void setChangeListener(ChangeListener changeListener) {
+		this.changeListener = changeListener;
 	}
 
-	private void checkRep() {
-		int numRows = 0;
-		for (List<Square> row : board) {
-			assert row.size() == COL;
-			numRows ++;
+    /**
+     * Record statistics of every move and look made from now on.
+     * @param stats statistics to record to, which may be shared with other boards, or null to
+     *        stop recording them
+     */
+	public void setStats(BoardStats stats) {
+		this.stats = stats;
+	}
+
+    /**
+     * Set the level of validation of the rep invariant after each move.
+     * @param validation the level, OFF by default
+     */
+	public void setValidation(Validation validation) {
+		this.validation = validation;
+	}
+
+    /**
+     * Run a batch of commands on this board. If a single lock guards the whole board, it is
+     * held while the batch runs, so that its moves and looks acquire it only once between them
+     * and the moves of other threads are made before or after the whole batch, and the board
+     * is rendered for readers once, at the end of the batch; otherwise each command locks its
+     * own tiles, as if run alone.
+     * @param commands commands to run, which must not wait for other threads that may use
+     *        this board
+     * @return the result of commands
+     */
+	public <T> T batch(Supplier<T> commands) {
+		if (locks.tiles() > 1) {
+			return commands.get();
+		}
+		locks.lockAll();
+		try {
+			batching = true;
+			return commands.get();
+		} finally {
+			batching = false;
+			publish();
+			locks.unlockAll();
 		}
-		assert numRows == ROW;
+	}
+
+	private void checkRep() {
+		assert board.rows() == ROW;
+		assert board.cols() == COL;
+		assert moves.get() >= 0;
+		assert safeLeft.get() >= 0 && flagged.get() >= 0;
+		assert view == null || view.version <= version.get();
 	}
     
     /**
      * Dig an untouched square on the minesweeper board. 
      * @param row the row that contains of the square (start at 0 from top-left corner)
      * @param col the column that contains the square (start at 0 from top-left corner)
+     * @return "BOOM!" if the square contained a bomb, otherwise the string representation
+     *         of the board
+     */
+	public String dig (int row, int col) {
+		if (digSquare(row, col, null)) {
+			return "BOOM!";
+		}
+		checkRep();
+		return this.toString();
+	}
+	
+    /**
+     * Dig an untouched square on the minesweeper board, reporting the squares it modified. 
+     * @param row the row that contains of the square (start at 0 from top-left corner)
+     * @param col the column that contains the square (start at 0 from top-left corner)
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
+     * @return true if the square contained a bomb, false otherwise
+     */
+	public boolean dig (int row, int col, List<Change> changes) {
+		return digSquare(row, col, changes);
+	}
+	
+    /**
+     * flag an untouched square on the minesweeper board. 
+     * @param row the row that contains of the square (start at 0 from top-left corner)
+     * @param col the column that contains the square (start at 0 from top-left corner)
+     * @return the string representation of the board
+     */
+	public String flag (int row, int col) {
+		flagSquare(row, col, null);
+		checkRep();
+		return this.toString();
+	}
+	
+    /**
+     * flag an untouched square on the minesweeper board, reporting the squares it modified. 
+     * @param row the row that contains of the square (start at 0 from top-left corner)
+     * @param col the column that contains the square (start at 0 from top-left corner)
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
+     */
+	public void flag (int row, int col, List<Change> changes) {
+		flagSquare(row, col, changes);
+	}
+	
+    /**
+     * deflag an flagged square on the minesweeper board. 
+     * @param row the row that contains of the square (start at 0 from top-left corner)
+     * @param col the column that contains the square (start at 0 from top-left corner)
+     * @return the string representation of the board
+     */
+	public String deflag (int row, int col) {
+		deflagSquare(row, col, null);
+		checkRep();
+		return this.toString();
+	}
+	
+    /**
+     * deflag an flagged square on the minesweeper board, reporting the squares it modified. 
+     * @param row the row that contains of the square (start at 0 from top-left corner)
+     * @param col the column that contains the square (start at 0 from top-left corner)
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
+     */
+	public void deflag (int row, int col, List<Change> changes) {
+		deflagSquare(row, col, changes);
+	}
+	
+    /**
+     * Dig an untouched square on the minesweeper board. 
+     * @param row the row that contains of the square (start at 0 from top-left corner)
+     * @param col the column that contains the square (start at 0 from top-left corner)
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
+     * @return true if the square contained a bomb, false otherwise
      */
-	public synchronized String dig (int row, int col) {
+	private boolean digSquare(int row, int col, List<Change> changes) {
 		if ((row >= 0) && (row < ROW) && (col >= 0) && (col < COL)) {
-			if (board.get(row).get(col).getState() == "-") {
-				if (board.get(row).get(col).dig()) {
-					board.get(row).get(col).setState(0);
-					updateAdjacentSquares(row, col);
-					digAdjacentSquares(row, col);
-					return "BOOM!";
-				} else {
-					int bombCount = bombsInAdjacentSquares(row, col);
-					board.get(row).get(col).setState(bombCount);
-					if (bombCount == 0) {
-						digAdjacentSquares(row, col); 
-					}			 
+			BoardStats recording = stats;
+			TileLocks.Claim claim = locks.newClaim(recording != null);
+			Region touched = newRegion();
+			ChangeListener listener = changeListener;
+			List<Change> reported = changes != null || listener == null ? changes : new ArrayList<>();
+			int firstChange = reported == null ? 0 : reported.size();
+			try {
+				int missing;
+				while ((missing = planDig(claim, row, col)) >= 0) {
+					claim.restartWith(missing);
+				}
+				boolean boom = false;
+				if (board.isUntouched(row, col)) {
+					version.incrementAndGet();
+					int safeDug = 0;
+					if (board.clearBomb(row, col)) {
+						board.dig(row, col, 0);
+						report(reported, touched, row, col);
+						updateAdjacentSquares(row, col, reported, touched);
+						safeDug = digAdjacentSquares(row, col, reported, touched);
+						boom = true;
+					} else {
+						int bombCount = board.bombsNearby(row, col);
+						board.dig(row, col, bombCount);
+						report(reported, touched, row, col);
+						safeDug = 1;
+						if (bombCount == 0) {
+							safeDug += digAdjacentSquares(row, col, reported, touched); 
+						}			 
+					}
+					safeLeft.addAndGet(-safeDug);
+					if (recording != null) {
+						recording.recordDig(boom ? safeDug + 1 : safeDug);
+					}
 				}
+				logMove(MoveLog.Kind.DIG, row, col);
+				notifyListener(listener, reported, firstChange);
+				validate(claim, touched);
+				return boom;
+			} finally {
+				release(claim, recording);
 			}
 		}
-		checkRep();
-		return this.toString();
+		return false;
 	}
 	
     /**
      * flag an untouched square on the minesweeper board. 
      * @param row the row that contains of the square (start at 0 from top-left corner)
      * @param col the column that contains the square (start at 0 from top-left corner)
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
      */
-	public synchronized String flag (int row, int col) {
+	private void flagSquare(int row, int col, List<Change> changes) {
 		if ((row >= 0) && (row < ROW) && (col >= 0) && (col < COL)) {
-			if (board.get(row).get(col).getState() == "-") {
-				board.get(row).get(col).flag();
+			BoardStats recording = stats;
+			TileLocks.Claim claim = locks.newClaim(recording != null);
+			claim.acquire(locks.tileOf(row, col));
+			Region touched = newRegion();
+			ChangeListener listener = changeListener;
+			try {
+				if (board.isUntouched(row, col)) {
+					version.incrementAndGet();
+					board.flag(row, col);
+					flagged.incrementAndGet();
+					report(changes, touched, row, col);
+					if (listener != null) {
+						listener.changed(Collections.singletonList(new Change(row, col, board.stateOf(row, col))));
+					}
+				}
+				logMove(MoveLog.Kind.FLAG, row, col);
+				validate(claim, touched);
+			} finally {
+				release(claim, recording);
 			}
 		}
-		checkRep();
-		return this.toString();
 	}
 	
     /**
      * deflag an flagged square on the minesweeper board. 
      * @param row the row that contains of the square (start at 0 from top-left corner)
      * @param col the column that contains the square (start at 0 from top-left corner)
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
      */
-	public synchronized String deflag (int row, int col) {
+	private void deflagSquare(int row, int col, List<Change> changes) {
 		if ((row >= 0) && (row < ROW) && (col >= 0) && (col < COL)) {
-			if (board.get(row).get(col).getState() == "F") {
-				board.get(row).get(col).deflag();
+			BoardStats recording = stats;
+			TileLocks.Claim claim = locks.newClaim(recording != null);
+			claim.acquire(locks.tileOf(row, col));
+			Region touched = newRegion();
+			ChangeListener listener = changeListener;
+			try {
+				if (board.isFlagged(row, col)) {
+					version.incrementAndGet();
+					board.deflag(row, col);
+					flagged.decrementAndGet();
+					report(changes, touched, row, col);
+					if (listener != null) {
+						listener.changed(Collections.singletonList(new Change(row, col, board.stateOf(row, col))));
+					}
+				}
+				logMove(MoveLog.Kind.DEFLAG, row, col);
+				validate(claim, touched);
+			} finally {
+				release(claim, recording);
+			}
+		}
+	}
+	
+    /**
+     * Release the tiles of a move, recording how long it waited for and held them. If a single
+     * lock guards the board and no batch holds it, the board is first published for readers.
+     * @param claim claim of the move, timed iff recording is not null
+     * @param recording statistics to record to, or null
+     */
+	private void release(TileLocks.Claim claim, BoardStats recording) {
+		if (locks.tiles() == 1 && claim.size() > 0 && ! batching) {
+			publish();
+		}
+		if (recording != null) {
+			recording.recordLocks(claim.waitNanos(), claim.holdNanos());
+		}
+		claim.releaseAll();
+	}
+	
+    /**
+     * Count a move and report it to the move log, if any. Requires the tile of the square.
+     */
+	private void logMove(MoveLog.Kind kind, int row, int col) {
+		long move = moves.incrementAndGet();
+		MoveLog log = moveLog;
+		if (log != null) {
+			log.append(move, kind, row, col);
+		}
+	}
+	
+    /**
+     * Report the squares modified by a move to a listener, unless the listener is null or the
+     * move modified no square. Requires the tiles of the move.
+     * @param listener listener to report to, or null
+     * @param reported list to which the move appended the new state of each square it modified,
+     *        or null if listener is null
+     * @param firstChange index in reported of the first change appended by the move
+     */
+	private static void notifyListener(ChangeListener listener, List<Change> reported, int firstChange) {
+		if (listener != null && reported.size() > firstChange) {
+			listener.changed(Collections.unmodifiableList(reported.subList(firstChange, reported.size())));
+		}
+	}
+	
+    /**
+     * Append the current state of a square to changes, unless changes is null, and add the
+     * square to touched, unless touched is null.
+     */
+	private void report(List<Change> changes, Region touched, int row, int col) {
+		if (changes != null) {
+			changes.add(new Change(row, col, board.stateOf(row, col)));
+		}
+		if (touched != null) {
+			touched.add(row, col);
+		}
+	}
+	
+    /**
+     * @return a region to collect the squares touched by a move in, if the move is to be
+     *         validated, or else null
+     */
+	private Region newRegion() {
+		Validation level = validation;
+		if (level == Validation.FULL
+				|| (level == Validation.SAMPLED && ThreadLocalRandom.current().nextInt(SAMPLE_PERIOD) == 0)) {
+			return new Region();
+		}
+		return null;
+	}
+	
+    /**
+     * Check the rep invariant of the squares touched by a move, in the tiles held by the
+     * move's claim, unless touched is null.
+     * @throws AssertionError if one of the squares violates the rep invariant
+     */
+	private void validate(TileLocks.Claim claim, Region touched) {
+		if (touched == null || touched.isEmpty()) {
+			return;
+		}
+		int size = locks.tileSize();
+		for (int k = 0; k < claim.size(); k++) {
+			int tileRow = locks.firstRow(claim.get(k));
+			int tileCol = locks.firstCol(claim.get(k));
+			int firstRow = Math.max(tileRow, touched.firstRow);
+			int firstCol = Math.max(tileCol, touched.firstCol);
+			int lastRow = (int) Math.min(Math.min((long) tileRow + size, ROW) - 1, touched.lastRow);
+			int lastCol = (int) Math.min(Math.min((long) tileCol + size, COL) - 1, touched.lastCol);
+			if (firstRow <= lastRow && firstCol <= lastCol) {
+				int invalid = board.findInvalid(firstRow, firstCol, lastRow, lastCol);
+				if (invalid >= 0) {
+					throw new AssertionError("rep invariant violated by square " + invalid % COL + " "
+							+ invalid / COL + " of board");
+				}
 			}
 		}
-		checkRep();
-		return this.toString();
 	}
 	
     /**
@@ -158,69 +650,135 @@ public class Board {
      * 		  (start at 0 from top-left corner).
      * @param col the column containing the square whose bomb has been cleared
      *        (start at 0 from top-left corner).
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
+     * @param touched region to which every square whose bomb count changed is added, or null
      */
-	private void updateAdjacentSquares(int row, int col) {
-		int[] bound = AdjacentSquareBound (row, col);
-		for (int i = bound[0]; i <= bound[1]; i++) {
-			for (int j = bound[2]; j <= bound[3]; j++) {
-				board.get(i).get(j).updateState();
+	private void updateAdjacentSquares(int row, int col, List<Change> changes, Region touched) {
+		int maxRow = Math.min(row + 1, ROW - 1);
+		int maxCol = Math.min(col + 1, COL - 1);
+		for (int i = Math.max(row - 1, 0); i <= maxRow; i++) {
+			for (int j = Math.max(col - 1, 0); j <= maxCol; j++) {
+				if (board.updateState(i, j)) {
+					report(changes, null, i, j);
+				}
+				if (touched != null) {
+					touched.add(i, j);
+				}
 			}
 		}
 		checkRep();
 	}
 	
     /**
-     * dig adjacent squares if they were untouched and has no neighbor with bomb
+     * Acquire the tiles of every square that digging a square would read or write, marking
+     * each square the cascade would dig as PENDING. Digging a square touches only that
+     * square, unless it contains a bomb or has no neighbor with bomb, in which case the
+     * cascade of digAdjacentSquares is replayed without changing any state: a BOOM is
+     * accounted for by subtracting the cleared bomb from the counts of its adjacent squares.
+     * If a single lock guards the board, acquiring it is all the planning needed, so the
+     * cascade is not replayed.
+     * @param claim tiles held by the caller, to be extended with the tiles needed
      * @param row the row that contains of the square (start at 0 from top-left corner)
      * @param col the column that contains the square (start at 0 from top-left corner)
+     * @return -1 if claim now holds every tile needed, or else a tile that could not be
+     *         acquired without risking deadlock; all marks have then been cleared and the
+     *         caller must restart with that tile
      */
-	private void digAdjacentSquares(int row, int col) {
-		int[] bound = AdjacentSquareBound (row, col);
-		for (int i = bound[0]; i <= bound[1]; i++) {
-			for (int j = bound[2]; j <= bound[3]; j++) {
-				if (board.get(i).get(j).getState() == "-") {
-					int bombCount = bombsInAdjacentSquares(i,j);
-					board.get(i).get(j).setState(bombCount);
-					if (bombCount == 0) {						
-						digAdjacentSquares(i, j);							
+	private int planDig(TileLocks.Claim claim, int row, int col) {
+		claim.acquire(locks.tileOf(row, col));
+		if (locks.tiles() == 1 || ! board.isUntouched(row, col)) {
+			return -1;
+		}
+		boolean boom = board.hasBomb(row, col);
+		if ( ! boom && board.bombsNearby(row, col) != 0) {
+			return -1;
+		}
+		board.mark(row, col);
+		SquareQueue queue = new SquareQueue();
+		queue.add(row * COL + col);
+		while ( ! queue.isEmpty()) {
+			int square = queue.remove();
+			int r = square / COL;
+			int c = square % COL;
+			int maxRow = Math.min(r + 1, ROW - 1);
+			int maxCol = Math.min(c + 1, COL - 1);
+			for (int i = Math.max(r - 1, 0); i <= maxRow; i++) {
+				for (int j = Math.max(c - 1, 0); j <= maxCol; j++) {
+					int tile = locks.tileOf(i, j);
+					if ( ! claim.acquire(tile)) {
+						clearMarks(claim);
+						return tile;
+					}
+					if (board.mark(i, j)) {
+						int bombCount = board.bombsNearby(i, j);
+						if (boom && Math.abs(i - row) <= 1 && Math.abs(j - col) <= 1) {
+							bombCount--;
+						}
+						if (bombCount == 0) {
+							queue.add(i * COL + j);
+						}
 					}
 				}
 			}
 		}
-		checkRep();
+		return -1;
 	}
 	
     /**
-     * Return whether or not adjacent squares contain bombs
-     * @param row the row that contains of the square (start at 0 from top-left corner)
-     * @param col the column that contains the square (start at 0 from top-left corner)
-     * @return bomb count in adjacent squares 
-     */
-	private int bombsInAdjacentSquares(int row, int col) {
-		int bombCount = 0;
-		int[] bound = AdjacentSquareBound (row, col);
-		for (int i = bound[0]; i <= bound[1]; i++) {
-			for (int j = bound[2]; j <= bound[3]; j++) {
-				bombCount += board.get(i).get(j).getBomb();
-			}
+     * Clear every PENDING mark in the tiles held by a claim.
+     */
+	private void clearMarks(TileLocks.Claim claim) {
+		int size = locks.tileSize();
+		for (int k = 0; k < claim.size(); k++) {
+			int firstRow = locks.firstRow(claim.get(k));
+			int firstCol = locks.firstCol(claim.get(k));
+			board.clearMarks(firstRow, firstCol, 
+					(int) Math.min((long) firstRow + size, ROW) - 1, 
+					(int) Math.min((long) firstCol + size, COL) - 1);
 		}
-		return bombCount;
 	}
 	
     /**
-     * Return bound for adjacent square 
+     * dig adjacent squares if they were untouched, and keep digging outwards from every dug
+     * square that has no neighbor with bomb. The cascade is a breadth-first flood fill over a
+     * queue of square indices (row * COL + col), so it uses no recursion and digs and counts
+     * each square at most once. Requires the tiles acquired by planDig for this cascade.
      * @param row the row that contains of the square (start at 0 from top-left corner)
      * @param col the column that contains the square (start at 0 from top-left corner)
-     * @return an integer array consisting of the lower bound for row, high bound for row,
-     * 		   lower bound for column, higher bound for column
+     * @param changes list to which the new state of each modified square is appended,
+     *        or null if changes need not be reported
+     * @param touched region to which every modified square is added, or null
+     * @return number of squares without a bomb dug by the cascade
      */
-	private int[] AdjacentSquareBound (int row, int col) {
-		int minCol = col > 0 ? col - 1 : col;
-		int maxCol = col < COL - 1 ? col + 1 : col;
-		int minRow = row > 0 ? row - 1 : row;
-		int maxRow = row < ROW - 1 ? row + 1 : row;
-		int [] bound = {minRow, maxRow, minCol, maxCol};
-		return bound;
+	private int digAdjacentSquares(int row, int col, List<Change> changes, Region touched) {
+		int safeDug = 0;
+		SquareQueue queue = new SquareQueue();
+		queue.add(row * COL + col);
+		while ( ! queue.isEmpty()) {
+			int square = queue.remove();
+			int r = square / COL;
+			int c = square % COL;
+			int maxRow = Math.min(r + 1, ROW - 1);
+			int maxCol = Math.min(c + 1, COL - 1);
+			for (int i = Math.max(r - 1, 0); i <= maxRow; i++) {
+				for (int j = Math.max(c - 1, 0); j <= maxCol; j++) {
+					if (board.isUntouched(i, j)) {
+						int bombCount = board.bombsNearby(i, j);
+						if ( ! board.hasBomb(i, j)) {
+							safeDug++;
+						}
+						board.dig(i, j, bombCount);
+						report(changes, touched, i, j);
+						if (bombCount == 0) {
+							queue.add(i * COL + j);
+						}
+					}
+				}
+			}
+		}
+		checkRep();
+		return safeDug;
 	}
 	
     /**
@@ -240,152 +798,219 @@ public class Board {
     /**
      * Return the string representation of the board, which consists of a series of newline-
      * separated rows of space-separated characters, which represents the states of the square.
+     * Every move completed before the call is shown. If a single lock guards the board, every
+     * move publishes the rendered board before releasing it, so no lock is taken once the
+     * board has been rendered; otherwise no lock is taken if no move has changed a square
+     * since the board was last rendered, and else every tile lock is held only to render the
+     * rows that changed.
      */
 	@Override
 	public String toString() {
-		String boardMessage = "";
-		for (List<Square> row : board) {
-			String rowMessage = "";
-			for (Square square : row) {
-				rowMessage += square.toString() + " ";
+		View published = currentView();
+		if (published == null) {
+			BoardStats recording = stats;
+			long start = recording == null ? 0 : System.nanoTime();
+			locks.lockAll();
+			long locked = recording == null ? 0 : System.nanoTime();
+			try {
+				publish();
+				published = view;
+			} finally {
+				if (recording != null) {
+					recording.recordLocks(locked - start, System.nanoTime() - locked);
+				}
+				locks.unlockAll();
 			}
-			boardMessage += rowMessage.substring(0, rowMessage.length() - 1) + "\n";
 		}
-		return boardMessage.substring(0, boardMessage.length() - 1);
+		return published.text();
 	}
-		
-}
-
-
-/**
- * A mutable data type representing a square on the minesweeper board. 
- */
-class Square {
-	private String state;
-	private int bomb;
-	
-    // Abstraction function
-	//     represent a square in the minesweeper board
-	// Rep invariant
-	//     key in map (a square's state) must be represented by a valid character: 
-	//	   " ", "-", "F", [1-8].
-	//	   a key's value in map must be represented by integer of 1 for bomb or 0 for no bomb
-	// Rep exposure
-	//	   all fields are private and of immutable types.
-	// Thread safety 
-	//	   Square objects are package-private and can only be called by instance methods of a 
-	// 	   Board object, which are synchronized by Board's lock.
 	
     /**
-     * Create a square minesweeper board
-     * @param state state of the square: "-" for untouched, "F" for flagged, " " for dugged with 
-     * 		  no bomb in adjacent squares, integer 1<=i<=8 for dugged with i number of bomb in 
-     * 		  adjacent squares
-     * @param bomb integer indicating if the square contains a bomb (1 for bomb and 0 for no bomb)
+     * @return view, if it shows every move completed so far, or else null
      */
-	Square (String state, int bomb) {
-		this.state = state;
-		this.bomb = bomb;
-		checkRep();
-	}
-	
-	private void checkRep() {
-		assert (state == "-") | (state == "F") | (state  == " ") | state.matches("[1-8]");
-		assert (bomb == 1) | (bomb == 0);
-	}
-	
-    /**
-     * @return the state of the square
-     */
-	String getState() {
-		return state;
-	}
-	
-    /**
-     * @return 1 if square contains bomb and 0 otherwise.
-     */
-	int getBomb() {
-		return bomb;		
+	private View currentView() {
+		View published = view;
+		if (published == null || published.version == version.get()) {
+			return published;
+		}
+		// a single lock is released only after the board is published, so the view is
+		// stale only while another thread's move holds it, or the caller's batch does
+		return locks.tiles() == 1 && ! locks.holdsAll() ? published : null;
 	}
 	
     /**
-     * Modified the state of a square from untouched to dugged with new state as either " " for 
-     * no bomb in adjacent squares, or integer count between 1 and 8 for number of bombs in 
-     * adjacent squares.
-     * @return true if adjacent square contains bomb, false otherwise
+     * Publish the rendered board as view, unless view is current. Requires every tile lock.
      */
-	boolean setState(int bombCount) {
-		assert state == "-";
-		if (bombCount == 0) {
-			state = " ";
-			checkRep();
-			return false;
+	private void publish() {
+		long current = version.get();
+		View published = view;
+		if (published != null && published.version == current) {
+			return;
 		}
-		else {
-			state = Integer.toString(bombCount);
-			checkRep();
-			return true;
+		byte[][] rows = new byte[ROW][];
+		for (int i = 0; i < ROW; i++) {
+			rows[i] = board.renderRow(i);
 		}
+		view = new View(current, rows);
 	}
 	
     /**
-     * For a dugged square whose state is an integer count between 1 - 8 for bombs in adjacent
-     * squares, reduce the count by 1.
-     * @return true if state has been modified and false otherwise
+     * Return the string representation of a rectangular region of the board, in the format
+     * of toString: newline-separated rows of space-separated states of its squares. Every
+     * move completed before the call is shown. Takes no lock under the same conditions as
+     * toString, and otherwise holds only the tile locks of the region, so the cost does not
+     * depend on the size of the rest of the board.
+     * @param row first row of the region, requires 0 <= row and row + rows <= getRows()
+     * @param col first column of the region, requires 0 <= col and col + cols <= getColumns()
+     * @param rows number of rows of the region, requires rows > 0
+     * @param cols number of columns of the region, requires cols > 0
+     * @return the string representation of the region
      */
-	boolean updateState() {
-		boolean modified = false;
-		if (state.matches("[1-8]")) {
-			if (state.matches("1")) {
-				state = " ";
-			} else {
-				state = Integer.toString(Integer.parseInt(state) - 1);
+	public String look(int row, int col, int rows, int cols) {
+		View published = currentView();
+		if (published != null) {
+			return published.region(row, col, rows, cols);
+		}
+		byte[] region = new byte[Math.multiplyExact(rows, 2 * cols)];
+		BoardStats recording = stats;
+		TileLocks.Claim claim = locks.newClaim(recording != null);
+		int size = locks.tileSize();
+		try {
+			for (long tileRow = row - row % size; tileRow < row + rows; tileRow += size) {
+				for (long tileCol = col - col % size; tileCol < col + cols; tileCol += size) {
+					claim.acquire(locks.tileOf((int) tileRow, (int) tileCol)); // increasing, so never fails
+				}
 			}
-			modified = true;
-		} 
-		checkRep();
-		return modified;		
-	}
-	
-    /**
-     * dig an untouched square
-     * @return true if square contained a bomb, false otherwise 
-     */
-	boolean dig() {
-		if (bomb == 1) {
-			bomb = 0;
-			checkRep();
-			return true;
+			for (int i = 0; i < rows; i++) {
+				for (int j = 0; j < cols; j++) {
+					region[(i * cols + j) * 2] = (byte) board.stateOf(row + i, col + j);
+					region[(i * cols + j) * 2 + 1] = j < cols - 1 ? (byte) ' ' : (byte) '\n';
+				}
+			}
+		} finally {
+			release(claim, recording);
 		}
-		checkRep();
-		return false;
+		return new String(region, 0, region.length - 1, StandardCharsets.US_ASCII);
 	}
 	
     /**
-     * flag an untouched square
-     * @return true if square contained a bomb, false otherwise 
+     * An immutable string representation of the board, with the number of moves that had
+     * changed a square when it was rendered.
      */
-	void flag () {
-		state = "F";
-		checkRep(); 
+	private static class View {
+		private final long version;
+		private final byte[][] rows;
+		private volatile String text = null;
+		
+		// Abstraction function
+		//     represent the board as shown by rows, each encoded by Grid.renderRow, after
+		//     version moves changed a square; text, unless null, is rows concatenated
+		//     without the last newline
+		// Rep invariant
+		//     version >= 0, rows.length > 0, and every row has the same length
+		// Thread safety
+		//     rows and its arrays are never modified. text is set by the first calls to
+		//     text, which may race to compute equal strings; String is immutable, and text
+		//     volatile, so any of them may be returned.
+		
+		View(long version, byte[][] rows) {
+			this.version = version;
+			this.rows = rows;
+		}
+		
+		/**
+		 * @return the string representation of the board
+		 */
+		String text() {
+			String board = text;
+			if (board == null) {
+				int rowLength = rows[0].length;
+				byte[] boardMessage = new byte[Math.multiplyExact(rows.length, rowLength)];
+				for (int i = 0; i < rows.length; i++) {
+					System.arraycopy(rows[i], 0, boardMessage, i * rowLength, rowLength);
+				}
+				board = new String(boardMessage, 0, boardMessage.length - 1, StandardCharsets.US_ASCII);
+				text = board;
+			}
+			return board;
+		}
+		
+		/**
+		 * @return the string representation of the region of cols columns and rows rows of
+		 *         the board whose top left square is at column col and row row, which must lie
+		 *         inside the board
+		 */
+		String region(int row, int col, int rows, int cols) {
+			int rowLength = 2 * cols;
+			byte[] region = new byte[Math.multiplyExact(rows, rowLength)];
+			for (int i = 0; i < rows; i++) {
+				System.arraycopy(this.rows[row + i], 2 * col, region, i * rowLength, rowLength);
+				region[(i + 1) * rowLength - 1] = '\n';
+			}
+			return new String(region, 0, region.length - 1, StandardCharsets.US_ASCII);
+		}
 	}
 	
     /**
-     * flag an untouched square
-     * @return true if square contained a bomb, false otherwise 
+     * A growable first-in first-out queue of square indices, used by the cascade.
      */
-	void deflag () {
-		state = "-";
-		checkRep(); 
+	private static class SquareQueue {
+		private int[] squares = new int[16];
+		private int head = 0;
+		private int tail = 0;
+		
+		// Abstraction function
+		//     represent the queue squares[head..tail-1], oldest first
+		// Rep invariant
+		//     0 <= head <= tail <= squares.length
+		
+		boolean isEmpty() {
+			return head == tail;
+		}
+		
+		void add(int square) {
+			if (tail == squares.length) {
+				// reclaim the consumed prefix before growing the queue
+				int pending = tail - head;
+				int[] next = pending < squares.length / 2 ? squares : new int[squares.length * 2];
+				System.arraycopy(squares, head, next, 0, pending);
+				squares = next;
+				head = 0;
+				tail = pending;
+			}
+			squares[tail++] = square;
+		}
+		
+		int remove() {
+			return squares[head++];
+		}
 	}
 	
     /**
-     * Return the string representation of a square's state  
+     * The smallest rectangle of squares containing every square added to it, used to collect
+     * the squares touched by a move to validate.
      */
-	@Override
-	public String toString() {
-		return state;
+	private static class Region {
+		private int firstRow = Integer.MAX_VALUE;
+		private int firstCol = Integer.MAX_VALUE;
+		private int lastRow = -1;
+		private int lastCol = -1;
+		
+		// Abstraction function
+		//     represent the rectangle of rows firstRow..lastRow and columns
+		//     firstCol..lastCol, empty if lastRow < 0
+		// Rep invariant
+		//     lastRow < 0 or (firstRow <= lastRow and firstCol <= lastCol)
+		
+		boolean isEmpty() {
+			return lastRow < 0;
+		}
+		
+		void add(int row, int col) {
+			firstRow = Math.min(firstRow, row);
+			firstCol = Math.min(firstCol, col);
+			lastRow = Math.max(lastRow, row);
+			lastCol = Math.max(lastCol, col);
+		}
 	}
-	
-	
 }
@@ -0,0 +1,211 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A reader of board files, which parses the bytes of a file directly into a Grid. The file is
+ * memory-mapped in windows, so a board of millions of squares is read in one pass without
+ * copying the file or allocating an object per square. The file format is specified by the
+ * following grammar:
+ * <pre>
+ *   FILE ::= BOARD LINE+
+ *   BOARD ::= X SPACE Y SPACE* NEWLINE
+ *   LINE ::= (VAL SPACE)* VAL SPACE* NEWLINE
+ *   VAL ::= 0 | 1
+ *   X ::= INT
+ *   Y ::= INT
+ *   SPACE ::= " "
+ *   NEWLINE ::= "\n" | "\r" "\n"?
+ *   INT ::= [0-9]+
+ * </pre>
+ * where the last NEWLINE may be omitted, X is the number of columns and of VALs per LINE, and Y
+ * the number of rows and of LINEs.
+ */
+class BoardFile {
+
+	/** Maximum number of bytes of the file mapped at once. */
+	private static final int WINDOW_SIZE = 1 << 26;
+	/** Value returned by next() at the end of the file. */
+	private static final int END = -1;
+
+	private final File file;
+	private final FileChannel channel;
+	private final long size;
+	private final int windowSize;
+	private long windowStart = 0;
+	private MappedByteBuffer window = null;
+
+    // Abstraction function
+	//     represent a reader of file, open on channel, that has read the bytes before
+	//     windowStart + window.position() of its size bytes, or none if window is null.
+	//     window maps the bytes of the file from windowStart, at most windowSize of them.
+	// Rep invariant
+	//     0 <= windowStart <= size; windowSize > 0
+	//     window == null or windowStart + window.limit() <= size
+	// Rep exposure
+	//     all fields are private and never exposed to a client.
+	// Thread safety
+	//     BoardFile objects are confined to the thread running read.
+
+	private BoardFile(File file, FileChannel channel, int windowSize) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.size = channel.size();
+		this.windowSize = windowSize;
+		checkRep();
+	}
+
+	private void checkRep() {
+		assert 0 <= windowStart && windowStart <= size;
+		assert windowSize > 0;
+		assert window == null || windowStart + window.limit() <= size;
+	}
+
+    /**
+     * Read the bombs of a board file into a grid of untouched squares.
+     * @param file board file, as specified by the grammar of BoardFile
+     * @return a grid of the size given by the header of the file, with a bomb in every square
+     *         whose VAL is 1
+     * @throws IOException if the file cannot be read or does not match the grammar, or its
+     *         number of lines or of values per line does not match its X Y header
+     */
+	static Grid read(File file) throws IOException {
+		return read(file, WINDOW_SIZE);
+	}
+
+    /**
+     * Read the bombs of a board file into a grid of untouched squares, mapping at most
+     * windowSize bytes of the file at once.
+     * @param file board file, as specified by the grammar of BoardFile
+     * @param windowSize maximum number of bytes mapped at once, requires windowSize > 0
+     * @return a grid of the size given by the header of the file, with a bomb in every square
+     *         whose VAL is 1
+     * @throws IOException if the file cannot be read or does not match the grammar, or its
+     *         number of lines or of values per line does not match its X Y header
+     */
+	static Grid read(File file, int windowSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new BoardFile(file, channel, windowSize).parse();
+		}
+	}
+
+    /**
+     * Parse the file, from its first byte.
+     */
+	private Grid parse() throws IOException {
+		int c = next();
+		long cols = 0;
+		long rows = 0;
+		int digits = 0;
+		for (; c >= '0' && c <= '9'; c = next(), digits++) {
+			cols = Math.min(cols * 10 + (c - '0'), Integer.MAX_VALUE + 1L);
+		}
+		if (digits == 0 || c != ' ') {
+			throw invalid("expected X SPACE Y header");
+		}
+		c = next();
+		for (digits = 0; c >= '0' && c <= '9'; c = next(), digits++) {
+			rows = Math.min(rows * 10 + (c - '0'), Integer.MAX_VALUE + 1L);
+		}
+		while (c == ' ') {
+			c = next();
+		}
+		if (digits == 0 || (c != '\n' && c != '\r')) {
+			throw invalid("expected X SPACE Y header");
+		}
+		if (rows <= 0 || cols <= 0 || rows * cols > Integer.MAX_VALUE) {
+			throw invalid("unsupported size " + cols + " " + rows);
+		}
+		c = skipNewline(c);
+
+		Grid grid = new Grid((int) rows, (int) cols);
+		int row = 0;
+		while (c != END) {
+			if (row >= rows) {
+				throw mismatch();
+			}
+			int col = 0;
+			while (true) {
+				if (c != '0' && c != '1') {
+					throw invalid("expected 0 or 1 in line " + (row + 2));
+				}
+				if (col >= cols) {
+					throw mismatch();
+				}
+				if (c == '1') {
+					grid.setBomb(row, col);
+				}
+				col++;
+				c = next();
+				if (c != ' ') {
+					break;
+				}
+				c = next();
+				if (c == ' ' || c == '\n' || c == '\r' || c == END) {
+					// trailing spaces
+					while (c == ' ') {
+						c = next();
+					}
+					break;
+				}
+			}
+			if (col != cols) {
+				throw mismatch();
+			}
+			if (c != '\n' && c != '\r' && c != END) {
+				throw invalid("expected 0 or 1 in line " + (row + 2));
+			}
+			c = skipNewline(c);
+			row++;
+		}
+		if (row != rows) {
+			throw mismatch();
+		}
+		return grid;
+	}
+
+    /**
+     * Skip a NEWLINE, if any.
+     * @param c the byte just read
+     * @return the byte after the NEWLINE starting with c, or c if it does not start a NEWLINE
+     */
+	private int skipNewline(int c) throws IOException {
+		if (c == '\r') {
+			c = next();
+			return c == '\n' ? next() : c;
+		}
+		return c == '\n' ? next() : c;
+	}
+
+    /**
+     * Read the next byte of the file, mapping the next window of the file if needed.
+     * @return the byte, between 0 and 255, or END at the end of the file
+     */
+	private int next() throws IOException {
+		if (window == null || ! window.hasRemaining()) {
+			long nextStart = window == null ? 0 : windowStart + window.limit();
+			if (nextStart >= size) {
+				return END;
+			}
+			windowStart = nextStart;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+			checkRep();
+		}
+		return window.get() & 0xFF;
+	}
+
+	private IOException mismatch() {
+		return new IOException("board file does not match its size: " + file);
+	}
+
+	private IOException invalid(String message) {
+		return new IOException("invalid board file " + file + ": " + message);
+	}
+}
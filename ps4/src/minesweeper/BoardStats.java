@@ -0,0 +1,163 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A threadsafe mutable data type representing statistics of the moves made on one or more
+ * boards: how long moves waited for and held the locks of their squares, and how many squares
+ * each dig dug. Recording is cheap enough to be done on every move: it takes no lock, and
+ * threads recording at once mostly update different cells.
+ */
+public class BoardStats {
+
+    /**
+     * A threadsafe mutable data type representing a histogram of nonnegative values, counted in
+     * buckets of powers of two, so that percentiles are reported to within a factor of two.
+     */
+	public static class Histogram {
+
+		private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	    // Abstraction function
+		//     represent the multiset of values recorded, whose sum is sum and greatest is
+		//     max, of which buckets[0] counts the zeros and buckets[k] the values from
+		//     2^(k-1) to 2^k - 1, for k > 0
+		// Rep invariant
+		//     buckets has an element for each k; max == 0 if no value was recorded
+		// Rep exposure
+		//     all fields are private and final, and never returned
+		// Thread safety
+		//     all fields are threadsafe adders and accumulators, and never reassigned. A value
+		//     is counted in its bucket before it is added to sum and max, so concurrent readers
+		//     may see a slightly inconsistent snapshot, but never a lost value.
+
+		Histogram() {
+			for (int k = 0; k < buckets.length; k++) {
+				buckets[k] = new LongAdder();
+			}
+		}
+
+	    /**
+	     * Record a value.
+	     * @param value value to record, requires value >= 0
+	     */
+		void record(long value) {
+			buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+	    /**
+	     * @return number of values recorded
+	     */
+		public long count() {
+			long count = 0;
+			for (LongAdder bucket : buckets) {
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+	    /**
+	     * @return sum of the values recorded
+	     */
+		public long sum() {
+			return sum.sum();
+		}
+
+	    /**
+	     * @return greatest value recorded, or 0 if none was
+	     */
+		public long max() {
+			return max.get();
+		}
+
+	    /**
+	     * Return a percentile of the values recorded.
+	     * @param fraction fraction of the values to cover, requires 0 < fraction <= 1
+	     * @return a value no less than the fraction of recorded values, and less than twice the
+	     *         least such recorded value; 0 if none was recorded
+	     */
+		public long percentile(double fraction) {
+			long[] counts = new long[buckets.length];
+			long total = 0;
+			for (int k = 0; k < buckets.length; k++) {
+				counts[k] = buckets[k].sum();
+				total += counts[k];
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * total));
+			long seen = 0;
+			for (int k = 0; k < counts.length; k++) {
+				seen += counts[k];
+				if (seen >= rank) {
+					long highest = k == 0 ? 0 : (1L << k) - 1;
+					return Math.min(highest, max());
+				}
+			}
+			return 0;
+		}
+	}
+
+	private final Histogram lockWaitNanos = new Histogram();
+	private final Histogram lockHoldNanos = new Histogram();
+	private final Histogram squaresDug = new Histogram();
+
+    // Abstraction function
+	//     represent the statistics of the moves and looks made on the boards recording to this
+	//     object: lockWaitNanos holds the nanoseconds each waited for locks held by other
+	//     threads, lockHoldNanos the nanoseconds each held its locks, and squaresDug the number
+	//     of squares dug by each dig of an untouched square, including a bomb it held
+	// Rep invariant
+	//     true
+	// Rep exposure
+	//     all fields are private and final. The histograms are returned, and are threadsafe;
+	//     clients can read them but not record to them, as record is not public.
+	// Thread safety
+	//     all fields are final and threadsafe.
+
+    /**
+     * @return histogram of the nanoseconds moves and looks waited for locks held by other threads
+     */
+	public Histogram lockWaitNanos() {
+		return lockWaitNanos;
+	}
+
+    /**
+     * @return histogram of the nanoseconds moves and looks held their locks
+     */
+	public Histogram lockHoldNanos() {
+		return lockHoldNanos;
+	}
+
+    /**
+     * @return histogram of the number of squares dug by each dig of an untouched square,
+     *         including the digs of its cascade and the bomb it held, if any
+     */
+	public Histogram squaresDug() {
+		return squaresDug;
+	}
+
+    /**
+     * Record the locking of a move or a look.
+     * @param waitNanos nanoseconds it waited for locks held by other threads, requires >= 0
+     * @param holdNanos nanoseconds it held its locks, requires >= 0
+     */
+	void recordLocks(long waitNanos, long holdNanos) {
+		lockWaitNanos.record(waitNanos);
+		lockHoldNanos.record(holdNanos);
+	}
+
+    /**
+     * Record a dig of an untouched square.
+     * @param squares number of squares dug, requires squares > 0
+     */
+	void recordDig(int squares) {
+		squaresDug.record(squares);
+	}
+}
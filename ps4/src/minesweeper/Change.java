@@ -0,0 +1,89 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+/**
+ * An immutable data type representing the new state of a square modified by an operation on
+ * a minesweeper board.
+ */
+public class Change {
+
+	private final int row;
+	private final int col;
+	private final char state;
+
+    // Abstraction function
+	//     represent the square at (row, col) having changed to the state shown by the
+	//     character state
+	// Rep invariant
+	//     row >= 0, col >= 0
+	//     state is one of '-', 'F', ' ', '1' - '8'
+	// Rep exposure
+	//     all fields are private, final and of immutable types.
+	// Thread safety
+	//     Change is immutable.
+
+    /**
+     * Create a change of a square.
+     * @param row the row that contains the square (start at 0 from top-left corner)
+     * @param col the column that contains the square (start at 0 from top-left corner)
+     * @param state new state of the square: '-' for untouched, 'F' for flagged, ' ' for dug
+     *        with no bomb in adjacent squares, '1' - '8' for dug with that many bombs in
+     *        adjacent squares
+     */
+	public Change(int row, int col, char state) {
+		this.row = row;
+		this.col = col;
+		this.state = state;
+		checkRep();
+	}
+
+	private void checkRep() {
+		assert row >= 0 && col >= 0;
+		assert state == '-' || state == 'F' || state == ' ' || (state >= '1' && state <= '8');
+	}
+
+    /**
+     * @return the row that contains the square
+     */
+	public int getRow() {
+		return row;
+	}
+
+    /**
+     * @return the column that contains the square
+     */
+	public int getColumn() {
+		return col;
+	}
+
+    /**
+     * @return the new state of the square, as shown by Board.toString
+     */
+	public char getState() {
+		return state;
+	}
+
+	@Override
+	public boolean equals(Object that) {
+		if ( ! (that instanceof Change)) {
+			return false;
+		}
+		Change other = (Change) that;
+		return row == other.row && col == other.col && state == other.state;
+	}
+
+	@Override
+	public int hashCode() {
+		return (row * 31 + col) * 31 + state;
+	}
+
+    /**
+     * @return the change as "X Y S", where X is the column, Y the row and S the new state
+     */
+	@Override
+	public String toString() {
+		return col + " " + row + " " + state;
+	}
+}
@@ -0,0 +1,23 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.List;
+
+/**
+ * A listener to which a Board reports the squares modified by each move, e.g. to push them to
+ * the players watching the board. See Board.setChangeListener.
+ */
+public interface ChangeListener {
+
+    /**
+     * Receive the squares modified by one move. Called while the board holds the locks of the
+     * squares the move touched, so it must not block for long; in particular it must not wait
+     * for I/O. Moves touching a common square are reported in the order they are made, and
+     * moves touching disjoint squares may be reported concurrently.
+     * @param changes new state of each square modified by the move, in the order they were
+     *        modified, at least one; the list is read only and valid only during the call
+     */
+	void changed(List<Change> changes);
+}
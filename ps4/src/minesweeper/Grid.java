@@ -0,0 +1,443 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * A mutable data type representing the squares of a minesweeper board, packed one byte per
+ * square into a single flat array.
+ */
+class Grid {
+
+	/** Mask of the bomb count shown by a dug square. */
+	static final int COUNT = 0x0F;
+	/** Bit set if the square contains a bomb. */
+	static final int BOMB = 0x10;
+	/** Bit set if the square is flagged. */
+	static final int FLAGGED = 0x20;
+	/** Bit set if the square is dug. */
+	static final int DUG = 0x40;
+	/** Bit set while an operation has planned to dig the square. */
+	static final int PENDING = 0x80;
+	/** Number of squares, rounded down to whole rows, in each band of a random grid. */
+	private static final int BAND_SQUARES = 1 << 16;
+
+	private final int rows;
+	private final int cols;
+	private final byte[] cells;
+	private final byte[] bombsNearby;
+	private final byte[][] rendered;
+	private final boolean[] dirty;
+
+    // Abstraction function
+	//     represent a rows x cols grid of squares, where the square at (row, col) is described
+	//     by cells[row * cols + col]: BOMB bit for a bomb, FLAGGED bit for flagged, DUG bit for
+	//     dug, and the COUNT bits for the bomb count shown by a dug square. The PENDING bit
+	//     marks an untouched square that an operation in progress is about to dig.
+	//     bombsNearby[row * cols + col] is the number of bombs in the block of up to 3x3
+	//     squares centered on (row, col), including the square itself.
+	//     rendered[row], unless dirty[row], is the row's states encoded as ASCII, each followed
+	//     by a space except the last, which is followed by a newline.
+	// Rep invariant
+	//     cells.length == bombsNearby.length == rows * cols
+	//     each bombsNearby entry equals the number of BOMB bits set in its block
+	//     rendered.length == dirty.length == rows, and each rendered row has length 2 * cols,
+	//     or is null if the row is dirty and was never rendered
+	//     for each square: FLAGGED and DUG are never both set, COUNT is 0 unless DUG is set,
+	//     COUNT <= 8, and PENDING is only set on an untouched square
+	// Rep exposure
+	//     rows and cols are immutable; cells, bombsNearby, rendered and dirty are mutable arrays
+	//     that are never exposed to a client. renderRow returns a rendered row, which is
+	//     never modified afterwards: a dirty row is rendered into a new array.
+	// Thread safety
+	//     Grid objects are package-private and can only be called by instance methods of a
+	//     Board object. Board only reads or writes a square while holding the tile lock that
+	//     guards it, and only renders rows while holding every tile lock. A rendered row is
+	//     immutable once returned, so it may be read by any thread it is safely published to
+	//     after the locks are released. Concurrent writers
+	//     in different tiles of the same row may both set dirty[row], which is a benign race
+	//     since they both write true. random fills and counts the bands of a new grid in
+	//     parallel before returning it, each band writing only its own squares, and the end of
+	//     the parallel stream happens-before its caller continues.
+
+    /**
+     * Create a grid of untouched squares with no bombs.
+     * @param rows number of rows in the grid, requires rows > 0
+     * @param cols number of columns in the grid, requires cols > 0
+     */
+	Grid(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+		this.cells = new byte[Math.multiplyExact(rows, cols)];
+		this.bombsNearby = new byte[cells.length];
+		this.rendered = new byte[rows][];
+		this.dirty = new boolean[rows];
+		Arrays.fill(dirty, true);
+		checkRep();
+	}
+
+    /**
+     * Create a grid from squares packed as by copyCells.
+     * @param rows number of rows in the grid, requires rows > 0
+     * @param cols number of columns in the grid, requires cols > 0
+     * @param packed the squares, row by row, one byte each as described by the constants of
+     *        this class
+     * @throws IllegalArgumentException if packed does not have rows * cols squares, or one of
+     *         them is not a valid square or is marked PENDING
+     */
+	Grid(int rows, int cols, byte[] packed) {
+		this(rows, cols);
+		if (packed.length != cells.length) {
+			throw new IllegalArgumentException("expected " + cells.length + " squares, found " + packed.length);
+		}
+		for (int index = 0; index < cells.length; index++) {
+			int cell = packed[index];
+			if ((cell & (FLAGGED | DUG)) == (FLAGGED | DUG) || (cell & PENDING) != 0
+					|| (cell & COUNT) > 8 || ((cell & DUG) == 0 && (cell & COUNT) != 0)) {
+				throw new IllegalArgumentException("invalid square " + index + ": " + cell);
+			}
+			cells[index] = (byte) cell;
+			if ((cell & BOMB) != 0) {
+				addNearby(index / cols, index % cols, 1);
+			}
+		}
+	}
+
+    /**
+     * Create a grid of untouched squares, each containing a bomb with probability density.
+     * The rows are split into bands of about BAND_SQUARES squares, and the bombs of each band
+     * are drawn from its own generator, split in band order from a SplittableRandom seeded
+     * with seed, so the grid depends only on its size, seed and density, whether or not the
+     * bands are filled in parallel.
+     * @param rows number of rows in the grid, requires rows > 0
+     * @param cols number of columns in the grid, requires cols > 0
+     * @param seed seed of the bombs
+     * @param density probability of a bomb in each square, requires 0 <= density <= 1
+     * @param parallel true to fill the bands in parallel, in the common fork-join pool
+     * @return the grid
+     */
+	static Grid random(int rows, int cols, long seed, double density, boolean parallel) {
+		Grid grid = new Grid(rows, cols);
+		int bandRows = Math.max(1, BAND_SQUARES / cols);
+		int bands = (rows + bandRows - 1) / bandRows;
+		SplittableRandom root = new SplittableRandom(seed);
+		SplittableRandom[] generators = new SplittableRandom[bands];
+		for (int band = 0; band < bands; band++) {
+			generators[band] = root.split();
+		}
+		// a bomb iff the top 53 bits of a random long, as a fraction of 2^53, are below density
+		long threshold = (long) (density * (1L << 53));
+		IntStream indices = parallel ? IntStream.range(0, bands).parallel() : IntStream.range(0, bands);
+		indices.forEach(band -> {
+			SplittableRandom generator = generators[band];
+			int end = Math.min(rows, (band + 1) * bandRows) * cols;
+			for (int index = band * bandRows * cols; index < end; index++) {
+				if ((generator.nextLong() >>> 11) < threshold) {
+					grid.cells[index] = BOMB;
+				}
+			}
+		});
+		// counted only once every band is filled, since the blocks of a band's edge rows
+		// reach into the bands next to it
+		indices = parallel ? IntStream.range(0, bands).parallel() : IntStream.range(0, bands);
+		indices.forEach(band -> grid.countNearby(band * bandRows, Math.min(rows, (band + 1) * bandRows)));
+		grid.checkRep();
+		return grid;
+	}
+
+	private void checkRep() {
+		assert cells.length == rows * cols;
+		assert bombsNearby.length == cells.length;
+		assert rendered.length == rows && dirty.length == rows;
+	}
+
+	private void checkSquare(int index) {
+		int cell = cells[index];
+		assert (cell & (FLAGGED | DUG)) != (FLAGGED | DUG);
+		assert (cell & DUG) != 0 || (cell & COUNT) == 0;
+		assert (cell & COUNT) <= 8;
+		assert (cell & PENDING) == 0 || (cell & (FLAGGED | DUG)) == 0;
+	}
+
+    /**
+     * Check the rep invariant of the squares in a rectangle, none of which may be marked
+     * PENDING: the bits of each square, and its bombsNearby entry against the BOMB bits of its
+     * block. A dug square shows its bombsNearby count, or 0 if it was dug on a bomb; it may
+     * still contain a bomb if a cascade dug it.
+     * @param firstRow first row of the rectangle, requires 0 <= firstRow <= lastRow < rows
+     * @param firstCol first column of the rectangle, requires 0 <= firstCol <= lastCol < cols
+     * @param lastRow last row of the rectangle
+     * @param lastCol last column of the rectangle
+     * @return the index of the first square of the rectangle, row by row, that violates the
+     *         invariant, or -1 if none does
+     */
+	int findInvalid(int firstRow, int firstCol, int lastRow, int lastCol) {
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				int index = row * cols + col;
+				int cell = cells[index];
+				int count = cell & COUNT;
+				if ((cell & (FLAGGED | DUG)) == (FLAGGED | DUG) || (cell & PENDING) != 0 || count > 8
+						|| ((cell & DUG) == 0 && count != 0)
+						|| ((cell & DUG) != 0 && count != 0 && count != bombsNearby[index])) {
+					return index;
+				}
+				int nearby = 0;
+				for (int i = Math.max(row - 1, 0); i <= Math.min(row + 1, rows - 1); i++) {
+					for (int j = Math.max(col - 1, 0); j <= Math.min(col + 1, cols - 1); j++) {
+						nearby += (cells[i * cols + j] & BOMB) != 0 ? 1 : 0;
+					}
+				}
+				if (bombsNearby[index] != nearby) {
+					return index;
+				}
+			}
+		}
+		return -1;
+	}
+
+    /**
+     * Copy the packed squares of the grid, row by row, one byte each as described by the
+     * constants of this class.
+     * @param dest array of at least rows() * cols() bytes to copy the squares into
+     */
+	void copyCells(byte[] dest) {
+		System.arraycopy(cells, 0, dest, 0, cells.length);
+	}
+
+    /**
+     * Count the squares with some bits set and others clear, as described by the constants of
+     * this class.
+     * @param mask bits to compare
+     * @param bits value the bits under mask must have
+     * @return number of squares whose bits under mask equal bits
+     */
+	int count(int mask, int bits) {
+		int count = 0;
+		for (byte cell : cells) {
+			if ((cell & mask) == bits) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+    /**
+     * @return number of rows in the grid
+     */
+	int rows() {
+		return rows;
+	}
+
+    /**
+     * @return number of columns in the grid
+     */
+	int cols() {
+		return cols;
+	}
+
+    /**
+     * @return true if the square is neither flagged nor dug
+     */
+	boolean isUntouched(int row, int col) {
+		return (cells[row * cols + col] & (FLAGGED | DUG)) == 0;
+	}
+
+    /**
+     * @return true if the square is flagged
+     */
+	boolean isFlagged(int row, int col) {
+		return (cells[row * cols + col] & FLAGGED) != 0;
+	}
+
+    /**
+     * @return true if the square contains a bomb
+     */
+	boolean hasBomb(int row, int col) {
+		return (cells[row * cols + col] & BOMB) != 0;
+	}
+
+    /**
+     * @return number of bombs in the square and its adjacent squares
+     */
+	int bombsNearby(int row, int col) {
+		return bombsNearby[row * cols + col];
+	}
+
+    /**
+     * Place a bomb in a square, if it does not already contain one.
+     */
+	void setBomb(int row, int col) {
+		int index = row * cols + col;
+		if ((cells[index] & BOMB) == 0) {
+			cells[index] |= BOMB;
+			addNearby(row, col, 1);
+		}
+	}
+
+    /**
+     * Remove the bomb from a square, if any.
+     * @return true if square contained a bomb, false otherwise
+     */
+	boolean clearBomb(int row, int col) {
+		int index = row * cols + col;
+		if ((cells[index] & BOMB) != 0) {
+			cells[index] &= ~BOMB;
+			addNearby(row, col, -1);
+			return true;
+		}
+		return false;
+	}
+
+    /**
+     * Add delta to the bombsNearby entry of a square and each of its adjacent squares.
+     */
+	private void addNearby(int row, int col, int delta) {
+		int maxRow = Math.min(row + 1, rows - 1);
+		int maxCol = Math.min(col + 1, cols - 1);
+		for (int i = Math.max(row - 1, 0); i <= maxRow; i++) {
+			for (int j = Math.max(col - 1, 0); j <= maxCol; j++) {
+				bombsNearby[i * cols + j] += delta;
+			}
+		}
+	}
+
+    /**
+     * Set the bombsNearby entries of the rows from firstRow to lastRow - 1 from the BOMB bits of
+     * the grid, writing no other entries.
+     */
+	private void countNearby(int firstRow, int lastRow) {
+		int[] columnBombs = new int[cols];
+		for (int row = firstRow; row < lastRow; row++) {
+			// bombs in the up to 3 squares of each column centered on row
+			for (int col = 0; col < cols; col++) {
+				int count = 0;
+				for (int i = Math.max(row - 1, 0); i <= Math.min(row + 1, rows - 1); i++) {
+					count += (cells[i * cols + col] & BOMB) != 0 ? 1 : 0;
+				}
+				columnBombs[col] = count;
+			}
+			int sum = columnBombs[0] + (cols > 1 ? columnBombs[1] : 0);
+			for (int col = 0; col < cols; col++) {
+				bombsNearby[row * cols + col] = (byte) sum;
+				sum += (col + 2 < cols ? columnBombs[col + 2] : 0) - (col > 0 ? columnBombs[col - 1] : 0);
+			}
+		}
+	}
+
+    /**
+     * Mark an untouched square as about to be dug.
+     * @return true if the square was untouched and not already marked
+     */
+	boolean mark(int row, int col) {
+		int index = row * cols + col;
+		if ((cells[index] & (FLAGGED | DUG | PENDING)) == 0) {
+			cells[index] |= PENDING;
+			return true;
+		}
+		return false;
+	}
+
+    /**
+     * Clear the marks set by mark on every square of a rectangle.
+     * @param firstRow first row of the rectangle
+     * @param firstCol first column of the rectangle
+     * @param lastRow last row of the rectangle, inclusive
+     * @param lastCol last column of the rectangle, inclusive
+     */
+	void clearMarks(int firstRow, int firstCol, int lastRow, int lastCol) {
+		for (int i = firstRow; i <= lastRow; i++) {
+			for (int index = i * cols + firstCol; index <= i * cols + lastCol; index++) {
+				cells[index] &= ~PENDING;
+			}
+		}
+	}
+
+    /**
+     * Modify the state of an untouched square to dug, clearing its mark if any.
+     * @param bombCount number of bombs to show in the square, requires 0 <= bombCount <= 8
+     */
+	void dig(int row, int col, int bombCount) {
+		int index = row * cols + col;
+		assert (cells[index] & (FLAGGED | DUG)) == 0;
+		cells[index] = (byte) ((cells[index] & ~PENDING) | DUG | bombCount);
+		dirty[row] = true;
+		checkSquare(index);
+	}
+
+    /**
+     * For a dug square showing a bomb count between 1 - 8, reduce the count by 1.
+     * @return true if state has been modified and false otherwise
+     */
+	boolean updateState(int row, int col) {
+		int index = row * cols + col;
+		if ((cells[index] & DUG) != 0 && (cells[index] & COUNT) != 0) {
+			cells[index]--;
+			dirty[row] = true;
+			checkSquare(index);
+			return true;
+		}
+		return false;
+	}
+
+    /**
+     * flag an untouched square
+     */
+	void flag(int row, int col) {
+		int index = row * cols + col;
+		cells[index] |= FLAGGED;
+		dirty[row] = true;
+		checkSquare(index);
+	}
+
+    /**
+     * deflag a flagged square
+     */
+	void deflag(int row, int col) {
+		int index = row * cols + col;
+		cells[index] &= ~FLAGGED;
+		dirty[row] = true;
+		checkSquare(index);
+	}
+
+    /**
+     * Return the character representing a square's state: '-' for untouched, 'F' for flagged,
+     * ' ' for dug with no bomb in adjacent squares, '1' - '8' for dug with that many bombs in
+     * adjacent squares.
+     */
+	char stateOf(int row, int col) {
+		int cell = cells[row * cols + col];
+		if ((cell & DUG) != 0) {
+			int count = cell & COUNT;
+			return count == 0 ? ' ' : (char) ('0' + count);
+		}
+		return (cell & FLAGGED) != 0 ? 'F' : '-';
+	}
+
+    /**
+     * Return a row of the grid encoded as ASCII: the state of each square, as given by stateOf,
+     * followed by a space, except the last one which is followed by a newline. The encoding is
+     * cached and only redone, into a new array, if a square in the row has changed since the
+     * last call.
+     * @param row the row to render
+     * @return the encoded row, of length 2 * cols(); must not be modified by the caller, and is
+     *         never modified by the grid
+     */
+	byte[] renderRow(int row) {
+		byte[] line = rendered[row];
+		if (dirty[row]) {
+			line = new byte[2 * cols];
+			for (int j = 0; j < cols; j++) {
+				line[2 * j] = (byte) stateOf(row, j);
+				line[2 * j + 1] = j < cols - 1 ? (byte) ' ' : (byte) '\n';
+			}
+			rendered[row] = line;
+			dirty[row] = false;
+		}
+		return line;
+	}
+}
@@ -0,0 +1,26 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+/**
+ * A log to which a Board reports the moves made on it, e.g. to journal them.
+ * See Board.setMoveLog.
+ */
+public interface MoveLog {
+
+	/** The kinds of move. */
+	public enum Kind {
+		DIG, FLAG, DEFLAG
+	}
+
+    /**
+     * Record a move made on the board. Called while the board holds the locks of the squares the
+     * move touched, so it must not block for long; in particular it must not wait for I/O.
+     * @param move number of the move, as given by the board's moves() just after it was made
+     * @param kind kind of the move
+     * @param row the row of the square moved on (start at 0 from top-left corner)
+     * @param col the column of the square moved on (start at 0 from top-left corner)
+     */
+	void append(long move, Kind kind, int row, int col);
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The binary snapshot format of a board, written by Board.save and read by Board.load. All
+ * integers are big-endian:
+ * <pre>
+ *   SNAPSHOT ::= MAGIC VERSION ROWS COLS MOVES BOMBS STATES CHECKSUM
+ *   MAGIC ::= "MSWP"
+ *   VERSION ::= 2-byte unsigned int, currently 2
+ *   ROWS ::= 4-byte int
+ *   COLS ::= 4-byte int
+ *   MOVES ::= 8-byte int, absent in version 1
+ *   BOMBS ::= ceil(ROWS * COLS / 8) bytes
+ *   STATES ::= ceil(ROWS * COLS / 2) bytes
+ *   CHECKSUM ::= 4-byte CRC-32 of every preceding byte
+ * </pre>
+ * Squares are numbered row by row from 0. BOMBS holds the bit of square i, set iff it contains
+ * a bomb, at bit (i % 8) of byte (i / 8), counting from the least significant bit. STATES holds
+ * the 4-bit state of square i in the low half of byte (i / 2) if i is even, and in the high
+ * half otherwise: 0 - 8 for a dug square showing that count, UNTOUCHED or FLAGGED.
+ * Unused bits are 0. MOVES is the number of moves made on the board, 0 if absent.
+ */
+class Snapshot {
+
+	/** The bytes "MSWP". */
+	static final int MAGIC = 0x4D535750;
+	/** Version of the format written. */
+	static final int VERSION = 2;
+	/** Oldest version of the format read. */
+	static final int MIN_VERSION = 1;
+	/** State of an untouched square. */
+	static final int UNTOUCHED = 9;
+	/** State of a flagged square. */
+	static final int FLAGGED = 10;
+
+	private final Grid grid;
+	private final long moves;
+
+    // Abstraction function
+	//     represent a snapshot read from a stream, of the squares grid of a board on which
+	//     moves moves had been made
+	// Rep invariant
+	//     moves >= 0
+	// Rep exposure
+	//     grid is mutable, and is handed over to the board made from the snapshot.
+	// Thread safety
+	//     Snapshot objects are confined to the thread loading a board.
+
+	private Snapshot(Grid grid, long moves) {
+		this.grid = grid;
+		this.moves = moves;
+		checkRep();
+	}
+
+	private void checkRep() {
+		assert moves >= 0;
+	}
+
+    /**
+     * @return the squares of the snapshot, to be owned by one board
+     */
+	Grid grid() {
+		return grid;
+	}
+
+    /**
+     * @return the number of moves made on the board of the snapshot
+     */
+	long moves() {
+		return moves;
+	}
+
+    /**
+     * Write a snapshot of a grid's squares.
+     * @param out stream to write to; it is flushed but not closed
+     * @param rows number of rows of the grid
+     * @param cols number of columns of the grid
+     * @param moves number of moves made on the board, requires moves >= 0
+     * @param cells squares of the grid, packed as by Grid.copyCells, none of them PENDING
+     * @throws IOException if the stream cannot be written
+     */
+	static void write(OutputStream out, int rows, int cols, long moves, byte[] cells) throws IOException {
+		byte[] bombs = new byte[(int) ((cells.length + 7L) / 8)];
+		byte[] states = new byte[(int) ((cells.length + 1L) / 2)];
+		for (int i = 0; i < cells.length; i++) {
+			int cell = cells[i];
+			if ((cell & Grid.BOMB) != 0) {
+				bombs[i >> 3] |= 1 << (i & 7);
+			}
+			int state = (cell & Grid.DUG) != 0 ? cell & Grid.COUNT
+					: (cell & Grid.FLAGGED) != 0 ? FLAGGED : UNTOUCHED;
+			states[i >> 1] |= state << ((i & 1) << 2);
+		}
+		CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+		DataOutputStream data = new DataOutputStream(checked);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeInt(rows);
+		data.writeInt(cols);
+		data.writeLong(moves);
+		data.write(bombs);
+		data.write(states);
+		data.writeInt((int) checked.getChecksum().getValue());
+		data.flush();
+	}
+
+    /**
+     * Read a snapshot written by write, of this or an older version.
+     * @param in stream to read from, positioned at the start of the snapshot; it is not closed
+     * @return the snapshot
+     * @throws IOException if the stream cannot be read, or does not hold a snapshot of a
+     *         supported version with a matching checksum and valid squares
+     */
+	static Snapshot read(InputStream in) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+		DataInputStream data = new DataInputStream(checked);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("not a board snapshot");
+		}
+		int version = data.readUnsignedShort();
+		if (version < MIN_VERSION || version > VERSION) {
+			throw new IOException("unsupported board snapshot version " + version);
+		}
+		int rows = data.readInt();
+		int cols = data.readInt();
+		long moves = version >= 2 ? data.readLong() : 0;
+		if (moves < 0) {
+			throw new IOException("invalid board snapshot move count: " + moves);
+		}
+		if (rows <= 0 || cols <= 0 || (long) rows * cols > Integer.MAX_VALUE) {
+			throw new IOException("invalid board snapshot size: " + cols + " columns by " + rows + " rows");
+		}
+		int squares = rows * cols;
+		byte[] bombs = new byte[(int) ((squares + 7L) / 8)];
+		byte[] states = new byte[(int) ((squares + 1L) / 2)];
+		data.readFully(bombs);
+		data.readFully(states);
+		int expected = (int) checked.getChecksum().getValue();
+		if (data.readInt() != expected) {
+			throw new IOException("board snapshot checksum mismatch");
+		}
+
+		byte[] cells = new byte[squares];
+		for (int i = 0; i < squares; i++) {
+			int state = (states[i >> 1] >> ((i & 1) << 2)) & 0x0F;
+			int cell = state <= 8 ? Grid.DUG | state
+					: state == FLAGGED ? Grid.FLAGGED
+					: state == UNTOUCHED ? 0 : -1;
+			if (cell < 0) {
+				throw new IOException("invalid state " + state + " of square " + i + " in board snapshot");
+			}
+			if ((bombs[i >> 3] & (1 << (i & 7))) != 0) {
+				cell |= Grid.BOMB;
+			}
+			cells[i] = (byte) cell;
+		}
+		return new Snapshot(new Grid(rows, cols, cells), moves);
+	}
+}
@@ -0,0 +1,267 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A set of locks striping a minesweeper board into square tiles, so that operations on
+ * squares in disjoint tiles can proceed in parallel.
+ */
+class TileLocks {
+
+	private final int rows;
+	private final int cols;
+	private final int tileSize;
+	private final int tileCols;
+	private final ReentrantLock[] locks;
+
+    // Abstraction function
+	//     represent the locks of a rows x cols board cut into tiles of tileSize x tileSize
+	//     squares (smaller at the bottom and right edges). Tiles are numbered in row-major
+	//     order, and locks[t] guards the squares of tile t.
+	// Rep invariant
+	//     tileSize > 0
+	//     tileCols == ceil(cols / tileSize), locks.length == ceil(rows / tileSize) * tileCols
+	// Rep exposure
+	//     all fields are private and final; locks is never exposed to a client.
+	// Thread safety
+	//     all fields are final and the locks are threadsafe. Deadlock is avoided because a
+	//     Claim only blocks on a tile with a greater number than every tile it holds, and
+	//     otherwise only tries the lock.
+
+    /**
+     * Create the locks for a board.
+     * @param rows number of rows in the board, requires rows > 0
+     * @param cols number of columns in the board, requires cols > 0
+     * @param tileSize number of rows and columns of squares in a tile, requires tileSize > 0;
+     *        a tileSize no smaller than rows and cols gives a single lock for the whole board
+     */
+	TileLocks(int rows, int cols, int tileSize) {
+		this.rows = rows;
+		this.cols = cols;
+		this.tileSize = tileSize;
+		this.tileCols = (cols - 1) / tileSize + 1;
+		this.locks = new ReentrantLock[Math.multiplyExact((rows - 1) / tileSize + 1, tileCols)];
+		for (int t = 0; t < locks.length; t++) {
+			locks[t] = new ReentrantLock();
+		}
+		checkRep();
+	}
+
+	private void checkRep() {
+		assert tileSize > 0;
+		assert tileCols == (cols - 1) / tileSize + 1;
+		assert locks.length == ((rows - 1) / tileSize + 1) * tileCols;
+	}
+
+    /**
+     * @return the number of the tile containing the square at (row, col)
+     */
+	int tileOf(int row, int col) {
+		return (row / tileSize) * tileCols + col / tileSize;
+	}
+
+    /**
+     * @return the first row of a tile
+     */
+	int firstRow(int tile) {
+		return (tile / tileCols) * tileSize;
+	}
+
+    /**
+     * @return the first column of a tile
+     */
+	int firstCol(int tile) {
+		return (tile % tileCols) * tileSize;
+	}
+
+    /**
+     * @return the number of rows and columns of squares in a full tile
+     */
+	int tileSize() {
+		return tileSize;
+	}
+
+    /**
+     * @param timed true if the claim should time how long it waits for and holds its tiles
+     * @return a new claim holding no tiles, for use by a single thread
+     */
+	Claim newClaim(boolean timed) {
+		return new Claim(timed);
+	}
+
+    /**
+     * @return number of tiles, 1 if a single lock guards the whole board
+     */
+	int tiles() {
+		return locks.length;
+	}
+
+    /**
+     * @return true if the current thread holds every tile
+     */
+	boolean holdsAll() {
+		for (ReentrantLock lock : locks) {
+			if ( ! lock.isHeldByCurrentThread()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+    /**
+     * Acquire every tile, in increasing order.
+     */
+	void lockAll() {
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+		}
+	}
+
+    /**
+     * Release every tile acquired by lockAll.
+     */
+	void unlockAll() {
+		for (int t = locks.length - 1; t >= 0; t--) {
+			locks[t].unlock();
+		}
+	}
+
+    /**
+     * The set of tiles held by one operation of one thread.
+     */
+	class Claim {
+
+		private int[] held = new int[4];
+		private int size = 0;
+		private final boolean timed;
+		private long waitNanos = 0;
+		private boolean started = false;
+		private long startNanos = 0;
+
+	    // Abstraction function
+		//     represent the tiles held[0..size-1] locked by the thread using this claim. If
+		//     timed, the claim has waited waitNanos for tiles locked by other threads, and
+		//     has held tiles since startNanos iff started.
+		// Rep invariant
+		//     held[0..size-1] is strictly increasing and each of its tiles is locked by the
+		//     thread using this claim
+		//     waitNanos >= 0; waitNanos == 0 and ! started if ! timed
+		// Thread safety
+		//     a Claim is confined to the thread that created it
+
+		private Claim(boolean timed) {
+			this.timed = timed;
+		}
+
+	    /**
+	     * Make sure this claim holds a tile. Blocks if the tile is greater than every tile
+	     * held, and otherwise only tries to lock it.
+	     * @param tile the tile to acquire
+	     * @return true if this claim now holds the tile, false if acquiring it could
+	     *         deadlock, in which case the caller must undo its work and call restartWith
+	     */
+		boolean acquire(int tile) {
+			int position = Arrays.binarySearch(held, 0, size, tile);
+			if (position >= 0) {
+				return true;
+			}
+			if (size == 0 || tile > held[size - 1]) {
+				lock(tile);
+			} else if ( ! locks[tile].tryLock()) {
+				return false;
+			}
+			insert(-position - 1, tile);
+			if (timed && ! started) {
+				started = true;
+				startNanos = System.nanoTime();
+			}
+			return true;
+		}
+
+	    /**
+	     * Release every tile held, then reacquire them together with one more tile, in
+	     * increasing order.
+	     * @param tile the tile that acquire failed to take
+	     */
+		void restartWith(int tile) {
+			for (int i = size - 1; i >= 0; i--) {
+				locks[held[i]].unlock();
+			}
+			int position = Arrays.binarySearch(held, 0, size, tile);
+			if (position < 0) {
+				insert(-position - 1, tile);
+			}
+			for (int i = 0; i < size; i++) {
+				lock(held[i]);
+			}
+		}
+
+	    /**
+	     * Lock a tile, blocking until it is free, and add the time blocked to waitNanos if
+	     * timed. Only reads the clock if the tile is locked by another thread.
+	     */
+		private void lock(int tile) {
+			if ( ! timed) {
+				locks[tile].lock();
+			} else if ( ! locks[tile].tryLock()) {
+				long start = System.nanoTime();
+				locks[tile].lock();
+				waitNanos += System.nanoTime() - start;
+			}
+		}
+
+	    /**
+	     * @return nanoseconds this claim waited for tiles locked by other threads, if timed,
+	     *         otherwise 0
+	     */
+		long waitNanos() {
+			return waitNanos;
+		}
+
+	    /**
+	     * @return nanoseconds since this claim first held a tile, if timed and it has held one,
+	     *         otherwise 0
+	     */
+		long holdNanos() {
+			return started ? System.nanoTime() - startNanos : 0;
+		}
+
+	    /**
+	     * Release every tile held.
+	     */
+		void releaseAll() {
+			for (int i = size - 1; i >= 0; i--) {
+				locks[held[i]].unlock();
+			}
+			size = 0;
+		}
+
+	    /**
+	     * @return the number of tiles held
+	     */
+		int size() {
+			return size;
+		}
+
+	    /**
+	     * @param i index of a tile held, requires 0 <= i < size()
+	     * @return the i-th smallest tile held
+	     */
+		int get(int i) {
+			return held[i];
+		}
+
+		private void insert(int position, int tile) {
+			if (size == held.length) {
+				held = Arrays.copyOf(held, size * 2);
+			}
+			System.arraycopy(held, position, held, position + 1, size - position);
+			held[position] = tile;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary protocol of a MinesweeperServer, which a connection may switch to from the text
+ * protocol with the "binary" command. Every message in either direction is a frame, according
+ * to the grammar:
+ * <pre>
+ *   FRAME ::= LENGTH OPCODE PAYLOAD
+ *   LENGTH ::= INT32
+ * </pre>
+ * where LENGTH is the number of bytes of OPCODE and PAYLOAD, OPCODE is one byte, and INT32 is
+ * a 4-byte big-endian signed integer. A client sends frames of at most MAX_REQUEST_LENGTH
+ * bytes:
+ * <pre>
+ *   LOOK ::= 0x01
+ *   DIG ::= 0x02 X Y
+ *   FLAG ::= 0x03 X Y
+ *   DEFLAG ::= 0x04 X Y
+ *   TEXT ::= 0x05 UTF8
+ *   X ::= INT32
+ *   Y ::= INT32
+ * </pre>
+ * where UTF8 is any other command of the text protocol, such as "join ROOM", "help" or "bye",
+ * encoded in UTF-8 without a line terminator. The server sends:
+ * <pre>
+ *   BOARD ::= 0x81 FLAGS COLUMNS ROWS CELLS
+ *   TEXT ::= 0x82 UTF8
+ *   FLAGS ::= 0x00 | 0x01
+ *   COLUMNS ::= INT32
+ *   ROWS ::= INT32
+ * </pre>
+ * A BOARD is the board as shown by look, in the reply to LOOK, or to DIG, FLAG and DEFLAG
+ * outside delta mode. Its CELLS are the states of the squares, row by row, packed two to a
+ * byte, the first in the high four bits: 0 to 8 for a dug square with that many neighbor
+ * bombs, 9 for an untouched square and 10 for a flagged one, with the last low four bits 0 if
+ * the number of squares is odd. If FLAGS is 0x01, CELLS are compressed by Deflater in the
+ * zlib format. A TEXT is any other message of the text protocol, including "BOOM!", replies
+ * to TEXT frames, and messages pushed to the player, encoded in UTF-8 without a line
+ * terminator.
+ */
+class Frames {
+
+    /** Most bytes of OPCODE and PAYLOAD in a frame sent by a client. */
+    static final int MAX_REQUEST_LENGTH = 1 << 16;
+
+    static final byte LOOK = 0x01;
+    static final byte DIG = 0x02;
+    static final byte FLAG = 0x03;
+    static final byte DEFLAG = 0x04;
+    static final byte TEXT = 0x05;
+
+    static final byte BOARD_REPLY = (byte) 0x81;
+    static final byte TEXT_REPLY = (byte) 0x82;
+
+    /** FLAGS bit set if the CELLS of a BOARD are deflated. */
+    static final int DEFLATED = 0x01;
+
+    private static final int UNTOUCHED_CELL = 9;
+    private static final int FLAGGED_CELL = 10;
+    /** Bytes of FLAGS, COLUMNS and ROWS. */
+    private static final int BOARD_HEADER_LENGTH = 1 + 4 + 4;
+
+    // Frames is a utility class of static methods, never instantiated.
+    private Frames() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * Parse the OPCODE and PAYLOAD of a frame sent by a client.
+     *
+     * @param frame OPCODE and PAYLOAD, without LENGTH
+     * @return the request, which has type INVALID if the frame matches no client frame of the
+     *         grammar, or is a TEXT whose command is invalid
+     */
+    static Request parse(byte[] frame) {
+        if (frame.length == 0) {
+            return Request.invalid();
+        }
+        ByteBuffer payload = ByteBuffer.wrap(frame, 1, frame.length - 1);
+        switch (frame[0]) {
+        case LOOK:
+            return payload.hasRemaining() ? Request.invalid() : Request.look();
+        case DIG:
+            return move(Request.Type.DIG, payload);
+        case FLAG:
+            return move(Request.Type.FLAG, payload);
+        case DEFLAG:
+            return move(Request.Type.DEFLAG, payload);
+        case TEXT:
+            return Request.parse(new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8));
+        default:
+            return Request.invalid();
+        }
+    }
+
+    /**
+     * Parse the X and Y of a DIG, FLAG or DEFLAG frame.
+     */
+    private static Request move(Request.Type type, ByteBuffer payload) {
+        if (payload.remaining() != 8) {
+            return Request.invalid();
+        }
+        return Request.move(type, payload.getInt(), payload.getInt());
+    }
+
+    /**
+     * Read a frame sent by a client.
+     *
+     * @param in stream from the client
+     * @return OPCODE and PAYLOAD of the frame, without LENGTH, or null if the stream ended
+     *         before a frame
+     * @throws IOException if the stream cannot be read, ends inside a frame, or a frame is
+     *         longer than MAX_REQUEST_LENGTH or empty
+     */
+    static byte[] read(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        if (length <= 0 || length > MAX_REQUEST_LENGTH) {
+            throw new IOException("frame length " + length + " out of range");
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Read a frame sent by a client if it has been received whole, without blocking.
+     *
+     * @param in stream from the client, which must support mark and reset
+     * @return OPCODE and PAYLOAD of the frame, without LENGTH, or null if it has not been
+     *         received whole
+     * @throws IOException if the stream cannot be read, or the frame is longer than
+     *         MAX_REQUEST_LENGTH or empty
+     */
+    static byte[] readReceived(DataInputStream in) throws IOException {
+        if (in.available() < 4) {
+            return null;
+        }
+        in.mark(4);
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_REQUEST_LENGTH) {
+            throw new IOException("frame length " + length + " out of range");
+        }
+        if (in.available() < length) {
+            in.reset();
+            return null;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Encode a client frame with an opcode and no payload.
+     *
+     * @param opcode OPCODE of the frame
+     * @return the frame, with LENGTH
+     */
+    static byte[] request(byte opcode) {
+        return ByteBuffer.allocate(4 + 1).putInt(1).put(opcode).array();
+    }
+
+    /**
+     * Encode a DIG, FLAG or DEFLAG client frame.
+     *
+     * @param opcode DIG, FLAG or DEFLAG
+     * @param x column of the square
+     * @param y row of the square
+     * @return the frame, with LENGTH
+     */
+    static byte[] request(byte opcode, int x, int y) {
+        return ByteBuffer.allocate(4 + 1 + 8).putInt(1 + 8).put(opcode).putInt(x).putInt(y).array();
+    }
+
+    /**
+     * Encode a TEXT frame.
+     *
+     * @param opcode TEXT for a client frame, or TEXT_REPLY for a server frame
+     * @param text command or message of the text protocol, without a line terminator
+     * @return the frame, with LENGTH
+     */
+    static byte[] text(byte opcode, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + 1 + utf8.length).putInt(1 + utf8.length).put(opcode).put(utf8).array();
+    }
+
+    /**
+     * Encode a BOARD frame.
+     *
+     * @param board the board as shown by look: rows of states separated by "\n", each state
+     *              followed by a space except the last of its row
+     * @param columns number of columns of the board, requires columns > 0
+     * @param deflate true if the cells should be deflated when that makes them shorter
+     * @return the frame, with LENGTH
+     */
+    static byte[] board(String board, int columns, boolean deflate) {
+        int squares = (board.length() + 1) / 2;
+        byte[] cells = new byte[(squares + 1) / 2];
+        for (int k = 0; k < squares; k++) {
+            int cell = cellOf(board.charAt(2 * k));
+            cells[k / 2] |= (k % 2 == 0) ? cell << 4 : cell;
+        }
+        int flags = 0;
+        if (deflate) {
+            byte[] deflated = deflate(cells);
+            if (deflated.length < cells.length) {
+                cells = deflated;
+                flags = DEFLATED;
+            }
+        }
+        int length = 1 + BOARD_HEADER_LENGTH + cells.length;
+        return ByteBuffer.allocate(4 + length).putInt(length).put(BOARD_REPLY).put((byte) flags)
+                .putInt(columns).putInt(squares / columns).put(cells).array();
+    }
+
+    /**
+     * @param state state of a square as shown by look
+     * @return the cell of the state in CELLS
+     */
+    private static int cellOf(char state) {
+        switch (state) {
+        case '-':
+            return UNTOUCHED_CELL;
+        case 'F':
+            return FLAGGED_CELL;
+        case ' ':
+            return 0;
+        default:
+            return state - '0';
+        }
+    }
+
+    /**
+     * @return bytes compressed by a Deflater at its fastest level, in the zlib format
+     */
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 8 + 64);
+            byte[] buffer = new byte[8192];
+            while ( ! deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read a frame sent by a server, as a client does.
+     *
+     * @param in stream from the server
+     * @return OPCODE and PAYLOAD of the frame, without LENGTH
+     * @throws IOException if the stream cannot be read or ends inside or before a frame
+     */
+    static byte[] readReply(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int length = data.readInt();
+        if (length <= 0) {
+            throw new IOException("frame length " + length + " out of range");
+        }
+        byte[] frame = new byte[length];
+        data.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Decode a frame sent by a server, as a client does.
+     *
+     * @param frame OPCODE and PAYLOAD of a BOARD or TEXT server frame, without LENGTH
+     * @return the message as in the text protocol: the board as shown by look for a BOARD, or
+     *         the text of a TEXT
+     * @throws IOException if the frame matches no server frame of the grammar
+     */
+    static String decodeReply(byte[] frame) throws IOException {
+        if (frame[0] == TEXT_REPLY) {
+            return new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8);
+        }
+        if (frame[0] != BOARD_REPLY || frame.length < 1 + BOARD_HEADER_LENGTH) {
+            throw new IOException("unknown frame " + frame[0]);
+        }
+        ByteBuffer payload = ByteBuffer.wrap(frame, 1, frame.length - 1);
+        int flags = payload.get();
+        int columns = payload.getInt();
+        int rows = payload.getInt();
+        byte[] cells = new byte[payload.remaining()];
+        payload.get(cells);
+        int squares = Math.multiplyExact(rows, columns);
+        if ((flags & DEFLATED) != 0) {
+            cells = inflate(cells, (squares + 1) / 2);
+        }
+        StringBuilder board = new StringBuilder(2 * squares);
+        for (int k = 0; k < squares; k++) {
+            int cell = (k % 2 == 0 ? cells[k / 2] >> 4 : cells[k / 2]) & 0x0F;
+            board.append(cell == UNTOUCHED_CELL ? '-' : cell == FLAGGED_CELL ? 'F' : cell == 0 ? ' ' : (char) ('0' + cell));
+            if (k < squares - 1) {
+                board.append((k + 1) % columns == 0 ? '\n' : ' ');
+            }
+        }
+        return board.toString();
+    }
+
+    /**
+     * @return bytes decompressed by an Inflater from the zlib format
+     * @throws IOException if bytes are not deflated, or do not inflate to length bytes
+     */
+    private static byte[] inflate(byte[] bytes, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            byte[] inflated = new byte[length];
+            int count = 0;
+            while (count < length && ! inflater.finished()) {
+                int inflatedNow = inflater.inflate(inflated, count, length - count);
+                if (inflatedNow == 0 && inflater.needsInput()) {
+                    break;
+                }
+                count += inflatedNow;
+            }
+            if (count != length) {
+                throw new IOException("deflated cells are " + count + " bytes, not " + length);
+            }
+            return inflated;
+        } catch (DataFormatException dfe) {
+            throw new IOException("cells are not deflated", dfe);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import minesweeper.Board;
+import minesweeper.MoveLog;
+
+/**
+ * A write-ahead journal of the moves made on a board since its last snapshot. Moves are
+ * appended to memory by the board while it makes them, and written to the journal file in
+ * batches: a player waiting in sync for its move to be on disk either writes and forces every
+ * move appended so far, or waits for the player doing so, so one fsync commits the moves of
+ * many players under load.
+ * <p>
+ * The journal file is a sequence of fixed-size records:
+ * <pre>
+ *   RECORD ::= MOVE KIND PADDING ROW COL CHECKSUM
+ *   MOVE ::= 8-byte int, the number of the move on the board
+ *   KIND ::= 1-byte ordinal of MoveLog.Kind
+ *   PADDING ::= 3 zero bytes
+ *   ROW ::= 4-byte int
+ *   COL ::= 4-byte int
+ *   CHECKSUM ::= 4-byte CRC-32 of the preceding bytes of the record
+ * </pre>
+ * with integers big-endian. A record that is incomplete or fails its checksum, as left by a
+ * crash while writing, ends the journal.
+ */
+class Journal implements MoveLog {
+
+    /** Bytes per record. */
+    static final int RECORD_SIZE = 24;
+    /** Bytes of records buffered in memory before the buffer grows. */
+    private static final int INITIAL_BUFFER_SIZE = RECORD_SIZE * 256;
+
+    private final File file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long appended = 0;
+    private long durable = 0;
+    private boolean syncing = false;
+    private IOException failure = null;
+
+    // Abstraction function
+    //      represent the journal in file, open on channel unless it is closed (channel == null),
+    //      whose records are those written to channel followed by the records in
+    //      pending[0..position-1]. appended records have been appended since the journal was
+    //      opened, of which the first durable are forced to disk. syncing is true iff a thread
+    //      is writing and forcing a batch, or rewriting the file. failure, if not null, is the
+    //      error that broke the journal. spare is an empty buffer swapped with pending by each
+    //      batch.
+    // Rep invariant
+    //      0 <= durable <= appended; pending.position() is a multiple of RECORD_SIZE
+    // Rep exposure
+    //      all fields are private and never exposed to a client.
+    // Thread safety
+    //      every field is guarded by lock, except that while syncing, the batch being written
+    //      and channel are used by the syncing thread alone, without holding lock. lock is a
+    //      ReentrantLock, which virtual threads waiting on synced are not pinned by; append
+    //      never waits for I/O, since it is called while the board holds its tile locks.
+
+    /**
+     * Open a journal, creating its file if needed and erasing any records in it.
+     *
+     * @param file journal file
+     * @throws IOException if the file cannot be opened
+     */
+    Journal(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel.force(true);
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert 0 <= durable && durable <= appended;
+        assert pending.position() % RECORD_SIZE == 0;
+    }
+
+    /**
+     * Replay the records of a journal file on a board: every move numbered above board.moves()
+     * is made again, in the order of the file. Moves at or below it are already on the board.
+     *
+     * @param file journal file; nothing is replayed if it does not exist
+     * @param board board to replay the moves on, whose move log must be null
+     * @return number of moves replayed
+     * @throws IOException if the file cannot be read
+     */
+    static int replay(File file, Board board) throws IOException {
+        if ( ! file.isFile()) {
+            return 0;
+        }
+        int replayed = 0;
+        long base = board.moves();
+        MoveLog.Kind[] kinds = MoveLog.Kind.values();
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[RECORD_SIZE];
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            DataInputStream in = new DataInputStream(stream);
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException eofe) {
+                    break; // end of the journal, or a record cut short by a crash
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                crc.reset();
+                crc.update(record, 0, RECORD_SIZE - 4);
+                long move = buffer.getLong(0);
+                int kind = buffer.get(8);
+                if (buffer.getInt(RECORD_SIZE - 4) != (int) crc.getValue() || kind < 0 || kind >= kinds.length) {
+                    break; // a record torn by a crash
+                }
+                if (move <= base) {
+                    continue;
+                }
+                int row = buffer.getInt(12);
+                int col = buffer.getInt(16);
+                switch (kinds[kind]) {
+                case DIG:
+                    board.dig(row, col, null);
+                    break;
+                case FLAG:
+                    board.flag(row, col, null);
+                    break;
+                case DEFLAG:
+                    board.deflag(row, col, null);
+                    break;
+                default:
+                    throw new AssertionError(kinds[kind]);
+                }
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    @Override
+    public void append(long move, MoveLog.Kind kind, int row, int col) {
+        lock.lock();
+        try {
+            if (pending.remaining() < RECORD_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            int start = pending.position();
+            pending.putLong(move).put((byte) kind.ordinal()).put((byte) 0).putShort((short) 0)
+                   .putInt(row).putInt(col);
+            crc.reset();
+            crc.update(pending.array(), start, RECORD_SIZE - 4);
+            pending.putInt((int) crc.getValue());
+            appended++;
+            checkRep();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every move appended so far is on disk, writing and forcing the pending moves
+     * of every player if no other thread is doing so.
+     *
+     * @throws IOException if the journal cannot be written, now or in an earlier batch; the
+     *                     journal is then broken and no more moves can be made durable
+     */
+    void sync() throws IOException {
+        lock.lock();
+        try {
+            long target = appended;
+            while (durable < target) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                if (channel == null) {
+                    throw new IOException("journal closed: " + file);
+                }
+                syncing = true;
+                ByteBuffer batch = pending;
+                pending = spare;
+                long batchEnd = appended;
+                lock.unlock();
+                try {
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        channel.write(batch);
+                    }
+                    channel.force(false);
+                } catch (IOException ioe) {
+                    failure = ioe;
+                } finally {
+                    lock.lock();
+                    batch.clear();
+                    spare = batch;
+                    syncing = false;
+                    if (failure == null) {
+                        durable = batchEnd;
+                    }
+                    synced.signalAll();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Erase every record of the journal, once the moves they record have been saved in a
+     * snapshot and no more moves are being appended, and close the journal.
+     *
+     * @throws IOException if the journal cannot be erased
+     */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            if (channel != null) {
+                channel.truncate(0);
+                channel.force(true);
+                channel.close();
+                channel = null;
+            }
+            pending.clear();
+            durable = appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Erase the records of the moves numbered at or below a snapshot's count of moves, keeping
+     * those made since. Moves may still be appended meanwhile. The journal file is replaced
+     * atomically, so a crash leaves either the old or the new records.
+     *
+     * @param saved number of moves included in a snapshot now on disk
+     * @throws IOException if the journal cannot be rewritten; the journal then keeps all its
+     *                     records and stays open, unless its file was replaced but could not be
+     *                     reopened, which breaks it
+     */
+    void truncate(long saved) throws IOException {
+        sync();
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (channel == null) {
+                return;
+            }
+            syncing = true; // keeps other threads off channel while it is rewritten
+        } finally {
+            lock.unlock();
+        }
+        FileChannel rewritten = null;
+        boolean replaced = false;
+        try {
+            ByteBuffer written = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+            while (written.hasRemaining() && channel.read(written, written.position()) >= 0) {
+                // read the whole file
+            }
+            written.flip();
+            ByteBuffer kept = ByteBuffer.allocate(written.limit());
+            for (int start = 0; start + RECORD_SIZE <= written.limit(); start += RECORD_SIZE) {
+                if (written.getLong(start) > saved) {
+                    kept.put(written.array(), start, RECORD_SIZE);
+                }
+            }
+            kept.flip();
+            File temporary = new File(file.getPath() + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (kept.hasRemaining()) {
+                    out.write(kept);
+                }
+                out.force(true);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+            FileChannel reopened = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                reopened.position(reopened.size());
+            } catch (IOException | RuntimeException e) {
+                reopened.close();
+                throw e;
+            }
+            rewritten = reopened;
+        } catch (ArithmeticException ae) {
+            throw new IOException("journal too large: " + file, ae);
+        } finally {
+            FileChannel old = null;
+            lock.lock();
+            try {
+                syncing = false;
+                if (rewritten != null) {
+                    old = channel;
+                    channel = rewritten;
+                } else if (replaced) {
+                    failure = new IOException("journal could not be reopened: " + file);
+                } // otherwise the file is untouched, and channel still appends to it
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (old != null) {
+                old.close();
+            }
+        }
+    }
+}
@@ -4,8 +4,16 @@
 package minesweeper.server;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import minesweeper.Board;
 
@@ -20,33 +28,50 @@ public class MinesweeperServer {
     private static final int MAXIMUM_PORT = 65535;
     /** Default square board size. */
     private static final int DEFAULT_SIZE = 10;
+    /** Most characters looked ahead for the end of a line already received. */
+    private static final int MAX_LOOKAHEAD = 8192;
 
     /** Socket for receiving incoming connections. */
     private final ServerSocket serverSocket;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
+    /** Tuning options, including the engine running the connections. */
+    private final ServerOptions options;
     
     private final Board board;
     
-    private int players;
+    private final Rooms rooms;
     
-    private final Object lock = new Object();
+    private final ServerStats stats = new ServerStats();
 
     // Abstraction function
     // 		MinesweeperServer initializes a minesweeper board base on command-line options. 
     //	    MinesweeperServer listens for client connection request and create a new thread
-    //		to handle each client (player). Server maintains the current player count. The
-    //		server would disconnect player if player triggers a boom, unless the server was
-    //		ran in debug mode.
+    //		(a virtual thread if options select that engine) to handle each client (player),
+    //		or hands each client to a selector thread and a pool of workers if options select
+    //		that engine. Server maintains the current player count. The server would
+    //		disconnect player if player triggers a boom, unless the server was ran in debug
+    //		mode. A player may switch its connection to delta mode, in which dig, flag and
+    //		deflag reply with the squares they changed instead of the board, and look at
+    //		a region of the board instead of the whole board.
+    //		board is played on in the main room of rooms, where every player starts; players
+    //		may join other rooms, each with its own board and player count. stats counts
+    //		the players, their commands, the bytes written to them and the moves on the boards
+    //		of rooms, and is registered with the platform MBean server. The requests and replies
+    //		of each player are limited by the rate limits of options. A player may switch its
+    //		connection to the binary protocol of Frames.
     // Rep invariant
-    //		players >= 0
+    //		board is the board of the main room of rooms
     // Rep exposure
-    //		All fields are private. All fields except board are immutable. Board is 
-    //		encapsulated in this object and never exposed to a client.
+    //		All fields are private. All fields except board and rooms are immutable. Board is 
+    //		encapsulated in this object and never exposed to a client. serverSocket is only
+    //		shared with the engine serving it, and rooms and stats with the sessions of the
+    //		players and the engine.
     // Thread Safety
-    //		All fields except board ad players are immutable.
-    //		All access to players are synchronized on Object lock.
-    //		Board is threadsafe based on board's thread safety arguments.
+    //		All fields except board and rooms are immutable.
+    //		rooms is threadsafe based on its thread safety arguments; each room counts its
+    //		players under a ReentrantLock, which a waiting virtual thread is not pinned by.
+    //		Board is threadsafe based on board's thread safety arguments. stats is threadsafe.
 
     /**
      * Make a MinesweeperServer that listens for connections on port.
@@ -56,18 +81,37 @@ public class MinesweeperServer {
      * @throws IOException if an error occurs opening the server socket
      */
     public MinesweeperServer(int port, boolean debug, Board board) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, debug, board, ServerOptions.DEFAULT);
+    }
+
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * 
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param board board played on by every client
+     * @param options tuning options of the server; if they journal moves, the moves journaled for
+     *                the main room are replayed on board
+     * @throws IOException if an error occurs opening the server socket, or recovering the journal
+     */
+    public MinesweeperServer(int port, boolean debug, Board board, ServerOptions options) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        serverSocket = channel.socket();
         this.debug = debug;
         this.board = board;
-        players = 0;
+        this.options = options;
+        this.rooms = new Rooms(board, id -> randomBoard(board.getRows(), board.getColumns(), id, options), options,
+                stats.boards());
+        registerStats();
         checkRep();
     }
     
     private void checkRep() {
     	assert serverSocket != null;
     	assert board != null;
-    	assert players >= 0;
-
+    	assert options != null;
+    	assert rooms.main() != null;
     }
 
     /**
@@ -78,25 +122,31 @@ public class MinesweeperServer {
      *                     (IOExceptions from individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
+        rooms.startEviction();
+        if (options.engine() == ServerOptions.Engine.SELECTOR) {
+            new SelectorEngine(this, serverSocket.getChannel(), options.workers()).serve();
+            return;
+        }
+        ThreadFactory threads = options.engine() == ServerOptions.Engine.VIRTUAL_THREADS
+                ? virtualThreadFactory()
+                : runnable -> new Thread(runnable);
         while (true) {
             // block until a client connects
             Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true); // replies are already flushed once per batch
             
-            synchronized (lock) {
-            	players += 1;
-            }
+            Output out = new Output(stats.counting(socket.getOutputStream()), threads);
+            Session session = newSession(out::notice);
             
-        	new Thread(new Runnable() {
+        	threads.newThread(new Runnable() {
         		public void run() {
         			// handle the client
         			try {
-        				handleConnection(socket);
+        				handleConnection(socket, out, session);
         			} catch (IOException ioe) {
         				ioe.printStackTrace(); // but don't terminate serve()
         			} finally {
-        	            synchronized (lock) {
-        	            	players -= 1;
-        	            }
+        	            session.end();
 						try {
 							socket.close();
 						} catch (IOException e) {
@@ -110,33 +160,105 @@ public class MinesweeperServer {
     }
 
     /**
-     * Handle a single client connection. Returns when client disconnects.
+     * Register the statistics of this server with the platform MBean server, under the name
+     * "minesweeper.server:type=ServerStats,port=PORT". The server runs without JMX if they
+     * cannot be registered.
+     */
+    private void registerStats() {
+        try {
+            ObjectName name = new ObjectName("minesweeper.server:type=ServerStats,port=" + serverSocket.getLocalPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+        } catch (JMException jme) {
+            jme.printStackTrace();
+        }
+    }
+
+    /**
+     * @return statistics of this server, to count the bytes written to players in
+     */
+    ServerStats stats() {
+        return stats;
+    }
+
+    /**
+     * @return the HELLO message for a connected player, counting the players in the main room
+     */
+    String welcome() {
+        return "Welcome to Minesweeper. Board: " + board.getColumns() + " columns by " +
+                board.getRows() + " rows. Players: " + rooms.main().players() + " including you. Type 'help'" +
+                " for help.";
+    }
+
+    /**
+     * Make a factory of virtual threads. Virtual threads are only available from Java 21, while
+     * this server is built for older versions too, so the factory is looked up by reflection.
+     * 
+     * @return a factory of unstarted virtual threads
+     * @throws UnsupportedOperationException if the running Java has no virtual threads
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException roe) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later", roe);
+        }
+    }
+
+    /**
+     * Count a newly connected player in the main room.
+     * 
+     * @param notices sender of messages to the player outside of replies, each followed by a
+     *                line terminator
+     * @return a new Session for the player, which must be ended once the player disconnects
+     */
+    Session newSession(Notices notices) {
+        return new Session(rooms, stats, new RateLimiter(options), debug, notices);
+    }
+
+    /**
+     * Handle a single client connection. Returns when client disconnects. The whole lines the
+     * client sent without waiting for replies, as far as they are already received, are handled
+     * as one batch of at most Session.MAX_BATCH lines, and their replies flushed together. While
+     * requests wait for the rate limits of the connection, no more input is read, so a client
+     * sending faster than its limits is slowed down by TCP flow control. Once the client
+     * switches to the binary protocol, its frames are handled in the same way.
      * 
      * @param socket socket where the client is connected
+     * @param output writer to the socket, shared with the notices of session, and closed
+     *               when the connection ends
+     * @param session protocol state of the client
      * @throws IOException if the connection encounters an error or terminates unexpectedly
      */
-    private void handleConnection(Socket socket) throws IOException {
+    private void handleConnection(Socket socket, Output output, Session session) throws IOException {
     	try(
-			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			Output out = output;
 			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
 		){
-            synchronized (lock) {
-    			out.println("Welcome to Minesweeper. Board: " + board.getColumns() + " columns by " +
-    					board.getRows() + " rows. Players: " + players + " including you. Type 'help'" +
-    					" for help.");
-            }
-			String inputLine, outputLine;
-			while ((inputLine = in.readLine()) != null) {
-				outputLine = handleRequest(inputLine);
-				if (outputLine != "bye") {
-					out.println(outputLine);
-				} else {
-					break;
+			out.write(Collections.singletonList(welcome()), false);
+			List<String> batch = new ArrayList<>();
+			String inputLine;
+			while ( ! session.isClosed() && ! session.isBinary() && (inputLine = in.readLine()) != null) {
+				batch.add(inputLine);
+				while (batch.size() < Session.MAX_BATCH && (inputLine = readReceivedLine(in)) != null) {
+					batch.add(inputLine);
 				}
-				if (outputLine == "BOOM!" && debug == false) {
-					break;
+				List<String> replies = session.handleAll(batch);
+				while (true) {
+					out.write(replies, session.isBinary());
+					if ( ! awaitLimits(session)) {
+						break;
+					}
+					replies = session.handleAll(Collections.emptyList());
 				}
+				batch.clear();
 			}
+			if (session.isBinary()) {
+				// the client sends no frame before it reads the reply switching protocol, so
+				// in has buffered nothing but lines it must not have sent
+				handleFrames(new DataInputStream(new BufferedInputStream(socket.getInputStream())), out, session);
+			}
+			session.end(); // before the client sees the connection closed
     	} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -144,40 +266,75 @@ public class MinesweeperServer {
     }
 
     /**
-     * Handler for client input, performing requested operations and returning an output message.
+     * Handle the frames of a client that switched to the binary protocol, as handleConnection
+     * handles its lines. Returns when client disconnects.
      * 
-     * @param input message from client
-     * @return message to client, or null if none
+     * @param in input from the client, which supports mark and reset
+     * @param out writer to the client, switched to the binary protocol
+     * @param session protocol state of the client
+     * @throws IOException if the connection encounters an error or terminates unexpectedly, or
+     *         the client sends a frame whose LENGTH is out of range
      */
-    private String handleRequest(String input) {
-        String regex = "(look)|(help)|(bye)|"
-                     + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
-        if ( ! input.matches(regex)) {
-        	// invalid input
-            return "Enter command: 'look', 'dig X Y', 'flag X Y', "
-            		+ "'deflag X Y', 'help', or 'bye'.";
+    private static void handleFrames(DataInputStream in, Output out, Session session) throws IOException {
+        List<byte[]> batch = new ArrayList<>();
+        byte[] frame;
+        while ( ! session.isClosed() && (frame = Frames.read(in)) != null) {
+            batch.add(frame);
+            while (batch.size() < Session.MAX_BATCH && (frame = Frames.readReceived(in)) != null) {
+                batch.add(frame);
+            }
+            List<byte[]> replies = session.handleFrames(batch);
+            while (true) {
+                out.writeFrames(replies);
+                if ( ! awaitLimits(session)) {
+                    break;
+                }
+                replies = session.handleFrames(Collections.emptyList());
+            }
+            batch.clear();
         }
-        String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
-            return board.toString();
-        } else if (tokens[0].equals("help")) {
-            return "Enter command: 'look', 'dig X Y', 'flag X Y', "
-            		+ "'deflag X Y', 'help', or 'bye'."; 
-        } else if (tokens[0].equals("bye")) {
-            return "bye";
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (tokens[0].equals("dig")) {
-            	return board.dig(y, x);
-            } else if (tokens[0].equals("flag")) {
-                return board.flag(y, x);
-            } else if (tokens[0].equals("deflag")) {
-                return board.deflag(y, x);
+    }
+
+    /**
+     * Sleep while requests of a session wait for the rate limits of its connection, reading
+     * no input meanwhile.
+     * 
+     * @param session protocol state of a client
+     * @return true if requests waited and must now be run, false if none wait
+     * @throws InterruptedIOException if interrupted while sleeping
+     */
+    private static boolean awaitLimits(Session session) throws InterruptedIOException {
+        long delay = session.delayNanos();
+        if (delay == 0 || session.isClosed()) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("interrupted waiting for rate limits");
+        }
+        return true;
+    }
+
+    /**
+     * Read the next line of input if it has been received whole, without blocking.
+     * 
+     * @param in input from a client
+     * @return the next line, without its line terminator, or null if it has not been received
+     *         whole or is longer than MAX_LOOKAHEAD characters
+     * @throws IOException if the input cannot be read
+     */
+    private static String readReceivedLine(BufferedReader in) throws IOException {
+        in.mark(MAX_LOOKAHEAD + 1);
+        for (int i = 0; i <= MAX_LOOKAHEAD && in.ready(); i++) {
+            int c = in.read();
+            if (c == '\n' || c == '\r') {
+                in.reset();
+                return in.readLine();
             }
         }
-        // Should never get here, make sure to return in each of the cases above
-        throw new UnsupportedOperationException();
+        in.reset();
+        return null;
     }
 
     /**
@@ -185,6 +342,9 @@ public class MinesweeperServer {
      * 
      * <br> Usage:
      *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
+     *                        [--tile SIZE] [--nio [--workers N] | --virtual-threads]
+     *                        [--rooms DIR [--journal]] [--room-idle SECONDS] [--max-rooms N]
+     *                        [--limit COMMAND=LIMIT]... [--output-limit LIMIT] [--throttle delay|reject]
      * 
      * <br> The --debug argument means the server should run in debug mode. The server should disconnect a
      *      client after a BOOM message if and only if the --debug flag was NOT given.
@@ -222,15 +382,94 @@ public class MinesweeperServer {
      * 
      * <br> Note that --file and --size may not be specified simultaneously.
      * 
+     * <br> SIZE for --tile is an optional positive integer. If given, the board is locked in tiles of
+     *      SIZE*SIZE squares so that players digging in different tiles do not wait for each other;
+     *      otherwise a single lock guards the whole board.
+     * <br> E.g. "MinesweeperServer --size 4000,4000 --tile 64" locks the board in 64*64 tiles.
+     * 
+     * <br> The --nio argument means the server should serve all connections from one thread with a
+     *      java.nio Selector, running commands on a fixed pool of N worker threads, instead of running one
+     *      thread per connection. N is an optional positive integer that defaults to the number of
+     *      processors. The text protocol is the same with either engine.
+     * <br> E.g. "MinesweeperServer --nio --workers 8" serves all players with a selector and 8 workers.
+     * 
+     * <br> The --virtual-threads argument means the server should run each connection on its own virtual
+     *      thread instead of a platform thread, so that many mostly idle players need few OS threads. It
+     *      requires Java 21 or later.
+     * 
+     * <br> Note that --nio and --virtual-threads may not be specified simultaneously.
+     * 
+     * <br> Every player starts in the main room, which plays on the board given by --file or --size. A
+     *      player may "join ROOM" to play in another room, which is created with a new random board of the
+     *      same size if it does not exist, and "leave" to return to the main room. A room other than the
+     *      main room that has had no players for SECONDS seconds is written to DIR and read back when a
+     *      player joins it again. DIR is an optional existing directory, by default a new temporary
+     *      directory. SECONDS is an optional non-negative integer, by default 60.
+     * <br> E.g. "MinesweeperServer --rooms /var/tmp/rooms --room-idle 600" evicts rooms idle for ten
+     *      minutes to /var/tmp/rooms.
+     * <br> N is an optional positive integer, by default 1024, limiting the rooms in memory, including the
+     *      main room. A player joining a new room while there are N is told there are too many rooms, until
+     *      idle rooms are evicted.
+     * <br> A player may "checkpoint" its room, saving its board to DIR. Each room, including the main room,
+     *      resumes from the board last saved to DIR, if any, when the server is restarted with the same DIR;
+     *      the main room then ignores --file and --size.
+     * <br> A player may "subscribe" to be pushed the board of its room and then, without asking, an EVENT
+     *      message listing the squares changed by every move of any player, in the format of a DELTA reply.
+     *      Pushed messages are sent apart from the replies, so the board may come before or after the reply
+     *      to subscribe.
+     *      A player that falls more than 4096 changed squares behind is sent the whole board again, and one
+     *      that falls behind again before reading it, or leaves too much of its messages unread, is dropped:
+     *      it is sent DROPPED if its connection has room for it, and may subscribe again.
+     * <br> A player may send "look X Y W H" for only the region of W columns and H rows whose top left square
+     *      is at column X and row Y, clipped to the board: a VIEW line giving the clipped region, followed by
+     *      its rows as shown by look. Only the squares of the region are read, so clients of huge boards pay
+     *      for what is on their screen.
+     * <br> A player may send "stats" for the statistics of the server: the players connected, the commands
+     *      handled by type, the BOOMs, the bytes written to players, and histograms of how long moves and
+     *      looks waited for and held the locks of their boards and of how many squares each dig dug. The
+     *      same statistics are exposed through JMX as minesweeper.server:type=ServerStats,port=PORT.
+     * <br> A player may send "binary", or "binary deflate", and wait for the reply BINARY, or BINARY DEFLATE,
+     *      to switch its connection on the same port to the binary protocol described by Frames: length-prefixed
+     *      frames with opcodes for look, dig, flag and deflag, boards packed four bits per square, and with
+     *      "deflate" boards deflated when that makes them shorter. Other commands and messages are sent as
+     *      TEXT frames.
+     *
+     * <br> The --journal argument means the server should write every dig, flag and deflag ahead to a journal
+     *      in DIR before replying to it, so that a server restarted after a crash with the same DIR recovers
+     *      every move it replied to, on top of the last board saved. The journal of many players is forced to
+     *      disk by one fsync at a time. It requires --rooms.
+     * <br> E.g. "MinesweeperServer --rooms /var/lib/minesweeper --journal" recovers all moves after a crash.
+     * 
+     * <br> The SEED argument of --seed seeds the bombs of the random board of the main room and of every new
+     *      room, so that a server started again with the same SEED, size and DENSITY deals the same boards.
+     *      SEED is a long integer; by default every board has a new seed. The DENSITY argument of --density
+     *      is the probability of a bomb in each square of a random board, between 0 and 1, by default 0.25.
+     * <br> E.g. "MinesweeperServer --size 1000,1000 --seed 42 --density 0.15" replays the same sparse board.
+     * 
+     * <br> The --validate argument sets how often the server checks the rep invariant of its boards, on the
+     *      squares touched by each move: "off" never, by default, "sampled" for one move in 64, and "full" for
+     *      every move. A move that finds the invariant violated fails with an AssertionError.
+     * 
+     * <br> Each --limit argument limits how often each connection may send COMMAND, one of the commands
+     *      above except "bye", or "invalid" for lines matching no command. The --output-limit argument
+     *      limits the bytes of replies sent to each connection; pushed messages are not counted. LIMIT
+     *      is RATE[/BURST]: on average RATE per second, and up to BURST at once, by default one second's
+     *      worth. A request over the limits is delayed until they allow it, reading no more input from its
+     *      connection meanwhile, or rejected with a message if --throttle is "reject". By default nothing
+     *      is limited.
+     * <br> E.g. "MinesweeperServer --limit look=10/20 --output-limit 100000" lets each player look ten times
+     *      a second and be sent 100000 bytes a second.
+     * 
      * @param args arguments as described
      */
     public static void main(String[] args) {
-        // Command-line argument parsing is provided. Do not change this method.
+        // Command-line argument parsing is provided. Options tuning the server are parsed by ServerOptions.
         boolean debug = false;
         int port = DEFAULT_PORT;
         int sizeX = DEFAULT_SIZE;
         int sizeY = DEFAULT_SIZE;
         Optional<File> file = Optional.empty();
+        ServerOptions options = ServerOptions.DEFAULT;
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
@@ -259,7 +498,11 @@ public class MinesweeperServer {
                             throw new IllegalArgumentException("file not found: \"" + file.get() + "\"");
                         }
                     } else {
-                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                        ServerOptions parsed = options.parseOption(flag, arguments);
+                        if (parsed == null) {
+                            throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                        }
+                        options = parsed;
                     }
                 } catch (NoSuchElementException nsee) {
                     throw new IllegalArgumentException("missing argument for " + flag);
@@ -267,14 +510,16 @@ public class MinesweeperServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 }
             }
+            options.checkParsed();
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE] "
+                    + ServerOptions.USAGE);
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            runMinesweeperServer(debug, file, sizeX, sizeY, port, options);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -295,16 +540,245 @@ public class MinesweeperServer {
      * @throws IOException if a network error occurs
      */
     public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port) throws IOException {
+        runMinesweeperServer(debug, file, sizeX, sizeY, port, ServerOptions.DEFAULT);
+    }
+
+    /**
+     * Start a MinesweeperServer running on the specified port, with either a random new board or a
+     * board loaded from a file, tuned by options.
+     * 
+     * @param debug The server will disconnect a client after a BOOM message if and only if debug is false.
+     * @param file If file.isPresent(), start with a board loaded from the specified file,
+     *             according to the input file format defined in the documentation for main(..).
+     * @param sizeX If (!file.isPresent()), start with a random board with width sizeX
+     *              (and require sizeX > 0).
+     * @param sizeY If (!file.isPresent()), start with a random board with height sizeY
+     *              (and require sizeY > 0).
+     * @param port The network port on which the server should listen, requires 0 <= port <= 65535.
+     * @param options tuning options of the server; if its room directory holds a snapshot of the
+     *                main room, the server starts with that board instead
+     * @throws IOException if a network error occurs, or the snapshot of the main room cannot be read
+     */
+    public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port,
+            ServerOptions options) throws IOException {
         
         Board board;
+        File checkpoint = options.roomDirectory() == null ? null
+                : Rooms.snapshotFile(options.roomDirectory(), Rooms.MAIN);
         
-        if (file.isPresent()) {
-        	board = new Board(file.get());
+        if (checkpoint != null && checkpoint.isFile()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(checkpoint))) {
+                board = Board.load(in, options.tileSize());
+            }
+        } else if (file.isPresent()) {
+        	board = new Board(file.get(), options.tileSize());
         } else {
-        	board = new Board (sizeY, sizeX);
+        	board = randomBoard(sizeY, sizeX, Rooms.MAIN, options);
         }
         
-        MinesweeperServer server = new MinesweeperServer(port, debug, board);
+        MinesweeperServer server = new MinesweeperServer(port, debug, board, options);
         server.serve();
     }
+
+    /**
+     * Make a random board for a room, seeded by the seed of options and the room's id if
+     * options have a seed, so that a server restarted with the same seed deals the same board
+     * to each room.
+     * 
+     * @param rows number of rows of the board, requires rows > 0
+     * @param cols number of columns of the board, requires cols > 0
+     * @param room id of the room
+     * @param options options giving the tile size, seed and density of the board
+     * @return a new board of untouched squares
+     */
+    private static Board randomBoard(int rows, int cols, String room, ServerOptions options) {
+        long seed;
+        if ( ! options.seed().isPresent()) {
+            seed = new SplittableRandom().nextLong();
+        } else if (room.equals(Rooms.MAIN)) {
+            seed = options.seed().getAsLong();
+        } else {
+            seed = options.seed().getAsLong() * 31 + room.hashCode();
+        }
+        return new Board(rows, cols, options.tileSize(), seed, options.density());
+    }
+
+    /**
+     * A threadsafe writer of the messages to one client of the thread engines: lines of the
+     * text protocol in the platform's default charset, each followed by the platform's line
+     * separator, or frames once the client switched to the binary protocol. Each message is
+     * written whole under the writer's lock.
+     */
+    private static class Output implements Closeable {
+
+        /** Characters of queued notices above which more notices are refused. */
+        private static final int MAX_PENDING_NOTICES = 1 << 20;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final OutputStream out;
+        private final byte[] lineSeparator = System.lineSeparator().getBytes();
+        private boolean binary = false;
+        private final ReentrantLock queueLock = new ReentrantLock();
+        private final ThreadFactory threads;
+        private final Queue<String> notices = new ArrayDeque<>();
+        private int pendingNotices = 0;
+        private boolean draining = false;
+        private boolean closed = false;
+
+        // Abstraction function
+        //      represent a writer of messages to a client through out, as frames of the
+        //      binary protocol of Frames iff binary. notices are the messages queued outside
+        //      of the replies, totalling pendingNotices characters with the message being
+        //      written, if any, which a thread made by threads writes iff draining. No more
+        //      notices are queued once closed.
+        // Rep invariant
+        //      pendingNotices >= sum of the lengths of notices; draining if notices is not empty
+        // Rep exposure
+        //      all fields are private and never returned.
+        // Thread safety
+        //      out and binary are guarded by lock, a ReentrantLock rather than this object's
+        //      monitor, so that a virtual thread blocked writing to a slow client while holding
+        //      it is not pinned to its carrier thread. notices, pendingNotices, draining and
+        //      closed are guarded by queueLock, which is never held while writing, so queuing
+        //      a notice never waits for the client.
+
+        /**
+         * @param out stream to the client, which is buffered by this writer
+         * @param threads makes the threads writing notices
+         */
+        Output(OutputStream out, ThreadFactory threads) {
+            this.out = new BufferedOutputStream(out);
+            this.threads = threads;
+        }
+
+        /**
+         * Write replies to the client, and flush them.
+         * 
+         * @param lines messages of the text protocol, without their line terminators
+         * @param switchToBinary true if the client uses the binary protocol after these replies
+         * @throws IOException if the messages cannot be written
+         */
+        void write(List<String> lines, boolean switchToBinary) throws IOException {
+            lock.lock();
+            try {
+                for (String line : lines) {
+                    writeMessage(line);
+                }
+                out.flush();
+                binary = switchToBinary;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Write frames of the binary protocol to the client, and flush them.
+         * 
+         * @param frames frames to write, each with its LENGTH
+         * @throws IOException if the frames cannot be written
+         */
+        void writeFrames(List<byte[]> frames) throws IOException {
+            lock.lock();
+            try {
+                for (byte[] frame : frames) {
+                    out.write(frame);
+                }
+                out.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Queue a message to the client outside of the replies to its commands, to be written
+         * and flushed by a thread of its own, unless MAX_PENDING_NOTICES characters or more
+         * are queued already or the writer is closed.
+         * 
+         * @param message message of the text protocol, without its line terminator
+         * @return true if the message was queued
+         */
+        boolean notice(String message) {
+            boolean start;
+            queueLock.lock();
+            try {
+                if (closed || pendingNotices >= MAX_PENDING_NOTICES) {
+                    return false;
+                }
+                notices.add(message);
+                pendingNotices += message.length();
+                start = ! draining;
+                draining = true;
+            } finally {
+                queueLock.unlock();
+            }
+            if (start) {
+                threads.newThread(this::drain).start();
+            }
+            return true;
+        }
+
+        /**
+         * Write and flush the queued notices until none is left. Errors are ignored, and show
+         * up when the client's input is next read.
+         */
+        private void drain() {
+            while (true) {
+                String message;
+                queueLock.lock();
+                try {
+                    message = notices.poll();
+                    if (message == null) {
+                        draining = false;
+                        return;
+                    }
+                } finally {
+                    queueLock.unlock();
+                }
+                lock.lock();
+                try {
+                    writeMessage(message);
+                    out.flush();
+                } catch (IOException ioe) {
+                    // the connection is broken, which its reader sees
+                } finally {
+                    lock.unlock();
+                }
+                queueLock.lock();
+                try {
+                    pendingNotices -= message.length();
+                } finally {
+                    queueLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Write a message as a line, or a TEXT frame if the client uses the binary protocol.
+         * Requires lock.
+         */
+        private void writeMessage(String message) throws IOException {
+            if (binary) {
+                out.write(Frames.text(Frames.TEXT_REPLY, message));
+            } else {
+                out.write(message.getBytes());
+                out.write(lineSeparator);
+            }
+        }
+
+        @Override public void close() throws IOException {
+            queueLock.lock();
+            try {
+                closed = true;
+                notices.clear();
+            } finally {
+                queueLock.unlock();
+            }
+            lock.lock();
+            try {
+                out.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 }
@@ -0,0 +1,23 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * A threadsafe sender of messages to a player outside of the replies to its commands, such as
+ * the win of its board by another player or the changes pushed to a subscriber. Messages are
+ * queued for the player's connection to write, in a bounded queue, so a sender never waits for
+ * the player to read them.
+ */
+@FunctionalInterface
+interface Notices {
+
+    /**
+     * Queue a message to be sent to the player, unless the player has too many bytes of
+     * messages left to read, or its connection is closed.
+     *
+     * @param message message of the text protocol, without its line terminator
+     * @return true if the message was queued, false if it was discarded
+     */
+    boolean offer(String message);
+}
@@ -0,0 +1,97 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * An immutable data type representing the limit of a token bucket: a sustained rate of units
+ * per second, and a burst of units that may be spent at once after a quiet period.
+ */
+public class RateLimit {
+
+    private final double perSecond;
+    private final double burst;
+
+    // Abstraction function
+    //      represent a limit of perSecond units per second on average, of which up to burst
+    //      units may be spent at once
+    // Rep invariant
+    //      perSecond > 0 and finite, burst >= 1 and finite
+    // Rep exposure
+    //      all fields are private, final and of immutable types.
+    // Thread safety
+    //      RateLimit is immutable.
+
+    /**
+     * Make a rate limit.
+     *
+     * @param perSecond sustained units per second, requires perSecond > 0 and finite
+     * @param burst units that may be spent at once, requires burst >= 1 and finite
+     */
+    public RateLimit(double perSecond, double burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert perSecond > 0 && ! Double.isInfinite(perSecond);
+        assert burst >= 1 && ! Double.isInfinite(burst);
+    }
+
+    /**
+     * Parse a rate limit according to the grammar:
+     * <pre>
+     *   LIMIT ::= RATE ("/" BURST)?
+     * </pre>
+     * where RATE and BURST are decimal numbers. The burst is by default one second's worth of
+     * the rate, and at least 1.
+     *
+     * @param text rate limit to parse
+     * @return the rate limit
+     * @throws IllegalArgumentException if text does not match the grammar, or RATE is not
+     *         positive or BURST is less than 1
+     */
+    public static RateLimit parse(String text) {
+        int slash = text.indexOf('/');
+        double perSecond;
+        double burst;
+        try {
+            perSecond = Double.parseDouble(slash < 0 ? text : text.substring(0, slash));
+            burst = slash < 0 ? Math.max(1, perSecond) : Double.parseDouble(text.substring(slash + 1));
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("unable to parse rate limit \"" + text + "\"");
+        }
+        if ( ! (perSecond > 0 && perSecond < Double.POSITIVE_INFINITY && burst >= 1 && burst < Double.POSITIVE_INFINITY)) {
+            throw new IllegalArgumentException("rate limit \"" + text + "\" needs a positive rate and a burst of at least 1");
+        }
+        return new RateLimit(perSecond, burst);
+    }
+
+    /**
+     * @return sustained units per second
+     */
+    public double perSecond() {
+        return perSecond;
+    }
+
+    /**
+     * @return units that may be spent at once
+     */
+    public double burst() {
+        return burst;
+    }
+
+    @Override public boolean equals(Object that) {
+        return that instanceof RateLimit && ((RateLimit) that).perSecond == perSecond
+                && ((RateLimit) that).burst == burst;
+    }
+
+    @Override public int hashCode() {
+        return Double.hashCode(perSecond) * 31 + Double.hashCode(burst);
+    }
+
+    @Override public String toString() {
+        return perSecond + "/" + burst;
+    }
+}
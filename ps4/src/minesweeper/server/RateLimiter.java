@@ -0,0 +1,93 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A mutable data type representing the rate limits of one connection to a MinesweeperServer:
+ * a token bucket for each type of request whose rate is limited, and one for the bytes of
+ * the replies sent to it. A request is admitted when the bucket of its type holds a token
+ * and the bucket of replies is not in debt; its reply is then charged to the bucket of
+ * replies, so a reply may overdraw it but delays the requests after it.
+ */
+class RateLimiter {
+
+    private final TokenBucket[] commands = new TokenBucket[Request.Type.values().length];
+    private final TokenBucket output;
+    private final ServerOptions.Throttle throttle;
+
+    // Abstraction function
+    //      represent the limits of a connection that may send requests of the type of ordinal t
+    //      as commands[t] allows, or without limit if commands[t] is null, and be sent replies
+    //      as output allows, or without limit if output is null, throttling the requests over
+    //      them as throttle says
+    // Rep invariant
+    //      commands has an element for each request type; commands[BYE] == null
+    //      throttle != null
+    // Rep exposure
+    //      all fields are private and never returned.
+    // Thread safety
+    //      not threadsafe; a RateLimiter is confined to the Session that owns it.
+
+    /**
+     * Make the limits of a newly connected player, with full buckets.
+     *
+     * @param options options of the server, giving the limits
+     */
+    RateLimiter(ServerOptions options) {
+        long now = System.nanoTime();
+        for (Map.Entry<String, RateLimit> limit : options.commandLimits().entrySet()) {
+            Request.Type type = Request.Type.valueOf(limit.getKey().toUpperCase(Locale.ROOT));
+            commands[type.ordinal()] = new TokenBucket(limit.getValue(), now);
+        }
+        this.output = options.outputLimit() == null ? null : new TokenBucket(options.outputLimit(), now);
+        this.throttle = options.throttle();
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert commands.length == Request.Type.values().length;
+        assert commands[Request.Type.BYE.ordinal()] == null;
+        assert throttle != null;
+    }
+
+    /**
+     * @return what is done with requests over the limits
+     */
+    ServerOptions.Throttle throttle() {
+        return throttle;
+    }
+
+    /**
+     * Admit a request if the limits allow it now.
+     *
+     * @param type type of the request
+     * @param now current System.nanoTime(), no earlier than in previous calls
+     * @return 0 if the request is admitted, and its token spent; otherwise nanoseconds until the
+     *         limits may allow it, with nothing spent
+     */
+    long admit(Request.Type type, long now) {
+        TokenBucket bucket = commands[type.ordinal()];
+        long delay = Math.max(bucket == null ? 0 : bucket.delayNanos(now), output == null ? 0 : output.delayNanos(now));
+        if (delay == 0 && bucket != null) {
+            bucket.spend(1, now);
+        }
+        return delay;
+    }
+
+    /**
+     * Charge a reply to the limit of replies.
+     *
+     * @param length bytes of the reply sent, with its line terminator or frame LENGTH,
+     *               requires length >= 0
+     * @param now current System.nanoTime(), no earlier than in previous calls
+     */
+    void replied(int length, long now) {
+        if (output != null) {
+            output.spend(length, now);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * An immutable data type representing one parsed line of client input to a MinesweeperServer.
+ */
+class Request {
+
+    /** The kinds of request. */
+    enum Type {
+        LOOK, HELP, BYE, DELTA, DIG, FLAG, DEFLAG, JOIN, LEAVE, CHECKPOINT, SUBSCRIBE, STATS, BINARY,
+        /** A line that matches no command. */
+        INVALID
+    }
+
+    private static final Request LOOK = new Request(Type.LOOK, 0, 0);
+    private static final Request HELP = new Request(Type.HELP, 0, 0);
+    private static final Request BYE = new Request(Type.BYE, 0, 0);
+    private static final Request DELTA = new Request(Type.DELTA, 0, 0);
+    private static final Request LEAVE = new Request(Type.LEAVE, 0, 0);
+    private static final Request CHECKPOINT = new Request(Type.CHECKPOINT, 0, 0);
+    private static final Request SUBSCRIBE = new Request(Type.SUBSCRIBE, 0, 0);
+    private static final Request STATS = new Request(Type.STATS, 0, 0);
+    private static final Request BINARY = new Request(Type.BINARY, 0, 0, null, false);
+    private static final Request BINARY_DEFLATE = new Request(Type.BINARY, 0, 0, null, true);
+    private static final Request INVALID = new Request(Type.INVALID, 0, 0);
+
+    private final Type type;
+    private final int x;
+    private final int y;
+    private final String room;
+    private final boolean deflate;
+    private final int width;
+    private final int height;
+
+    // Abstraction function
+    //      represent a request of the given type, on the square at column x and row y if the
+    //      type is DIG, FLAG or DEFLAG, for the room with id room if the type is JOIN, or
+    //      for the binary protocol with boards deflated iff deflate if the type is BINARY.
+    //      A LOOK request is for the whole board if width == 0, and otherwise for the region
+    //      of width columns and height rows whose top left square is at column x and row y.
+    // Rep invariant
+    //      type != null; x == y == 0 unless type is DIG, FLAG or DEFLAG, or LOOK with width > 0
+    //      width > 0 and height > 0 if type is LOOK and either is nonzero, and otherwise
+    //      width == height == 0
+    //      room is a valid room id if type is JOIN, and null otherwise
+    //      deflate is false unless type is BINARY
+    // Rep exposure
+    //      all fields are private, final and of immutable types.
+    // Thread safety
+    //      Request is immutable.
+
+    private Request(Type type, int x, int y) {
+        this(type, x, y, null);
+    }
+
+    private Request(Type type, int x, int y, String room) {
+        this(type, x, y, room, false);
+    }
+
+    private Request(Type type, int x, int y, String room, boolean deflate) {
+        this(type, x, y, room, deflate, 0, 0);
+    }
+
+    private Request(Type type, int x, int y, String room, boolean deflate, int width, int height) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.room = room;
+        this.deflate = deflate;
+        this.width = width;
+        this.height = height;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert type != null;
+        assert type == Type.DIG || type == Type.FLAG || type == Type.DEFLAG || width > 0 || (x == 0 && y == 0);
+        assert type == Type.LOOK && (width != 0 || height != 0) ? width > 0 && height > 0 : width == 0 && height == 0;
+        assert type == Type.JOIN ? Rooms.isValidId(room) : room == null;
+        assert type == Type.BINARY || ! deflate;
+    }
+
+    /**
+     * Parse a line of client input according to the grammar:
+     * <pre>
+     *   REQUEST ::= "look" | "help" | "bye" | "delta" | (("dig" | "flag" | "deflag") SPACE X SPACE Y)
+     *             | ("look" SPACE X SPACE Y SPACE W SPACE H)
+     *             | ("join" SPACE ROOM) | "leave" | "checkpoint" | "subscribe" | "stats"
+     *             | "binary" | "binary deflate"
+     *   X ::= INT
+     *   Y ::= INT
+     *   W ::= INT
+     *   H ::= INT
+     *   INT ::= "-"? [0-9]+
+     *   ROOM ::= [a-z0-9_-]+
+     * </pre>
+     * where ROOM has at most Rooms.MAX_ID_LENGTH characters.
+     * Parsing reads the characters of the line directly, without regular expressions or
+     * splitting, and allocates nothing except for the returned DIG, FLAG, DEFLAG, JOIN or
+     * region LOOK request.
+     *
+     * @param input line from client, without its line terminator
+     * @return the request, which has type INVALID if input does not match the grammar, a
+     *         coordinate does not fit in an int, or W or H is not positive
+     */
+    static Request parse(String input) {
+        switch (input) {
+        case "look":
+            return LOOK;
+        case "help":
+            return HELP;
+        case "bye":
+            return BYE;
+        case "delta":
+            return DELTA;
+        case "leave":
+            return LEAVE;
+        case "checkpoint":
+            return CHECKPOINT;
+        case "subscribe":
+            return SUBSCRIBE;
+        case "stats":
+            return STATS;
+        case "binary":
+            return BINARY;
+        case "binary deflate":
+            return BINARY_DEFLATE;
+        default:
+            break;
+        }
+        if (input.startsWith("join ")) {
+            String room = input.substring("join ".length());
+            return Rooms.isValidId(room) ? new Request(Type.JOIN, 0, 0, room) : INVALID;
+        }
+        if (input.startsWith("look ")) {
+            return parseRegion(input, "look ".length());
+        }
+        Type type;
+        int start;
+        if (input.startsWith("dig ")) {
+            type = Type.DIG;
+            start = "dig ".length();
+        } else if (input.startsWith("flag ")) {
+            type = Type.FLAG;
+            start = "flag ".length();
+        } else if (input.startsWith("deflag ")) {
+            type = Type.DEFLAG;
+            start = "deflag ".length();
+        } else {
+            return INVALID;
+        }
+        int space = input.indexOf(' ', start);
+        if (space < 0) {
+            return INVALID;
+        }
+        long x = parseInt(input, start, space);
+        long y = parseInt(input, space + 1, input.length());
+        if (x == Long.MIN_VALUE || y == Long.MIN_VALUE) {
+            return INVALID;
+        }
+        return new Request(type, (int) x, (int) y);
+    }
+
+    /**
+     * Parse the X, Y, W and H of a LOOK request for a region.
+     *
+     * @param input line from client
+     * @param start index of the first character of X
+     * @return the request, or INVALID if input[start..] is not X SPACE Y SPACE W SPACE H with
+     *         positive W and H
+     */
+    private static Request parseRegion(String input, int start) {
+        int space1 = input.indexOf(' ', start);
+        int space2 = space1 < 0 ? -1 : input.indexOf(' ', space1 + 1);
+        int space3 = space2 < 0 ? -1 : input.indexOf(' ', space2 + 1);
+        if (space3 < 0) {
+            return INVALID;
+        }
+        long x = parseInt(input, start, space1);
+        long y = parseInt(input, space1 + 1, space2);
+        long w = parseInt(input, space2 + 1, space3);
+        long h = parseInt(input, space3 + 1, input.length());
+        if (x == Long.MIN_VALUE || y == Long.MIN_VALUE || w <= 0 || h <= 0) {
+            return INVALID;
+        }
+        return new Request(Type.LOOK, (int) x, (int) y, null, false, (int) w, (int) h);
+    }
+
+    /**
+     * @return a LOOK request
+     */
+    static Request look() {
+        return LOOK;
+    }
+
+    /**
+     * @return an INVALID request
+     */
+    static Request invalid() {
+        return INVALID;
+    }
+
+    /**
+     * @param type DIG, FLAG or DEFLAG
+     * @param x column of the square
+     * @param y row of the square
+     * @return a request of type on the square at column x and row y
+     */
+    static Request move(Type type, int x, int y) {
+        return new Request(type, x, y);
+    }
+
+    /**
+     * Parse an INT of the grammar of parse.
+     *
+     * @param input text containing the INT
+     * @param from index of the first character of the INT
+     * @param to index after the last character of the INT
+     * @return the value of the INT, or Long.MIN_VALUE if input[from..to-1] is not an INT or its
+     *         value does not fit in an int
+     */
+    private static long parseInt(String input, int from, int to) {
+        boolean negative = from < to && input.charAt(from) == '-';
+        if (negative) {
+            from++;
+        }
+        if (from >= to) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = input.charAt(i);
+            if (c < '0' || c > '9') {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Long.MIN_VALUE;
+            }
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    /**
+     * @return the kind of request
+     */
+    Type type() {
+        return type;
+    }
+
+    /**
+     * @return the column of the square of a DIG, FLAG or DEFLAG request, or of the top left
+     *         square of the region of a LOOK request
+     */
+    int x() {
+        return x;
+    }
+
+    /**
+     * @return the row of the square of a DIG, FLAG or DEFLAG request, or of the top left
+     *         square of the region of a LOOK request
+     */
+    int y() {
+        return y;
+    }
+
+    /**
+     * @return the id of the room of a JOIN request
+     */
+    String room() {
+        return room;
+    }
+
+    /**
+     * @return number of columns of the region of a LOOK request, or 0 for the whole board
+     */
+    int width() {
+        return width;
+    }
+
+    /**
+     * @return number of rows of the region of a LOOK request, or 0 for the whole board
+     */
+    int height() {
+        return height;
+    }
+
+    /**
+     * @return true if a BINARY request asks for deflated boards
+     */
+    boolean deflate() {
+        return deflate;
+    }
+}
@@ -0,0 +1,605 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import minesweeper.Board;
+import minesweeper.BoardStats;
+import minesweeper.Change;
+
+/**
+ * A mutable data type representing the rooms hosted by a MinesweeperServer, each an independent
+ * game with its own board and players. Rooms are created by the first player joining them, up
+ * to a maximum number of rooms, and a room that has had no players for a while is evicted: its
+ * board is saved to a snapshot file, the room stops counting towards the maximum, and its board
+ * is loaded back when a player joins it again. A room resumes from its snapshot file, if there
+ * is one, the first time a player joins it. If journaling, every move is also written ahead to
+ * the room's journal, and replayed on top of its snapshot when the room resumes.
+ */
+class Rooms {
+
+    /** Id of the room every player starts in, whose board is never evicted. */
+    static final String MAIN = "main";
+    /** Maximum length of a room id. */
+    static final int MAX_ID_LENGTH = 64;
+    /** Suffix of the snapshot files to which rooms are checkpointed and evicted. */
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    /** Suffix of the journal files of the moves made in rooms since their snapshots. */
+    private static final String JOURNAL_SUFFIX = ".journal";
+    /**
+     * Number of threads rendering pushed messages and queuing them for the players. Queuing
+     * never waits for a player to read: a player that has too many bytes left to read has its
+     * messages refused, and its subscription dropped, so slow players never hold these threads.
+     */
+    private static final int DELIVERY_THREADS = 16;
+
+    private final Room main;
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Function<String, Board> newBoard;
+    private final int tileSize;
+    private final long idleMillis;
+    private final int maxRooms;
+    private final boolean journaling;
+    private final Board.Validation validation;
+    private final BoardStats stats;
+    private final File configuredDirectory;
+    private File directory;
+    private ScheduledExecutorService evictor;
+    private final ExecutorService delivery = Executors.newFixedThreadPool(DELIVERY_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "subscription delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Abstraction function
+    //      represent the rooms in the values of rooms, keyed by id, of which main is the room
+    //      every player starts in; at most maxRooms rooms are created. Rooms evicted from
+    //      memory are removed from rooms, and a room with the same id is created again when a
+    //      player joins it. newBoard makes the board of a new room from its id. A room is
+    //      evicted to its snapshot file in directory once it has had no players for idleMillis,
+    //      and read back with tileSize. Every board is validated at level validation, and
+    //      records its moves to stats. If
+    //      journaling, the moves made in each room in memory since its snapshot are journaled
+    //      to its journal file in directory. directory is configuredDirectory, or a temporary
+    //      directory created by the first eviction if configuredDirectory is null. evictor,
+    //      once started, runs evictIdle periodically. delivery sends the changes of boards to
+    //      the players subscribed to them, and the wins of boards to their other players.
+    // Rep invariant
+    //      rooms.get(MAIN) == main; every key of rooms is a valid room id and the id of its room
+    //      idleMillis >= 0, tileSize > 0, maxRooms > 0
+    // Rep exposure
+    //      all fields are private. Room objects are shared with the sessions of their players,
+    //      and are threadsafe. The boards of rooms are shared with the sessions of their
+    //      players, and are threadsafe. stats is shared with the server, and is threadsafe.
+    // Thread safety
+    //      rooms is a threadsafe map. Rooms are only added to it under this object's lock, so
+    //      that its size never exceeds maxRooms, and only removed by the evictor while it holds
+    //      the lock of the room, after marking it removed; a player that finds its room removed
+    //      when entering it gets the room again, so two players joining the same id always meet
+    //      in the same Room. The state of each room is guarded by its own
+    //      lock, so joining, leaving and evicting rooms do not wait for other rooms, and
+    //      playing on a board takes no room lock at all. directory and evictor are guarded by
+    //      this object's lock. delivery is a threadsafe executor of DELIVERY_THREADS threads,
+    //      whose queue holds at most one task per subscription and one per notice of a win,
+    //      since a Subscription schedules a task only while none of its own is pending.
+
+    /**
+     * Make the rooms of a server.
+     *
+     * @param mainBoard board of the main room
+     * @param newBoard makes the board of each new room, given its id
+     * @param options options giving the tile size of the boards, the eviction directory and
+     *        idle time of rooms, and whether their moves are journaled; if they are, the moves
+     *        journaled in the room directory for the main room are replayed on mainBoard
+     * @param stats threadsafe statistics every board records its moves to
+     * @throws IOException if journaling and the main room cannot be recovered or journaled
+     */
+    Rooms(Board mainBoard, Function<String, Board> newBoard, ServerOptions options, BoardStats stats)
+            throws IOException {
+        this.main = new Room(MAIN, null);
+        this.rooms.put(MAIN, main);
+        this.newBoard = newBoard;
+        this.tileSize = options.tileSize();
+        this.idleMillis = options.roomIdleMillis();
+        this.maxRooms = options.maxRooms();
+        this.journaling = options.journal();
+        this.validation = options.validation();
+        this.stats = stats;
+        this.configuredDirectory = options.roomDirectory();
+        main.lock.lock();
+        try {
+            mainBoard.setValidation(validation);
+            mainBoard.setStats(stats);
+            if (journaling) {
+                main.startJournal(mainBoard);
+            }
+            main.board = mainBoard;
+            main.won = mainBoard.status() == Board.Status.WON;
+            main.checkRep();
+        } finally {
+            main.lock.unlock();
+        }
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert rooms.get(MAIN) == main;
+        assert idleMillis >= 0;
+        assert tileSize > 0;
+        assert maxRooms > 0;
+    }
+
+    /**
+     * @param id a string
+     * @return true iff id is a valid room id: 1 to MAX_ID_LENGTH characters, each a lowercase
+     *         letter, a digit, '-' or '_'
+     */
+    static boolean isValidId(String id) {
+        if (id.isEmpty() || id.length() > MAX_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ( ! ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the room every player starts in
+     */
+    Room main() {
+        return main;
+    }
+
+    /**
+     * Get a room, creating it without a board if it does not exist yet and there are fewer than
+     * the maximum number of rooms; its board is made when a player first enters it.
+     *
+     * @param id id of the room, requires isValidId(id)
+     * @return the room with that id, or null if it does not exist and cannot be created
+     */
+    Room get(String id) {
+        assert isValidId(id);
+        Room room = rooms.get(id);
+        if (room != null) {
+            return room;
+        }
+        synchronized (this) {
+            if (rooms.size() >= maxRooms) {
+                return rooms.get(id);
+            }
+            return rooms.computeIfAbsent(id, key -> new Room(key, null));
+        }
+    }
+
+    /**
+     * Start evicting idle rooms periodically, on a daemon thread, if not started already.
+     */
+    synchronized void startEviction() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleMillis / 2, 1);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Evict every room other than main that has had no players for the idle time, and remove
+     * it from the rooms. A room whose board cannot be written stays in memory.
+     */
+    void evictIdle() {
+        long now = System.nanoTime();
+        for (Room room : rooms.values()) {
+            if (room != main) {
+                try {
+                    room.evictIfIdle(now);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace(); // but keep the room in memory
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the directory to which rooms are evicted, creating a temporary one if needed
+     * @throws IOException if the temporary directory cannot be created
+     */
+    private synchronized File directory() throws IOException {
+        if (directory == null) {
+            if (configuredDirectory != null) {
+                directory = configuredDirectory;
+            } else {
+                directory = Files.createTempDirectory("minesweeper-rooms").toFile();
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * @param directory directory of room snapshots
+     * @param id a valid room id
+     * @return the file in directory to which the room with that id is checkpointed and evicted
+     */
+    static File snapshotFile(File directory, String id) {
+        return new File(directory, id + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * @param directory directory of room snapshots
+     * @param id a valid room id
+     * @return the file in directory to which the moves made in the room with that id since its
+     *         last snapshot are journaled
+     */
+    static File journalFile(File directory, String id) {
+        return new File(directory, id + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * A mutable data type representing one room: a board and the players on it.
+     */
+    class Room {
+
+        private final String id;
+        private final ReentrantLock lock = new ReentrantLock();
+        private Board board;
+        private Journal journal = null;
+        private int players = 0;
+        private final Set<Notices> notices = new HashSet<>();
+        private final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+        private boolean won = false;
+        private long idleSince = System.nanoTime();
+        private boolean removed = false;
+
+        // Abstraction function
+        //      represent the room id, played on board by players players, who are sent
+        //      notices by the elements of notices, and pushed the changes of board by
+        //      subscribers. won is true iff board was won when it was
+        //      loaded or made, or its win has been announced. If board is null, the
+        //      board of the room is its snapshot file in directory with the moves of its journal
+        //      file replayed, or a new board if there is no snapshot. Moves made on board since
+        //      its snapshot are journaled to journal, if journaling. The room has had no players
+        //      since System.nanoTime() returned idleSince, if players == 0. The room has been
+        //      evicted and removed from rooms, and may not be entered, iff removed.
+        // Rep invariant
+        //      players >= 0; board != null if players > 0; notices.size() <= players
+        //      players == 0 and board == null if removed
+        //      subscribers.size() <= players; subscribers is empty or board reports its changes
+        //      to publish
+        //      journal != null iff journaling && board != null, and then journal is the move
+        //      log of board
+        // Rep exposure
+        //      all fields are private; board is shared with the sessions of the players, and
+        //      is threadsafe. journal is threadsafe, and only shared with board.
+        // Thread safety
+        //      board, journal, players, notices, won, idleSince and removed, and the snapshot and
+        //      journal files of the room, are guarded by lock, which is held only while
+        //      entering, leaving, checkpointing or evicting the room, or checking for a win. A
+        //      ReentrantLock rather than a monitor guards the disk I/O, so that virtual threads
+        //      waiting for it are not pinned to their carrier. sync waits for the journal without
+        //      holding lock, and announceWin hands its notices to delivery after releasing it;
+        //      each element of notices is threadsafe. subscribers is only modified under lock, and is a threadsafe list that
+        //      publish reads without lock, while board holds the locks of the changed squares.
+
+        private Room(String id, Board board) {
+            this.id = id;
+            this.board = board;
+        }
+
+        private void checkRep() {
+            assert players >= 0;
+            assert players == 0 || board != null;
+            assert ! removed || (players == 0 && board == null);
+            assert notices.size() <= players;
+            assert subscribers.size() <= players;
+            assert (journal != null) == (journaling && board != null);
+        }
+
+        /**
+         * @return id of this room
+         */
+        String id() {
+            return id;
+        }
+
+        /**
+         * Count a player entering this room, reading its board from its snapshot file, or
+         * making a new board if there is none, if the board is not in memory.
+         *
+         * @param notice sender of notices to the player, such as the win of the board, at any
+         *               time until the player exits
+         * @return the board of this room, or null if this room was evicted and removed from
+         *         the rooms, in which case the player is not counted and must get the room
+         *         again
+         * @throws IOException if the snapshot or journal file exists but cannot be read, or
+         *                     the board cannot be journaled
+         */
+        Board enter(Notices notice) throws IOException {
+            lock.lock();
+            try {
+                if (removed) {
+                    return null;
+                }
+                if (board == null) {
+                    File file = snapshotFile(directory(), id);
+                    Board entered;
+                    if (file.isFile()) {
+                        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                            entered = Board.load(in, tileSize);
+                        }
+                    } else {
+                        entered = newBoard.apply(id);
+                    }
+                    entered.setValidation(validation);
+                    entered.setStats(stats);
+                    if (journaling) {
+                        startJournal(entered);
+                    }
+                    board = entered;
+                    won = entered.status() == Board.Status.WON;
+                }
+                players++;
+                notices.add(notice);
+                checkRep();
+                return board;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stop counting a player leaving this room. Requires that the player entered it.
+         *
+         * @param notice sender of notices to the player, as given to enter
+         */
+        void exit(Notices notice) {
+            lock.lock();
+            try {
+                players--;
+                notices.remove(notice);
+                if (players == 0) {
+                    idleSince = System.nanoTime();
+                }
+                checkRep();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of players in this room
+         */
+        int players() {
+            lock.lock();
+            try {
+                return players;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Send every other player in this room a notice that its board is won, if it has just
+         * been won, unless it was already announced. Called after each dig, so that exactly
+         * one player, whose dig won the board or came just after, announces the win. The
+         * notices are queued by delivery, so the caller never runs the senders of other
+         * players; a player with too many bytes left to read is not told. Requires that the
+         * caller entered this room.
+         *
+         * @param message notice of the win
+         * @param winner sender of notices to the player announcing the win, who is not sent
+         *               the notice
+         * @return true if the win was announced by this call
+         */
+        boolean announceWin(String message, Notices winner) {
+            List<Notices> others = new ArrayList<>();
+            lock.lock();
+            try {
+                if (won || board.status() != Board.Status.WON) {
+                    return false;
+                }
+                won = true;
+                for (Notices notice : notices) {
+                    if (notice != winner) {
+                        others.add(notice);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Notices notice : others) {
+                delivery.execute(() -> notice.offer(message));
+            }
+            return true;
+        }
+
+        /**
+         * Subscribe a player to the changes of the board of this room, starting with the whole
+         * board. Requires that the player entered this room.
+         *
+         * @param notice sender of messages to the player, as given to enter
+         * @return the subscription, to be cancelled by unsubscribe before the player exits
+         */
+        Subscription subscribe(Notices notice) {
+            lock.lock();
+            try {
+                Subscription subscription = new Subscription(board, notice, delivery);
+                if (subscribers.isEmpty()) {
+                    board.setChangeListener(this::publish);
+                }
+                subscribers.add(subscription);
+                checkRep();
+                return subscription;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Cancel a subscription to the changes of the board of this room, if not cancelled
+         * already.
+         *
+         * @param subscription subscription returned by subscribe
+         */
+        void unsubscribe(Subscription subscription) {
+            lock.lock();
+            try {
+                subscription.cancel();
+                if (subscribers.remove(subscription) && subscribers.isEmpty()) {
+                    board.setChangeListener(null);
+                }
+                checkRep();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Queue the squares modified by a move for every subscriber. Called by the board while
+         * it holds the locks of the squares.
+         */
+        private void publish(List<Change> changes) {
+            for (Subscription subscription : subscribers) {
+                subscription.publish(changes);
+            }
+        }
+
+        /**
+         * Wait until every move made so far in this room is journaled on disk, if journaling.
+         * Requires that the caller entered this room.
+         *
+         * @throws IOException if the moves cannot be journaled
+         */
+        void sync() throws IOException {
+            Journal current;
+            lock.lock();
+            try {
+                current = journal;
+            } finally {
+                lock.unlock();
+            }
+            if (current != null) {
+                current.sync();
+            }
+        }
+
+        /**
+         * Save the board of this room to its snapshot file, from which it is resumed if the
+         * room is evicted or the server restarted with the same room directory, and drop the
+         * moves it includes from the journal. Requires that the caller entered this room.
+         *
+         * @return the snapshot file
+         * @throws IOException if the board cannot be saved
+         */
+        File checkpoint() throws IOException {
+            lock.lock();
+            try {
+                long saved = save(board);
+                if (journal != null) {
+                    journal.truncate(saved);
+                }
+                return snapshotFile(directory(), id);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Start journaling the moves made on the board of this room: replay the moves of its
+         * journal file on it, save it, and journal its moves from now on. Requires lock.
+         *
+         * @param recovered board of the room, whose move log is null
+         * @throws IOException if the journal cannot be read, or the board saved or journaled
+         */
+        private void startJournal(Board recovered) throws IOException {
+            File file = journalFile(directory(), id);
+            Journal.replay(file, recovered);
+            save(recovered);
+            journal = new Journal(file);
+            recovered.setMoveLog(journal);
+        }
+
+        /**
+         * Save the board of this room to disk, drop it from memory and remove the room from
+         * the rooms, if the room has had no players for the idle time.
+         *
+         * @param now current value of System.nanoTime()
+         * @throws IOException if the board cannot be saved
+         */
+        private void evictIfIdle(long now) throws IOException {
+            lock.lock();
+            try {
+                if (removed || players > 0 || now - idleSince < TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+                    return;
+                }
+                if (board != null) {
+                    save(board);
+                    if (journal != null) {
+                        board.setMoveLog(null);
+                        journal.close();
+                        journal = null;
+                    }
+                    board = null;
+                }
+                removed = true;
+                rooms.remove(id, this);
+                checkRep();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Save a board to the snapshot file of this room, replacing it atomically once the new
+         * snapshot is on disk. Requires lock.
+         *
+         * @param saved board to save
+         * @return the number of moves included in the snapshot
+         */
+        private long save(Board saved) throws IOException {
+            File file = snapshotFile(directory(), id);
+            File temporary = new File(file.getPath() + ".tmp");
+            long moves;
+            try (FileOutputStream stream = new FileOutputStream(temporary)) {
+                OutputStream out = new BufferedOutputStream(stream);
+                moves = saved.save(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return moves;
+        }
+    }
+}
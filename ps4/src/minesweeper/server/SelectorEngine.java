@@ -0,0 +1,499 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server engine that serves all connections of a MinesweeperServer from one thread with a
+ * java.nio Selector, and runs their commands on a fixed pool of worker threads. The bytes
+ * exchanged are the same as with the thread-per-connection engine of MinesweeperServer.serve:
+ * lines end with "\n", "\r" or "\r\n", and messages are written in the platform's default
+ * charset, each followed by the platform's line separator, until a connection switches to the
+ * frames of the binary protocol of Frames.
+ */
+class SelectorEngine {
+
+    /** Size of the buffer each read from a connection goes through. */
+    private static final int READ_BUFFER_SIZE = 8192;
+    /** Bytes of unsent messages above which a connection's commands are no longer run. */
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private final MinesweeperServer server;
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService resumer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rate limit resumer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<Client> updates = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Charset charset = Charset.defaultCharset();
+    private final byte[] lineSeparator = System.lineSeparator().getBytes(charset);
+
+    // Abstraction function
+    //      represent an engine accepting connections on listener for server, doing all
+    //      socket I/O on the thread running serve() through selector, and running commands
+    //      on workers. updates holds the clients whose interest in reading and writing
+    //      must be reconsidered by the selector thread. resumer resumes the commands of
+    //      clients whose requests waited for their rate limits.
+    // Rep invariant
+    //      listener is non-blocking and registered with selector for OP_ACCEPT once
+    //      serve() has started
+    // Rep exposure
+    //      all fields are private and never exposed to a client; server and listener are
+    //      shared with the MinesweeperServer that created this engine.
+    // Thread safety
+    //      selector, listener, readBuffer and every channel and SelectionKey are only used by
+    //      the selector thread. updates is a threadsafe queue, and workers and resumer
+    //      threadsafe pools.
+    //      The mutable state a Client shares between the selector thread and a worker is
+    //      guarded by the Client's lock; its Session is only used by the one worker running
+    //      its commands, which the running flag makes unique.
+
+    /**
+     * Make an engine serving the connections of a server.
+     *
+     * @param server server whose players are served
+     * @param listener bound socket channel on which connections are accepted
+     * @param workers number of worker threads, requires workers > 0
+     * @throws IOException if the selector cannot be opened
+     */
+    SelectorEngine(MinesweeperServer server, ServerSocketChannel listener, int workers) throws IOException {
+        this.server = server;
+        this.listener = listener;
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * Run the engine, accepting connections and serving them.
+     * Never returns unless an exception is thrown.
+     *
+     * @throws IOException if the selector or the listening channel is broken
+     *                     (IOExceptions from individual clients do *not* terminate serve())
+     */
+    void serve() throws IOException {
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        while (true) {
+            selector.select();
+            Client updated;
+            while ((updated = updates.poll()) != null) {
+                updated.update();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if ( ! key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Client client = (Client) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        client.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        client.write();
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace(); // but don't terminate serve()
+                    client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Accept a pending connection, if any, and greet its player.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // replies are already written whole
+        Client client = new Client(channel);
+        client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        client.send(server.welcome());
+        client.update();
+    }
+
+    /**
+     * A mutable data type representing one connection served by this engine.
+     */
+    private class Client {
+
+        private final SocketChannel channel;
+        private final Session session;
+        private SelectionKey key;
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private boolean skipLineFeed = false;
+        private final ByteArrayOutputStream partialFrame = new ByteArrayOutputStream();
+        private int frameLength = -1;
+        private boolean closed = false;
+
+        private boolean binary = false;
+        private final Queue<String> lines = new ArrayDeque<>();
+        private final Queue<byte[]> frames = new ArrayDeque<>();
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private int pendingOutput = 0;
+        private boolean inputEnded = false;
+        private boolean running = false;
+        private boolean backlogged = false;
+        private boolean delayed = false;
+        private boolean closing = false;
+        private boolean sessionEnded = false;
+
+        // Abstraction function
+        //      represent the connection on channel, registered with key, of a player whose
+        //      protocol state is session. partialLine holds the bytes of a line not yet
+        //      terminated, and skipLineFeed is true iff the last byte read ended a line with
+        //      "\r". lines are the complete input lines whose commands have not yet run, and
+        //      output the unsent messages, totalling pendingOutput bytes. Once binary, the
+        //      connection uses the binary protocol of Frames: frames are the OPCODE and
+        //      PAYLOAD of the complete input frames whose commands have not yet run, and
+        //      partialFrame holds the bytes of the next frame, without its LENGTH if
+        //      frameLength >= 0, which is then its LENGTH, or else the bytes of its LENGTH. inputEnded is true
+        //      iff the player closed its side, running iff a worker is running commands, and
+        //      closing iff no more commands may run and the connection must be closed once
+        //      output is sent. backlogged is true iff requests of session wait for the rate
+        //      limits of the connection, and delayed iff they must wait until resumer resumes
+        //      them; input is not read while delayed. sessionEnded is true iff the player is no longer counted in
+        //      its room, which happens once the connection is closed and no worker runs.
+        // Rep invariant
+        //      pendingOutput == sum of output's remaining bytes
+        //      lines is empty if binary, and frames empty if ! binary
+        //      frameLength == -1 or 0 < frameLength <= Frames.MAX_REQUEST_LENGTH
+        // Thread safety
+        //      channel, key, partialLine, skipLineFeed, partialFrame, frameLength and closed are
+        //      confined to the selector thread. binary, lines, frames, output, pendingOutput,
+        //      inputEnded, running, backlogged, delayed, closing and sessionEnded are guarded by
+        //      this Client's lock, which is never held while waiting, so notices from other
+        //      threads never wait for the player. session is used only by the worker that set
+        //      running, or once no worker runs, by the selector thread ending it.
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+            this.session = server.newSession(this::notice);
+        }
+
+        /**
+         * Send a message to the player outside of the replies to its commands, unless the
+         * player has MAX_PENDING_OUTPUT bytes or more left to read or the connection is
+         * closing. Called by any thread but the selector thread, even before the selector
+         * thread registers this Client, since the selector thread only handles the update once
+         * it has registered it.
+         *
+         * @return true if the message was sent
+         */
+        private boolean notice(String message) {
+            synchronized (this) {
+                if (pendingOutput >= MAX_PENDING_OUTPUT || closing) {
+                    return false;
+                }
+                send(message);
+            }
+            requestUpdate();
+            return true;
+        }
+
+        /**
+         * Append a message to the output, followed by a line separator, or as a TEXT frame if
+         * the connection uses the binary protocol. Called with or without the lock.
+         */
+        synchronized void send(String message) {
+            if (binary) {
+                sendFrame(Frames.text(Frames.TEXT_REPLY, message));
+                return;
+            }
+            byte[] text = message.getBytes(charset);
+            ByteBuffer buffer = ByteBuffer.allocate(text.length + lineSeparator.length);
+            buffer.put(text).put(lineSeparator).flip();
+            output.add(buffer);
+            pendingOutput += buffer.remaining();
+        }
+
+        /**
+         * Append a frame of the binary protocol to the output. Requires this Client's lock.
+         */
+        private void sendFrame(byte[] frame) {
+            output.add(ByteBuffer.wrap(frame));
+            pendingOutput += frame.length;
+        }
+
+        /**
+         * Read the available input, split it into lines, or frames if the connection uses the
+         * binary protocol, and schedule their commands. Called by the selector thread.
+         *
+         * @throws IOException if the input cannot be read, or has a frame whose LENGTH is out
+         *         of range
+         */
+        void read() throws IOException {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            readBuffer.flip();
+            synchronized (this) {
+                if (binary) {
+                    readFrames();
+                }
+                while (readBuffer.hasRemaining()) {
+                    byte b = readBuffer.get();
+                    if (skipLineFeed) {
+                        skipLineFeed = false;
+                        if (b == '\n') {
+                            continue;
+                        }
+                    }
+                    if (b == '\n' || b == '\r') {
+                        skipLineFeed = b == '\r';
+                        lines.add(new String(partialLine.toByteArray(), charset));
+                        partialLine.reset();
+                    } else {
+                        partialLine.write(b);
+                    }
+                }
+                if (count < 0) {
+                    if (partialLine.size() > 0 && ! binary) {
+                        lines.add(new String(partialLine.toByteArray(), charset));
+                        partialLine.reset();
+                    }
+                    inputEnded = true;
+                }
+                schedule();
+            }
+            update();
+        }
+
+        /**
+         * Split the read input into frames of the binary protocol, skipping the line feed
+         * ending the "binary" command if it comes first. Requires this Client's lock.
+         */
+        private void readFrames() throws IOException {
+            if (skipLineFeed && readBuffer.hasRemaining() && readBuffer.get(readBuffer.position()) == '\n') {
+                readBuffer.get();
+            }
+            skipLineFeed = false;
+            while (readBuffer.hasRemaining()) {
+                partialFrame.write(readBuffer.get());
+                if (frameLength < 0 && partialFrame.size() == 4) {
+                    int length = ByteBuffer.wrap(partialFrame.toByteArray()).getInt();
+                    if (length <= 0 || length > Frames.MAX_REQUEST_LENGTH) {
+                        throw new IOException("frame length " + length + " out of range");
+                    }
+                    frameLength = length;
+                    partialFrame.reset();
+                } else if (partialFrame.size() == frameLength) {
+                    frames.add(partialFrame.toByteArray());
+                    partialFrame.reset();
+                    frameLength = -1;
+                }
+            }
+        }
+
+        /**
+         * @return true if there are lines or frames whose commands have not yet run. Requires
+         *         this Client's lock.
+         */
+        private boolean hasInput() {
+            return ! lines.isEmpty() || ! frames.isEmpty();
+        }
+
+        /**
+         * Start a worker running the commands of pending lines, unless one is running already
+         * or the player must first read its output. Requires this Client's lock.
+         */
+        private void schedule() {
+            if (running || closing || delayed) {
+                return;
+            }
+            if ( ! hasInput() && ! backlogged) {
+                closing = inputEnded;
+            } else if (pendingOutput < MAX_PENDING_OUTPUT) {
+                running = true;
+                workers.execute(this::runCommands);
+            }
+        }
+
+        /**
+         * Run the commands of the requests waiting for the rate limits, if any, then of pending
+         * lines or frames in order, in batches of at most Session.MAX_BATCH, queueing the
+         * replies of each batch together. Stops when requests must wait for the rate limits,
+         * scheduling resumer to run them later. The connection switches to the binary protocol
+         * right after the reply switching it is queued, dropping the lines after it. Called by a
+         * worker.
+         */
+        private void runCommands() {
+            List<String> batch = new ArrayList<>();
+            List<byte[]> frameBatch = new ArrayList<>();
+            while (true) {
+                boolean framed;
+                synchronized (this) {
+                    if (closing || delayed || ( ! hasInput() && ! backlogged) || pendingOutput >= MAX_PENDING_OUTPUT) {
+                        running = false;
+                        schedule();
+                        break;
+                    }
+                    while ( ! backlogged && ! lines.isEmpty() && batch.size() < Session.MAX_BATCH) {
+                        batch.add(lines.remove());
+                    }
+                    while ( ! backlogged && ! frames.isEmpty() && frameBatch.size() < Session.MAX_BATCH) {
+                        frameBatch.add(frames.remove());
+                    }
+                    framed = binary;
+                }
+                List<String> replies = framed ? Collections.emptyList() : session.handleAll(batch);
+                List<byte[]> frameReplies = framed ? session.handleFrames(frameBatch) : Collections.emptyList();
+                long delay = session.delayNanos();
+                batch.clear();
+                frameBatch.clear();
+                synchronized (this) {
+                    for (String reply : replies) {
+                        send(reply);
+                    }
+                    for (byte[] reply : frameReplies) {
+                        sendFrame(reply);
+                    }
+                    if (session.isBinary() && ! binary) {
+                        binary = true;
+                        lines.clear();
+                    }
+                    closing = session.isClosed();
+                    backlogged = delay > 0;
+                    if (backlogged && ! closing) {
+                        delayed = true;
+                        resumer.schedule(this::resume, delay, TimeUnit.NANOSECONDS);
+                    }
+                }
+                requestUpdate();
+            }
+            requestUpdate();
+        }
+
+        /**
+         * Run the requests that waited for the rate limits, and read input again. Called by
+         * resumer.
+         */
+        private void resume() {
+            synchronized (this) {
+                delayed = false;
+                schedule();
+            }
+            requestUpdate();
+        }
+
+        /**
+         * Ask the selector thread to call update.
+         */
+        private void requestUpdate() {
+            updates.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Register interest in writing iff there is output to send, and in reading iff more
+         * commands may run and none wait for the rate limits, and close the connection once it is closing and its output is sent.
+         * Called by the selector thread.
+         */
+        void update() {
+            if (closed) {
+                endSession();
+                return;
+            }
+            synchronized (this) {
+                if (closing && output.isEmpty() && ! running) {
+                    close();
+                    return;
+                }
+                int interest = (closing || inputEnded || delayed) ? 0 : SelectionKey.OP_READ;
+                if ( ! output.isEmpty()) {
+                    interest |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(interest);
+            }
+        }
+
+        /**
+         * Write as much of the output as the channel accepts. Called by the selector thread.
+         */
+        void write() throws IOException {
+            synchronized (this) {
+                while ( ! output.isEmpty()) {
+                    ByteBuffer buffer = output.peek();
+                    int written = channel.write(buffer);
+                    pendingOutput -= written;
+                    server.stats().wrote(written);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    output.remove();
+                }
+                schedule();
+            }
+            update();
+        }
+
+        /**
+         * Close the connection and stop counting its player, now if no worker is running its
+         * commands, or else once the worker stops and calls update. Called by the selector
+         * thread.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (this) {
+                closing = true;
+            }
+            endSession(); // before the player sees the connection closed, unless a worker runs
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * End the session, unless a worker is running its commands or it has ended already.
+         * Called by the selector thread.
+         */
+        private void endSession() {
+            synchronized (this) {
+                if (running || sessionEnded) {
+                    return;
+                }
+                sessionEnded = true;
+            }
+            session.end();
+        }
+    }
+}
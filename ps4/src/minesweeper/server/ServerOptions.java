@@ -0,0 +1,493 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Queue;
+
+import minesweeper.Board;
+
+/**
+ * An immutable data type representing the tuning options of a MinesweeperServer, beyond the
+ * debug flag, port and board given to it.
+ */
+public class ServerOptions {
+
+    /** The ways a server can run its connections. */
+    public enum Engine {
+        /** One platform thread per connection, with blocking socket I/O. */
+        THREADS,
+        /** One selector thread for all socket I/O, and a fixed pool of worker threads. */
+        SELECTOR,
+        /** One virtual thread per connection, with blocking socket I/O. Requires Java 21. */
+        VIRTUAL_THREADS
+    }
+
+    /** What a server does with a request over one of its connection's rate limits. */
+    public enum Throttle {
+        /** Run the request once the limits allow, reading no more input meanwhile. */
+        DELAY,
+        /** Reply that the request was rejected, without running it. */
+        REJECT
+    }
+
+    /** Options of a server locking its board as a whole, with one thread per connection. */
+    public static final ServerOptions DEFAULT = new ServerOptions();
+
+    /** Usage of the command-line options parsed by parseOption, for the server's usage message. */
+    static final String USAGE = "[--tile SIZE] [--nio [--workers N] | --virtual-threads] [--rooms DIR [--journal]]"
+            + " [--room-idle SECONDS] [--max-rooms N] [--seed SEED] [--density DENSITY] [--validate off|sampled|full]"
+            + " [--limit COMMAND=RATE[/BURST]]... [--output-limit RATE[/BURST]] [--throttle delay|reject]";
+
+    private int tileSize = Integer.MAX_VALUE;
+    private Engine engine = Engine.THREADS;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private File roomDirectory = null;
+    private long roomIdleMillis = 60000;
+    private int maxRooms = 1024;
+    private boolean journal = false;
+    private OptionalLong seed = OptionalLong.empty();
+    private double density = Board.DEFAULT_DENSITY;
+    private Board.Validation validation = Board.Validation.OFF;
+    private Map<String, RateLimit> commandLimits = Collections.emptyMap();
+    private RateLimit outputLimit = null;
+    private Throttle throttle = Throttle.DELAY;
+
+    // Abstraction function
+    //      represent the options of a server whose board is locked in tiles of
+    //      tileSize*tileSize squares, and whose connections are run by engine, with workers
+    //      threads if engine is SELECTOR. Rooms without players for roomIdleMillis are
+    //      evicted to roomDirectory, or to a new temporary directory if roomDirectory is null.
+    //      At most maxRooms rooms, including the main room, are hosted until evicted.
+    //      The moves made in each room are journaled to the room directory iff journal.
+    //      Random boards have a bomb in each square with probability density, drawn from a
+    //      generator seeded by seed, or by a new seed for each board if seed is empty.
+    //      The rep invariant of every board is validated after moves at level validation.
+    //      Each connection may send each command named by a key of commandLimits at the rate
+    //      of its value, and be sent replies at the rate of outputLimit in bytes, or
+    //      without limit if outputLimit is null; throttle is done with the requests over them.
+    // Rep invariant
+    //      tileSize > 0, workers > 0, engine != null, roomIdleMillis >= 0, maxRooms > 0, seed != null,
+    //      0 <= density <= 1, validation != null, throttle != null
+    //      every key of commandLimits isLimitableCommand, and no value is null
+    // Rep exposure
+    //      all fields are private and of immutable types (File, OptionalLong, RateLimit and
+    //      enums are immutable), except commandLimits, an unmodifiable map of immutable keys
+    //      and values that is copied by withCommandLimit. They are only assigned while a new object is built by a with...()
+    //      method, before it is returned, so ServerOptions is immutable.
+    // Thread safety
+    //      ServerOptions is immutable; instances are safely published by the threads that
+    //      create the server.
+
+    private ServerOptions() {
+        checkRep();
+    }
+
+    private ServerOptions(ServerOptions that) {
+        this.tileSize = that.tileSize;
+        this.engine = that.engine;
+        this.workers = that.workers;
+        this.roomDirectory = that.roomDirectory;
+        this.roomIdleMillis = that.roomIdleMillis;
+        this.maxRooms = that.maxRooms;
+        this.journal = that.journal;
+        this.seed = that.seed;
+        this.density = that.density;
+        this.validation = that.validation;
+        this.commandLimits = that.commandLimits;
+        this.outputLimit = that.outputLimit;
+        this.throttle = that.throttle;
+    }
+
+    private void checkRep() {
+        assert tileSize > 0;
+        assert workers > 0;
+        assert engine != null;
+        assert roomIdleMillis >= 0;
+        assert maxRooms > 0;
+        assert seed != null;
+        assert 0 <= density && density <= 1;
+        assert validation != null;
+        assert throttle != null;
+        for (Map.Entry<String, RateLimit> limit : commandLimits.entrySet()) {
+            assert isLimitableCommand(limit.getKey());
+            assert limit.getValue() != null;
+        }
+    }
+
+    /**
+     * @param command a name
+     * @return true if command is the name of a command of the text protocol other than "bye",
+     *         as it begins a request (e.g. "look" or "dig"), or "invalid" for lines that match
+     *         no command
+     */
+    public static boolean isLimitableCommand(String command) {
+        for (Request.Type type : Request.Type.values()) {
+            if (type != Request.Type.BYE && type.name().toLowerCase(Locale.ROOT).equals(command)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a command-line option of MinesweeperServer that tunes the server, as documented by
+     * MinesweeperServer.main.
+     *
+     * @param flag the option, e.g. "--tile"
+     * @param arguments the arguments following flag, from which the argument of the option,
+     *        if it takes one, is removed
+     * @return options equal to these except for the option, or null if flag is not an option
+     *         that tunes the server
+     * @throws java.util.NoSuchElementException if the option takes an argument and arguments is empty
+     * @throws NumberFormatException if the argument of the option is not a number
+     * @throws IllegalArgumentException if the argument of the option is otherwise invalid
+     */
+    ServerOptions parseOption(String flag, Queue<String> arguments) {
+        if (flag.equals("--tile")) {
+            int tileSize = Integer.parseInt(arguments.remove());
+            if (tileSize <= 0) {
+                throw new IllegalArgumentException("tile size " + tileSize + " must be positive");
+            }
+            return withTileSize(tileSize);
+        } else if (flag.equals("--nio")) {
+            return withEngine(Engine.SELECTOR);
+        } else if (flag.equals("--virtual-threads")) {
+            try {
+                MinesweeperServer.virtualThreadFactory();
+            } catch (UnsupportedOperationException uoe) {
+                throw new IllegalArgumentException(uoe.getMessage());
+            }
+            return withEngine(Engine.VIRTUAL_THREADS);
+        } else if (flag.equals("--workers")) {
+            int workers = Integer.parseInt(arguments.remove());
+            if (workers <= 0) {
+                throw new IllegalArgumentException("workers " + workers + " must be positive");
+            }
+            return withWorkers(workers);
+        } else if (flag.equals("--rooms")) {
+            File directory = new File(arguments.remove());
+            if ( ! directory.isDirectory()) {
+                throw new IllegalArgumentException("directory not found: \"" + directory + "\"");
+            }
+            return withRoomDirectory(directory);
+        } else if (flag.equals("--room-idle")) {
+            long seconds = Long.parseLong(arguments.remove());
+            if (seconds < 0 || seconds > Long.MAX_VALUE / 1000) {
+                throw new IllegalArgumentException("room idle time " + seconds + " out of range");
+            }
+            return withRoomIdleMillis(seconds * 1000);
+        } else if (flag.equals("--max-rooms")) {
+            int maxRooms = Integer.parseInt(arguments.remove());
+            if (maxRooms <= 0) {
+                throw new IllegalArgumentException("max rooms " + maxRooms + " must be positive");
+            }
+            return withMaxRooms(maxRooms);
+        } else if (flag.equals("--journal")) {
+            return withJournal(true);
+        } else if (flag.equals("--seed")) {
+            return withSeed(OptionalLong.of(Long.parseLong(arguments.remove())));
+        } else if (flag.equals("--density")) {
+            double density = Double.parseDouble(arguments.remove());
+            if ( ! (density >= 0 && density <= 1)) {
+                throw new IllegalArgumentException("density " + density + " must be between 0 and 1");
+            }
+            return withDensity(density);
+        } else if (flag.equals("--limit")) {
+            String limit = arguments.remove();
+            int equals = limit.indexOf('=');
+            String command = equals < 0 ? limit : limit.substring(0, equals);
+            if ( ! isLimitableCommand(command)) {
+                throw new IllegalArgumentException("unknown command to limit: \"" + command + "\"");
+            }
+            if (equals < 0) {
+                throw new IllegalArgumentException("missing rate limit for " + command);
+            }
+            return withCommandLimit(command, RateLimit.parse(limit.substring(equals + 1)));
+        } else if (flag.equals("--output-limit")) {
+            return withOutputLimit(RateLimit.parse(arguments.remove()));
+        } else if (flag.equals("--throttle")) {
+            String throttle = arguments.remove();
+            try {
+                return withThrottle(Throttle.valueOf(throttle.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("unknown throttle: \"" + throttle + "\"");
+            }
+        } else if (flag.equals("--validate")) {
+            String level = arguments.remove();
+            try {
+                return withValidation(Board.Validation.valueOf(level.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("unknown validation level: \"" + level + "\"");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check that options parsed from the command line by parseOption go together.
+     *
+     * @throws IllegalArgumentException if journal is set without a room directory
+     */
+    void checkParsed() {
+        if (journal && roomDirectory == null) {
+            throw new IllegalArgumentException("--journal requires --rooms");
+        }
+    }
+
+    /**
+     * @param tileSize number of rows and columns of squares guarded by one board lock, requires tileSize > 0
+     * @return options equal to these except for the tile size
+     */
+    public ServerOptions withTileSize(int tileSize) {
+        ServerOptions options = new ServerOptions(this);
+        options.tileSize = tileSize;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param engine the way the server runs its connections
+     * @return options equal to these except for the engine
+     */
+    public ServerOptions withEngine(Engine engine) {
+        ServerOptions options = new ServerOptions(this);
+        options.engine = engine;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param workers number of worker threads of the SELECTOR engine, requires workers > 0
+     * @return options equal to these except for the number of workers
+     */
+    public ServerOptions withWorkers(int workers) {
+        ServerOptions options = new ServerOptions(this);
+        options.workers = workers;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param roomDirectory directory to which idle rooms are evicted, or null for a new
+     *        temporary directory
+     * @return options equal to these except for the room directory
+     */
+    public ServerOptions withRoomDirectory(File roomDirectory) {
+        ServerOptions options = new ServerOptions(this);
+        options.roomDirectory = roomDirectory;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param roomIdleMillis milliseconds a room must have had no players before it is evicted,
+     *        requires roomIdleMillis >= 0
+     * @return options equal to these except for the room idle time
+     */
+    public ServerOptions withRoomIdleMillis(long roomIdleMillis) {
+        ServerOptions options = new ServerOptions(this);
+        options.roomIdleMillis = roomIdleMillis;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param maxRooms most rooms hosted at once, including the main room, until idle rooms are
+     *        evicted, requires maxRooms > 0
+     * @return options equal to these except for the most rooms
+     */
+    public ServerOptions withMaxRooms(int maxRooms) {
+        ServerOptions options = new ServerOptions(this);
+        options.maxRooms = maxRooms;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param journal true if the moves made in each room should be journaled to the room
+     *        directory, so that a restarted server recovers them
+     * @return options equal to these except for journaling
+     */
+    public ServerOptions withJournal(boolean journal) {
+        ServerOptions options = new ServerOptions(this);
+        options.journal = journal;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param seed seed of the bombs of random boards, or empty for a new seed for each board
+     * @return options equal to these except for the seed
+     */
+    public ServerOptions withSeed(OptionalLong seed) {
+        ServerOptions options = new ServerOptions(this);
+        options.seed = seed;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param density probability of a bomb in each square of a random board, requires
+     *        0 <= density <= 1
+     * @return options equal to these except for the density
+     */
+    public ServerOptions withDensity(double density) {
+        ServerOptions options = new ServerOptions(this);
+        options.density = density;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param validation level of validation of the rep invariant of every board after moves
+     * @return options equal to these except for the validation level
+     */
+    public ServerOptions withValidation(Board.Validation validation) {
+        ServerOptions options = new ServerOptions(this);
+        options.validation = validation;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param command command whose rate is limited, requires isLimitableCommand(command)
+     * @param limit most commands per second each connection may send, and in a burst, or null
+     *        for no limit
+     * @return options equal to these except for the limit of command
+     */
+    public ServerOptions withCommandLimit(String command, RateLimit limit) {
+        ServerOptions options = new ServerOptions(this);
+        Map<String, RateLimit> limits = new LinkedHashMap<>(commandLimits);
+        if (limit == null) {
+            limits.remove(command);
+        } else {
+            limits.put(command, limit);
+        }
+        options.commandLimits = Collections.unmodifiableMap(limits);
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param outputLimit most bytes of replies per second each connection may be sent,
+     *        and in a burst, or null for no limit
+     * @return options equal to these except for the output limit
+     */
+    public ServerOptions withOutputLimit(RateLimit outputLimit) {
+        ServerOptions options = new ServerOptions(this);
+        options.outputLimit = outputLimit;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @param throttle what is done with the requests of a connection over its limits
+     * @return options equal to these except for the throttle
+     */
+    public ServerOptions withThrottle(Throttle throttle) {
+        ServerOptions options = new ServerOptions(this);
+        options.throttle = throttle;
+        options.checkRep();
+        return options;
+    }
+
+    /**
+     * @return number of rows and columns of squares guarded by one board lock
+     */
+    public int tileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return the way the server runs its connections
+     */
+    public Engine engine() {
+        return engine;
+    }
+
+    /**
+     * @return number of worker threads of the SELECTOR engine
+     */
+    public int workers() {
+        return workers;
+    }
+
+    /**
+     * @return directory to which idle rooms are evicted, or null for a new temporary directory
+     */
+    public File roomDirectory() {
+        return roomDirectory;
+    }
+
+    /**
+     * @return milliseconds a room must have had no players before it is evicted
+     */
+    public long roomIdleMillis() {
+        return roomIdleMillis;
+    }
+
+    /**
+     * @return most rooms hosted at once, including the main room, until idle rooms are evicted
+     */
+    public int maxRooms() {
+        return maxRooms;
+    }
+
+    /**
+     * @return true if the moves made in each room are journaled to the room directory
+     */
+    public boolean journal() {
+        return journal;
+    }
+
+    /**
+     * @return seed of the bombs of random boards, or empty for a new seed for each board
+     */
+    public OptionalLong seed() {
+        return seed;
+    }
+
+    /**
+     * @return probability of a bomb in each square of a random board
+     */
+    public double density() {
+        return density;
+    }
+
+    /**
+     * @return level of validation of the rep invariant of every board after moves
+     */
+    public Board.Validation validation() {
+        return validation;
+    }
+
+    /**
+     * @return unmodifiable map from each command whose rate is limited to its limit per
+     *         connection
+     */
+    public Map<String, RateLimit> commandLimits() {
+        return commandLimits;
+    }
+
+    /**
+     * @return limit of the bytes of replies per second to each connection, or null if
+     *         there is none
+     */
+    public RateLimit outputLimit() {
+        return outputLimit;
+    }
+
+    /**
+     * @return what is done with the requests of a connection over its limits
+     */
+    public Throttle throttle() {
+        return throttle;
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import minesweeper.BoardStats;
+
+/**
+ * A threadsafe mutable data type representing the statistics of a MinesweeperServer: the
+ * commands its players sent, the bombs they found, the players connected, the bytes written
+ * to them, the requests over their rate limits, and the statistics of the moves on its boards. Recording a statistic takes no lock
+ * and costs about as much as an uncontended atomic increment.
+ */
+class ServerStats implements ServerStatsMXBean {
+
+    private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+    private static final double[] PERCENTILES = { 0.5, 0.99, 0.999 };
+
+    private final LongAdder[] commands = new LongAdder[Request.Type.values().length];
+    private final LongAdder booms = new LongAdder();
+    private final LongAdder players = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final BoardStats boards = new BoardStats();
+
+    // Abstraction function
+    //      represent the statistics of a server whose players sent commands[t] commands of the
+    //      request type of ordinal t, found booms bombs, of whom players are connected, and
+    //      were written bytesWritten bytes, whose requests waited for their rate limits delayed
+    //      times and were rejected by them rejected times, and whose boards record their moves
+    //      to boards.
+    // Rep invariant
+    //      commands has an element for each request type
+    // Rep exposure
+    //      all fields are private and final. boards is returned, and is threadsafe; the
+    //      boards of the server record to it.
+    // Thread safety
+    //      all fields are final, and threadsafe adders or BoardStats. A snapshot read while
+    //      players play is not atomic, but every statistic in it is a value it took.
+
+    /**
+     * Make statistics of a server with nothing recorded.
+     */
+    ServerStats() {
+        for (int t = 0; t < commands.length; t++) {
+            commands[t] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return statistics recorded by the boards of the server
+     */
+    BoardStats boards() {
+        return boards;
+    }
+
+    /**
+     * Count a command handled.
+     *
+     * @param type type of the command
+     */
+    void command(Request.Type type) {
+        commands[type.ordinal()].increment();
+    }
+
+    /**
+     * Count a dig that found a bomb.
+     */
+    void boom() {
+        booms.increment();
+    }
+
+    /**
+     * Count a player connecting.
+     */
+    void connected() {
+        players.increment();
+    }
+
+    /**
+     * Count a player disconnecting.
+     */
+    void disconnected() {
+        players.decrement();
+    }
+
+    /**
+     * Count a request made to wait for the rate limits of its connection.
+     */
+    void delayed() {
+        delayed.increment();
+    }
+
+    /**
+     * Count a request rejected by the rate limits of its connection.
+     */
+    void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Count bytes written to a player.
+     *
+     * @param bytes number of bytes, requires bytes >= 0
+     */
+    void wrote(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * @param out stream to a player
+     * @return a stream writing to out, counting the bytes written as written to a player
+     */
+    OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override public void write(int b) throws IOException {
+                out.write(b);
+                wrote(1);
+            }
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                wrote(len);
+            }
+        };
+    }
+
+    @Override public long getPlayers() {
+        return players.sum();
+    }
+
+    @Override public long getBooms() {
+        return booms.sum();
+    }
+
+    @Override public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override public long getDelayed() {
+        return delayed.sum();
+    }
+
+    @Override public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override public Map<String, Long> getCommands() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Request.Type type : Request.Type.values()) {
+            counts.put(type.name().toLowerCase(Locale.ROOT), commands[type.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("players", getPlayers());
+        for (Map.Entry<String, Long> command : getCommands().entrySet()) {
+            stats.put("commands." + command.getKey(), command.getValue());
+        }
+        stats.put("booms", getBooms());
+        stats.put("bytes.written", getBytesWritten());
+        stats.put("limits.delayed", getDelayed());
+        stats.put("limits.rejected", getRejected());
+        putHistogram(stats, "lock.wait.ns", boards.lockWaitNanos());
+        putHistogram(stats, "lock.hold.ns", boards.lockHoldNanos());
+        putHistogram(stats, "dig.squares", boards.squaresDug());
+        return stats;
+    }
+
+    /**
+     * Put the count, percentiles and maximum of a histogram in a map of statistics.
+     */
+    private static void putHistogram(Map<String, Long> stats, String name, BoardStats.Histogram histogram) {
+        stats.put(name + ".count", histogram.count());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            stats.put(name + "." + PERCENTILE_NAMES[i], histogram.percentile(PERCENTILES[i]));
+        }
+        stats.put(name + ".max", histogram.max());
+    }
+
+    /**
+     * Format the statistics for the stats command, according to the grammar:
+     * <pre>
+     *   STATS ::= "STATS" SPACE INT (NEWLINE STAT)*
+     *   STAT ::= NAME SPACE INT
+     *   NAME ::= [a-z0-9.]+
+     * </pre>
+     * where the first INT is the number of STAT lines, and the names are those of getStats,
+     * in the same order. Percentiles of histograms are rounded up to one less than a power of
+     * two.
+     *
+     * @return message to client
+     */
+    String format() {
+        Map<String, Long> stats = getStats();
+        StringBuilder message = new StringBuilder("STATS ").append(stats.size());
+        for (Map.Entry<String, Long> stat : stats.entrySet()) {
+            message.append('\n').append(stat.getKey()).append(' ').append(stat.getValue());
+        }
+        return message.toString();
+    }
+}
@@ -0,0 +1,48 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.Map;
+
+/**
+ * The statistics of a MinesweeperServer, as exposed through JMX. Each server registers its
+ * statistics under the name "minesweeper.server:type=ServerStats,port=PORT".
+ */
+public interface ServerStatsMXBean {
+
+    /**
+     * @return number of players connected
+     */
+    long getPlayers();
+
+    /**
+     * @return number of digs that found a bomb
+     */
+    long getBooms();
+
+    /**
+     * @return number of bytes written to players
+     */
+    long getBytesWritten();
+
+    /**
+     * @return number of times a request waited for the rate limits of its connection
+     */
+    long getDelayed();
+
+    /**
+     * @return number of requests rejected by the rate limits of their connections
+     */
+    long getRejected();
+
+    /**
+     * @return number of commands handled, by command name
+     */
+    Map<String, Long> getCommands();
+
+    /**
+     * @return every statistic, by name, as given by the stats command
+     */
+    Map<String, Long> getStats();
+}
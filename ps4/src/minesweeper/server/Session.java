@@ -0,0 +1,637 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import minesweeper.Board;
+import minesweeper.Change;
+
+/**
+ * A mutable data type representing the protocol state of one player's connection to a
+ * MinesweeperServer, independent of how the connection's bytes are read and written.
+ * A player starts in the main room of the server, and may join and leave other rooms.
+ */
+class Session {
+
+    private static final String HELP_MESSAGE = "Enter command: 'look', 'look X Y W H', 'dig X Y', 'flag X Y', "
+            + "'deflag X Y', 'delta', 'join ROOM', 'leave', 'checkpoint', 'subscribe', 'stats', 'binary', "
+            + "'help', or 'bye'.";
+    /** Most lines of input handled as one batch, so that one player's pipeline holds the board briefly. */
+    static final int MAX_BATCH = 64;
+
+    private static final String WIN_MESSAGE = "WIN! Every square without a bomb in room %s is dug.";
+    private static final String REJECTED_MESSAGE = "Too many requests. Request rejected.";
+    private static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
+    private final Rooms rooms;
+    private final ServerStats stats;
+    private final RateLimiter limiter;
+    private final boolean debug;
+    private final Notices notices;
+    private Rooms.Room room;
+    private Board board;
+    private Subscription subscription = null;
+    private final Deque<Request> backlog = new ArrayDeque<>();
+    private long delayNanos = 0;
+    private boolean delta = false;
+    private boolean binary = false;
+    private boolean deflate = false;
+    private String lastBoard = null;
+    private byte[] lastBoardFrame = null;
+    private boolean closed = false;
+    private boolean ended = false;
+
+    // Abstraction function
+    //      represent the connection of a player to room of rooms, counted in stats with its
+    //      commands until it ends, whose board is board, which
+    //      is in delta mode iff delta, and which must be disconnected iff closed. If debug is
+    //      false, the connection is closed after a BOOM message. notices sends messages to the
+    //      player outside of replies. The player has left room for good iff ended. If
+    //      subscription is not null, the player subscribed to the changes of the boards of its
+    //      rooms, and subscription pushes the changes of board unless it was dropped.
+    //      limiter limits the rate of the player's requests and replies; backlog holds the
+    //      requests received but not yet run, in order, which wait delayNanos nanoseconds from
+    //      the last handleAll for the limits to allow the first of them.
+    //      The connection uses the binary protocol of Frames iff binary, with boards deflated
+    //      iff deflate; lastBoardFrame, unless null, is the BOARD frame of the board lastBoard.
+    // Rep invariant
+    //      rooms, stats, limiter, room, board, notices != null
+    //      subscription is null or was returned by room.subscribe
+    //      delayNanos >= 0; backlog is empty if delayNanos == 0 and ! closed
+    //      deflate is false unless binary; lastBoard == null iff lastBoardFrame == null
+    // Rep exposure
+    //      rooms, room and board are shared with the server and the other sessions, and are
+    //      threadsafe. stats is shared with the server and the other sessions, and is
+    //      threadsafe. notices is shared with room, and is threadsafe. subscription is shared
+    //      with room, and is threadsafe. limiter, backlog and lastBoardFrame are never shared.
+    //      All other fields are private and of immutable types.
+    // Thread safety
+    //      A Session is used by one thread at a time: the thread of its connection, or the
+    //      worker currently running its commands, which hands it on through the locks of the
+    //      server engine.
+
+    /**
+     * Make a Session for a newly connected player, counting the player in the main room.
+     *
+     * @param rooms rooms of the server
+     * @param stats statistics of the server, to count the player and its commands in
+     * @param limiter new rate limits of the player's connection
+     * @param debug true if the connection should not be closed after a BOOM message
+     * @param notices sender of messages to the player outside of replies, such as the win of
+     *                the board of its room by another player; each message is sent as a
+     *                whole, followed by a line terminator
+     */
+    Session(Rooms rooms, ServerStats stats, RateLimiter limiter, boolean debug, Notices notices) {
+        this.rooms = rooms;
+        this.stats = stats;
+        this.limiter = limiter;
+        this.debug = debug;
+        this.notices = notices;
+        this.room = rooms.main();
+        try {
+            this.board = room.enter(notices);
+        } catch (IOException ioe) {
+            throw new AssertionError("the main room is never evicted", ioe);
+        }
+        stats.connected();
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert rooms != null;
+        assert stats != null;
+        assert limiter != null;
+        assert room != null;
+        assert board != null;
+        assert notices != null;
+    }
+
+    /**
+     * Handle one line of client input.
+     *
+     * @param input line from client, without its line terminator
+     * @return message to client, without its final line terminator, or null if none
+     */
+    String handle(String input) {
+        List<String> replies = handleAll(Collections.singletonList(input));
+        return replies.isEmpty() ? null : replies.get(0);
+    }
+
+    /**
+     * Handle lines of client input sent one after another without waiting for replies, in
+     * order, until the connection must be closed, a request must wait for the rate limits of
+     * the connection, or the connection switches to the binary protocol. Each run of
+     * consecutive commands on the board of the player's room (look, dig, flag, deflag, delta and
+     * help) is made as one batch of the board, and its moves are journaled by one sync before
+     * any of their replies is returned. A request over the limits is rejected with a message if
+     * the limits throttle by rejecting; otherwise it and the requests after it wait in the
+     * session until handleAll is called again, no earlier than delayNanos() later. The lines
+     * after a "binary" command are ignored: the client must wait for its reply, after which
+     * the connection uses the binary protocol and handleFrames.
+     *
+     * @param inputs lines from client, without their line terminators, at most MAX_BATCH;
+     *               requires ! isBinary(), and inputs to be empty if delayNanos() > 0, so that
+     *               no more input is read while requests wait
+     * @return messages to client in order, without their final line terminators; the lines
+     *         after the one closing the connection are not handled
+     */
+    List<String> handleAll(List<String> inputs) {
+        for (String input : inputs) {
+            backlog.add(Request.parse(input));
+        }
+        List<String> messages = new ArrayList<>();
+        for (Reply reply : run()) {
+            messages.add(reply.text);
+        }
+        return messages;
+    }
+
+    /**
+     * Handle frames of the binary protocol of Frames sent one after another without waiting
+     * for replies, as handleAll handles lines of the text protocol.
+     *
+     * @param frames OPCODE and PAYLOAD of frames from client, at most MAX_BATCH; requires
+     *               isBinary(), and frames to be empty if delayNanos() > 0
+     * @return frames to client in order, each with its LENGTH
+     */
+    List<byte[]> handleFrames(List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            backlog.add(Frames.parse(frame));
+        }
+        List<byte[]> encoded = new ArrayList<>();
+        for (Reply reply : run()) {
+            encoded.add(encode(reply));
+        }
+        return encoded;
+    }
+
+    /**
+     * @return true if the connection has switched to the binary protocol of Frames
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Run the requests of the backlog in order, until the connection must be closed, a request
+     * must wait for the rate limits, or the connection switches protocol.
+     *
+     * @return replies to client in order
+     */
+    private List<Reply> run() {
+        List<Reply> replies = new ArrayList<>();
+        boolean wasBinary = binary;
+        delayNanos = 0;
+        while ( ! backlog.isEmpty() && ! closed && delayNanos == 0 && binary == wasBinary) {
+            if (onBoard(backlog.peek())) {
+                runOnBoard(replies);
+            } else if (admit(backlog.peek(), replies)) {
+                Reply reply = execute(backlog.remove());
+                if (reply != null) {
+                    limiter.replied(length(reply), System.nanoTime());
+                    replies.add(reply);
+                }
+            }
+        }
+        if (binary != wasBinary) {
+            backlog.clear();
+        }
+        checkRep();
+        return replies;
+    }
+
+    /**
+     * @return nanoseconds after the last handleAll before the limits of the connection may
+     *         allow its first waiting request, or 0 if no request waits
+     */
+    long delayNanos() {
+        return delayNanos;
+    }
+
+    /**
+     * Check a request against the limits of the connection, spending its token if they allow
+     * it. A request over the limits is removed from the backlog and rejected if the limits
+     * throttle by rejecting, and otherwise left to wait, setting delayNanos.
+     *
+     * @param request first request of the backlog
+     * @param replies list to append the message rejecting the request to
+     * @return true if the request may run now
+     */
+    private boolean admit(Request request, List<Reply> replies) {
+        long delay = limiter.admit(request.type(), System.nanoTime());
+        if (delay == 0) {
+            return true;
+        }
+        if (limiter.throttle() == ServerOptions.Throttle.REJECT) {
+            backlog.remove();
+            stats.rejected();
+            replies.add(Reply.text(REJECTED_MESSAGE));
+        } else {
+            stats.delayed();
+            delayNanos = delay;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the request only looks at or moves on the board of the player's room,
+     *         without waiting for other threads
+     */
+    private static boolean onBoard(Request request) {
+        switch (request.type()) {
+        case LOOK:
+        case DELTA:
+        case DIG:
+        case FLAG:
+        case DEFLAG:
+        case HELP:
+        case INVALID:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Run the requests at the head of the backlog that are on the board of the player's room as
+     * one batch, as far as the limits of the connection allow, then wait until their moves are
+     * journaled, and announce a win by one of their digs to the other players in the room.
+     *
+     * @param replies list to append the replies to, in order; the requests after one closing
+     *                the connection or waiting for the limits are not run
+     */
+    private void runOnBoard(List<Reply> replies) {
+        List<Integer> moves = new ArrayList<>();
+        int win = board.batch(() -> {
+            int winningDig = -1;
+            while ( ! backlog.isEmpty() && onBoard(backlog.peek()) && ! closed && delayNanos == 0) {
+                if ( ! admit(backlog.peek(), replies)) {
+                    continue;
+                }
+                Request.Type type = backlog.peek().type();
+                if (type == Request.Type.DIG || type == Request.Type.FLAG || type == Request.Type.DEFLAG) {
+                    moves.add(replies.size());
+                }
+                Reply reply = execute(backlog.remove());
+                limiter.replied(length(reply), System.nanoTime());
+                replies.add(reply);
+                if (type == Request.Type.DIG && winningDig < 0 && board.status() == Board.Status.WON) {
+                    winningDig = replies.size() - 1;
+                }
+            }
+            return winningDig;
+        });
+        if ( ! moves.isEmpty()) {
+            try {
+                room.sync();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                for (int move : moves) {
+                    replies.set(move, Reply.text("Move could not be saved."));
+                }
+            }
+        }
+        if (win >= 0) {
+            String message = String.format(WIN_MESSAGE, room.id());
+            if (room.announceWin(message, notices)) {
+                replies.add(win + 1, Reply.text(message));
+            }
+        }
+    }
+
+    /**
+     * Run one request, without waiting for its move to be journaled.
+     *
+     * @param request request from client
+     * @return reply to client, or null if none
+     */
+    private Reply execute(Request request) {
+        stats.command(request.type());
+        switch (request.type()) {
+        case LOOK:
+            if (request.width() > 0) {
+                return Reply.text(look(request.x(), request.y(), request.width(), request.height()));
+            }
+            return Reply.board(board.toString(), board.getColumns());
+        case BYE:
+            closed = true;
+            return null;
+        case DELTA:
+            delta = true;
+            return Reply.text(formatDelta(Collections.emptyList()));
+        case DIG:
+            return dig(request.x(), request.y());
+        case FLAG:
+            return flag(request.x(), request.y());
+        case DEFLAG:
+            return deflag(request.x(), request.y());
+        case JOIN:
+            return Reply.text(join(request.room()));
+        case LEAVE:
+            return Reply.text(join(Rooms.MAIN));
+        case CHECKPOINT:
+            return Reply.text(checkpoint());
+        case SUBSCRIBE:
+            return Reply.text(subscribe());
+        case STATS:
+            return Reply.text(stats.format());
+        case BINARY:
+            return Reply.text(startBinary(request.deflate()));
+        case HELP:
+        case INVALID:
+            return Reply.text(HELP_MESSAGE);
+        default:
+            // Should never get here, make sure to return in each of the cases above
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return true if the connection must be closed and no more input handled
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop counting the player in its room, once its connection is closed. No more input may
+     * be handled after calling end.
+     */
+    void end() {
+        if ( ! ended) {
+            ended = true;
+            if (subscription != null) {
+                room.unsubscribe(subscription);
+            }
+            room.exit(notices);
+            stats.disconnected();
+        }
+    }
+
+    /**
+     * Move the player to another room, creating it if it does not exist, unless the player is
+     * in that room already.
+     *
+     * @param id id of the room to move to, a valid room id
+     * @return the HELLO message of the room, or an error message if the room cannot be created
+     *         or entered
+     */
+    private String join(String id) {
+        if ( ! id.equals(room.id())) {
+            Rooms.Room next;
+            Board entered;
+            try {
+                do { // again if the room is evicted before the player enters it
+                    next = rooms.get(id);
+                    if (next == null) {
+                        return "Too many rooms. Room " + id + " cannot be created.";
+                    }
+                    entered = next.enter(notices);
+                } while (entered == null);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                return "Room " + id + " is unavailable.";
+            }
+            board = entered;
+            if (subscription != null) {
+                room.unsubscribe(subscription);
+                subscription = next.subscribe(notices);
+            }
+            room.exit(notices);
+            room = next;
+        }
+        checkRep();
+        return "Welcome to room " + room.id() + ". Board: " + board.getColumns() + " columns by "
+                + board.getRows() + " rows. Players: " + room.players() + " including you.";
+    }
+
+    /**
+     * Switch the connection to the binary protocol of Frames, after the reply to this command,
+     * unless it uses it already.
+     *
+     * @param deflate true if the cells of the boards sent should be deflated
+     * @return a message telling the player the protocol it uses from now on
+     */
+    private String startBinary(boolean deflate) {
+        if ( ! binary) {
+            binary = true;
+            this.deflate = deflate;
+        }
+        return this.deflate ? "BINARY DEFLATE" : "BINARY";
+    }
+
+    /**
+     * @param reply reply to client
+     * @return number of bytes of the reply in the protocol of the connection, counting
+     *         characters as bytes and the line separator of a text message
+     */
+    private int length(Reply reply) {
+        return binary ? encode(reply).length : reply.text.length() + LINE_SEPARATOR_LENGTH;
+    }
+
+    /**
+     * @param reply reply to client
+     * @return the frame of the reply in the binary protocol, with its LENGTH
+     */
+    private byte[] encode(Reply reply) {
+        if ( ! reply.board) {
+            return Frames.text(Frames.TEXT_REPLY, reply.text);
+        }
+        if ( ! reply.text.equals(lastBoard)) { // equals compares identity and length first
+            lastBoardFrame = Frames.board(reply.text, reply.columns, deflate);
+            lastBoard = reply.text;
+        }
+        return lastBoardFrame;
+    }
+
+    /**
+     * Subscribe the player to the changes of the board of its room, and of every room it joins
+     * later, unless it is subscribed already. A subscription that was dropped because the
+     * player fell too far behind is renewed.
+     *
+     * @return a message telling the player it is subscribed; the first pushed message, the
+     *         whole board, is delivered apart from the replies, and may come before or after it
+     */
+    private String subscribe() {
+        if (subscription == null || subscription.isDropped()) {
+            if (subscription != null) {
+                room.unsubscribe(subscription);
+            }
+            subscription = room.subscribe(notices);
+        }
+        return "Subscribed to room " + room.id() + ".";
+    }
+
+    /**
+     * Save the board of the player's room to its snapshot file.
+     *
+     * @return a message telling whether the board was saved
+     */
+    private String checkpoint() {
+        try {
+            room.checkpoint();
+            return "Saved room " + room.id() + ".";
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return "Room " + room.id() + " could not be saved.";
+        }
+    }
+
+    /**
+     * Dig the square at column x and row y, closing the connection if it held a bomb, unless
+     * debug is true.
+     *
+     * @return "BOOM!" (followed by the delta in delta mode) if the square held a bomb, otherwise
+     *         the board, or the delta in delta mode
+     */
+    private Reply dig(int x, int y) {
+        List<Change> changes = delta ? new ArrayList<>() : null;
+        boolean boom = board.dig(y, x, changes);
+        if (boom) {
+            stats.boom();
+        }
+        if (boom && debug == false) {
+            closed = true;
+        }
+        if (delta) {
+            return Reply.text(boom ? "BOOM!\n" + formatDelta(changes) : formatDelta(changes));
+        }
+        return boom ? Reply.text("BOOM!") : Reply.board(board.toString(), board.getColumns());
+    }
+
+    /**
+     * Flag the square at column x and row y.
+     *
+     * @return the board, or the delta in delta mode
+     */
+    private Reply flag(int x, int y) {
+        if ( ! delta) {
+            return Reply.board(board.flag(y, x), board.getColumns());
+        }
+        List<Change> changes = new ArrayList<>();
+        board.flag(y, x, changes);
+        return Reply.text(formatDelta(changes));
+    }
+
+    /**
+     * Deflag the square at column x and row y.
+     *
+     * @return the board, or the delta in delta mode
+     */
+    private Reply deflag(int x, int y) {
+        if ( ! delta) {
+            return Reply.board(board.deflag(y, x), board.getColumns());
+        }
+        List<Change> changes = new ArrayList<>();
+        board.deflag(y, x, changes);
+        return Reply.text(formatDelta(changes));
+    }
+
+    /**
+     * Format the squares changed by a command for a connection in delta mode, according to the
+     * grammar:
+     * <pre>
+     *   DELTA ::= "DELTA" SPACE INT (NEWLINE CHANGE)*
+     *   CHANGE ::= X SPACE Y SPACE STATE
+     *   STATE ::= "-" | "F" | [0-8]
+     * </pre>
+     * where INT is the number of CHANGE lines and STATE is the state shown by look, except that
+     * "0" stands for a dug square with no neighbor bombs (shown as " " by look).
+     *
+     * @param changes squares changed by the command
+     * @return message to client
+     */
+    private static String formatDelta(List<Change> changes) {
+        return formatChanges("DELTA", changes);
+    }
+
+    /**
+     * Look at a region of the board, clipped to the board, as a message of the grammar:
+     * <pre>
+     *   VIEW ::= "VIEW" SPACE X SPACE Y SPACE W SPACE H (NEWLINE ROW)*
+     *   ROW ::= (STATE SPACE)* STATE
+     * </pre>
+     * where X and Y are the column and row of the top left square of the clipped region, W and
+     * H its numbers of columns and rows, and each of its H ROW lines has W states as shown by
+     * look. If no square of the region is on the board, X and Y are as requested and W and H
+     * are 0.
+     *
+     * @param x column of the top left square of the region
+     * @param y row of the top left square of the region
+     * @param width number of columns of the region, requires width > 0
+     * @param height number of rows of the region, requires height > 0
+     * @return message to client
+     */
+    private String look(int x, int y, int width, int height) {
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = (int) Math.min((long) x + width, board.getColumns());
+        int bottom = (int) Math.min((long) y + height, board.getRows());
+        if (left >= right || top >= bottom) {
+            return "VIEW " + x + " " + y + " 0 0";
+        }
+        return "VIEW " + left + " " + top + " " + (right - left) + " " + (bottom - top) + "\n"
+                + board.look(top, left, bottom - top, right - left);
+    }
+
+    /**
+     * Format changed squares as a keyword and the CHANGE lines of a DELTA message.
+     *
+     * @param keyword first word of the message
+     * @param changes changed squares
+     * @return the message, as specified by formatDelta with keyword in place of "DELTA"
+     */
+    static String formatChanges(String keyword, List<Change> changes) {
+        StringBuilder message = new StringBuilder(keyword).append(' ').append(changes.size());
+        for (Change change : changes) {
+            message.append('\n').append(change.getColumn()).append(' ').append(change.getRow()).append(' ')
+                   .append(change.getState() == ' ' ? '0' : change.getState());
+        }
+        return message.toString();
+    }
+
+    /**
+     * An immutable reply to a client: a message of the text protocol, which is the board as
+     * shown by look if the reply is a board.
+     */
+    private static class Reply {
+        private final String text;
+        private final boolean board;
+        private final int columns;
+
+        // Abstraction function
+        //      represent the reply text, which is a board of columns columns iff board
+        // Rep invariant
+        //      text != null; columns > 0 iff board
+
+        private Reply(String text, boolean board, int columns) {
+            this.text = text;
+            this.board = board;
+            this.columns = columns;
+        }
+
+        /**
+         * @param text message, without its final line terminator
+         * @return a reply that is not a board
+         */
+        static Reply text(String text) {
+            return new Reply(text, false, 0);
+        }
+
+        /**
+         * @param board board as shown by look
+         * @param columns number of columns of the board
+         * @return a reply that is the board
+         */
+        static Reply board(String board, int columns) {
+            return new Reply(board, true, columns);
+        }
+    }
+}
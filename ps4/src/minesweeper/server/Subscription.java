@@ -0,0 +1,186 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import minesweeper.Board;
+import minesweeper.Change;
+
+/**
+ * A mutable data type representing a player subscribed to the changes of the board of a room,
+ * which pushes them to the player as they are made, without waiting for commands. Changes are
+ * queued as they are made and coalesced by square, so a square changed many times before it is
+ * delivered is sent once, in its latest state. The queue is bounded: a subscriber that falls
+ * more than MAX_PENDING_CHANGES squares behind is sent the whole board instead, and one that
+ * falls that far behind again before the whole board has been sent to it is dropped. A
+ * subscriber whose connection refuses a message, because the player has not read the earlier
+ * ones, is dropped too, and is sent DROPPED if its connection takes it.
+ * <p>
+ * Messages are pushed according to the grammar:
+ * <pre>
+ *   MESSAGE ::= EVENT | BOARD | DROPPED
+ *   EVENT ::= "EVENT" SPACE INT (NEWLINE CHANGE)*
+ *   CHANGE ::= X SPACE Y SPACE STATE
+ *   STATE ::= "-" | "F" | [0-8]
+ *   BOARD ::= "BOARD" (NEWLINE ROW)+
+ *   DROPPED ::= "DROPPED"
+ * </pre>
+ * where an EVENT has INT CHANGE lines, as in a DELTA reply, and a BOARD has a ROW for every row
+ * of the board as shown by look. The first message of a subscription is a BOARD, and applying
+ * the messages in order to it gives the board as it is.
+ */
+class Subscription {
+
+    /** Number of changed squares queued for a subscriber before it is sent the whole board. */
+    static final int MAX_PENDING_CHANGES = 4096;
+
+    private final Board board;
+    private final Notices notices;
+    private final Executor delivery;
+    private final Map<Integer, Change> pending = new LinkedHashMap<>();
+    private boolean resync = true;
+    private boolean resyncing = false;
+    private boolean delivering = false;
+    private boolean dropped = false;
+    private boolean droppedSent = false;
+
+    // Abstraction function
+    //      represent the subscription of the player sent notices by notices to the changes of
+    //      board, delivered by tasks run by delivery. pending maps the index
+    //      (row * columns + column) of each square changed since the last message taken for
+    //      delivery to its latest change, in the order the squares first changed. If resync,
+    //      the next message is the whole board, and covers every pending change. resyncing is
+    //      true iff a BOARD message has been taken but not yet sent. delivering is true iff a
+    //      delivery task is scheduled or running. The subscription is dropped or cancelled iff
+    //      dropped, and there is nothing more to send iff droppedSent.
+    // Rep invariant
+    //      pending.size() <= MAX_PENDING_CHANGES; pending is empty if resync or dropped
+    //      droppedSent implies dropped
+    // Rep exposure
+    //      all fields are private. board is shared with the room and the other players, and
+    //      notices with the session of the player; both are threadsafe.
+    // Thread safety
+    //      pending, resync, resyncing, delivering, dropped and droppedSent are guarded by this
+    //      object's lock, which is never held while rendering the board or sending a message.
+    //      At most one delivery task runs at a time, since one is only scheduled while
+    //      delivering is false, so messages are sent in the order they are taken.
+
+    /**
+     * Make a subscription to the changes of a board, whose first message, the whole board, is
+     * delivered right away.
+     *
+     * @param board board to push the changes of
+     * @param notices sender of messages to the player
+     * @param delivery executor running the tasks that send messages
+     */
+    Subscription(Board board, Notices notices, Executor delivery) {
+        this.board = board;
+        this.notices = notices;
+        this.delivery = delivery;
+        synchronized (this) {
+            delivering = true;
+            checkRep();
+        }
+        delivery.execute(this::deliver);
+    }
+
+    private void checkRep() {
+        assert pending.size() <= MAX_PENDING_CHANGES;
+        assert pending.isEmpty() || ! (resync || dropped);
+        assert ! droppedSent || dropped;
+    }
+
+    /**
+     * Queue the squares modified by one move, to be sent to the player. Called while the board
+     * holds the locks of the squares, so it never waits for the player.
+     *
+     * @param changes new state of each square modified by the move
+     */
+    synchronized void publish(List<Change> changes) {
+        if (dropped || resync) {
+            return; // the next message covers the changes
+        }
+        int columns = board.getColumns();
+        for (Change change : changes) {
+            int square = change.getRow() * columns + change.getColumn();
+            pending.put(square, change);
+        }
+        if (pending.size() > MAX_PENDING_CHANGES) {
+            pending.clear();
+            if (resyncing) {
+                dropped = true;
+            } else {
+                resync = true;
+            }
+        }
+        if ( ! delivering) {
+            delivering = true;
+            delivery.execute(this::deliver);
+        }
+        checkRep();
+    }
+
+    /**
+     * Stop sending changes to the player, without telling it.
+     */
+    synchronized void cancel() {
+        dropped = true;
+        droppedSent = true;
+        pending.clear();
+        checkRep();
+    }
+
+    /**
+     * @return true if the player fell too far behind, or the subscription was cancelled, and
+     *         the player is no longer sent changes
+     */
+    synchronized boolean isDropped() {
+        return dropped;
+    }
+
+    /**
+     * Send the pending messages to the player, until none is left. Run by delivery.
+     */
+    private void deliver() {
+        while (true) {
+            boolean whole;
+            List<Change> changes;
+            synchronized (this) {
+                if ((dropped && droppedSent) || ( ! dropped && ! resync && pending.isEmpty())) {
+                    delivering = false;
+                    return;
+                }
+                whole = resync;
+                changes = dropped || resync ? null : new ArrayList<>(pending.values());
+                resyncing = whole;
+                resync = false;
+                droppedSent = dropped;
+                pending.clear();
+                checkRep();
+            }
+            boolean sent;
+            if (changes != null) {
+                sent = notices.offer(Session.formatChanges("EVENT", changes));
+            } else if (whole) {
+                sent = notices.offer("BOARD\n" + board.toString());
+            } else {
+                notices.offer("DROPPED"); // the player is not told if its connection refuses it
+                sent = true;
+            }
+            synchronized (this) {
+                resyncing = false;
+                if ( ! sent && ! dropped) {
+                    dropped = true; // the player is too slow; DROPPED is offered next
+                    pending.clear();
+                }
+                checkRep();
+            }
+        }
+    }
+}
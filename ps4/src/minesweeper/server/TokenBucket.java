@@ -0,0 +1,78 @@
+/* Copyright (c) 2007-2016 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+/**
+ * A mutable data type representing a token bucket: tokens accrue at the rate of a RateLimit
+ * up to its burst, and are spent by the units they limit. Spending may take the bucket into
+ * debt, which later spending must wait out.
+ */
+class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long refilled;
+
+    // Abstraction function
+    //      represent a bucket holding tokens tokens as of System.nanoTime() == refilled,
+    //      which accrue at perNano tokens per nanosecond up to burst
+    // Rep invariant
+    //      perNano > 0, burst >= 1, tokens <= burst
+    // Rep exposure
+    //      all fields are private and of primitive types.
+    // Thread safety
+    //      not threadsafe; a TokenBucket is confined to the Session that owns it.
+
+    /**
+     * Make a full bucket.
+     *
+     * @param limit rate and burst of the bucket
+     * @param now current System.nanoTime()
+     */
+    TokenBucket(RateLimit limit, long now) {
+        this.perNano = limit.perSecond() / NANOS_PER_SECOND;
+        this.burst = limit.burst();
+        this.tokens = burst;
+        this.refilled = now;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert perNano > 0;
+        assert burst >= 1;
+        assert tokens <= burst;
+    }
+
+    /**
+     * @param now current System.nanoTime(), no earlier than in previous calls
+     * @return nanoseconds until the bucket holds a whole token, or 0 if it holds one now
+     */
+    long delayNanos(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+    }
+
+    /**
+     * Spend tokens, going into debt if the bucket holds fewer.
+     *
+     * @param amount tokens to spend, requires amount >= 0
+     * @param now current System.nanoTime(), no earlier than in previous calls
+     */
+    void spend(double amount, long now) {
+        refill(now);
+        tokens -= amount;
+        checkRep();
+    }
+
+    /**
+     * Add the tokens accrued since the last refill.
+     */
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - refilled) * perNano);
+        refilled = now;
+    }
+}
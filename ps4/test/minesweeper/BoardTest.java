@@ -6,9 +6,16 @@ package minesweeper;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Tests for the Board Abstract Data Type and the constituting Square Abstract Data Type.
+ * Tests for the Board Abstract Data Type and the constituting Grid Abstract Data Type.
  */
 public class BoardTest {
 	
@@ -18,6 +25,31 @@ public class BoardTest {
 	//		command: dig, flag, deflag
 	//		valid and invalid command (square out of bound, invalid state (i.e. flag a 
 	//		dugged square)
+	//      locking: one lock for the whole board, tiles of 1 and several squares; 
+	//               concurrent digs, flags and deflags from several threads
+	//      board file: one and several mapped windows, "\n", "\r" and "\r\n" line ends,
+	//               trailing spaces, no final newline; invalid value, size mismatch
+	//      snapshot: round trip of untouched, flagged and dug squares, bombs and move count;
+	//               truncated, corrupted and unsupported snapshots
+	//      move log: moves reported in order, replayed on a snapshot
+	//      random board: same and different seeds, density 0, 0.25 and 1, bands filled
+	//               sequentially and in parallel, one and several columns
+	//      batch: moves and looks in a batch, one lock and tiles; other threads' moves wait
+	//               for a batch holding the single lock
+	//      change listener: flags, deflags, digs and cascades, with and without a list of
+	//               changes from the caller; no-op moves; removed
+	//      stats: moves, no-op and out-of-range moves, renders, cascades from a square and
+	//               from a bomb; removed; histogram buckets of 0, powers of two and the maximum
+	//      look: view reused while no move changes a square, re-rendered after changes;
+	//               concurrent looks see the moves completed before them, one lock and tiles;
+	//               looks during a batch of another thread holding the single lock do not
+	//               wait for it;
+	//               regions of one square, a row, a column, an inner block and the whole
+	//               board, read from the squares and from the view, one lock and tiles
+	//      game status: safe squares left and flagged squares after flags, deflags, digs,
+	//               cascades and BOOMs, and after a snapshot; playing and won
+	//      validation: off, sampled and full, one lock and tiles, concurrent digs; valid
+	//               squares, and each kind of invalid square
 	File file = new File("Board_1.txt");
 
     @Test(expected=AssertionError.class)
@@ -67,6 +99,18 @@ public class BoardTest {
     			boardMessage, board.toString());
     }
     
+    @Test
+    public void digBombUpdatesDugNeighborCounts() throws IOException{
+    	Board board = new Board(file);
+    	board.dig(1, 1);
+    	assertEquals("dug: adjacent to 2 bombs", 
+    			"- - - -\n- 2 - -\n- - - -\n- - - -", board.toString());
+    	assertEquals(board.dig(0, 0), "BOOM!");
+    	String boardMessage = "       \n1 1 1 1\n- - - -\n- - - -";
+    	assertEquals("dug: hit a bomb, neighbor counts reduced by 1", 
+    			boardMessage, board.toString());
+    }
+    
     @Test
     public void flagUntouchedSquare() throws IOException{
     	Board board = new Board(file);
@@ -95,4 +139,603 @@ public class BoardTest {
     	assertEquals("deflag a flagged square", 
     			boardMessage, board.toString());
     }
+    
+    @Test
+    public void largeRandomBoardAllUntouched() {
+    	Board board = new Board(2000, 3000);
+    	assertEquals(2000, board.getRows());
+    	assertEquals(3000, board.getColumns());
+    	String boardMessage = board.toString();
+    	assertEquals("2 characters per square less the final newline", 
+    			2000 * 3000 * 2 - 1, boardMessage.length());
+    	assertTrue("all squares untouched", 
+    			boardMessage.chars().allMatch(c -> c == '-' || c == ' ' || c == '\n'));
+    }
+    
+    @Test
+    public void batchOfMovesAndLooks() throws Exception {
+    	for (int tileSize : new int[] {Integer.MAX_VALUE, 1}) {
+    		Board board = new Board(file, tileSize);
+    		String last = board.batch(() -> {
+    			board.flag(0, 0);
+    			board.dig(3, 3);
+    			return board.toString();
+    		});
+    		assertEquals("- - - -\n- - - -\n- - - -\n- - - 1", last.replace('F', '-'));
+    		assertTrue(last.startsWith("F"));
+    	}
+    	
+    	Board board = new Board(file);
+    	Thread other = new Thread(() -> board.flag(1, 1));
+    	String seen = board.batch(() -> {
+    		other.start();
+    		try {
+    			other.join(100);
+    		} catch (InterruptedException ie) {
+    			throw new AssertionError(ie);
+    		}
+    		return board.toString();
+    	});
+    	assertEquals("single lock held by the batch", "- - - -\n- - - -\n- - - -\n- - - -", seen);
+    	other.join();
+    	assertEquals("- - - -\n- F - -\n- - - -\n- - - -", board.toString());
+    }
+    
+    @Test(timeout = 5000)
+    public void looksDoNotWaitForSingleLock() throws Exception {
+    	Board board = new Board(file);
+    	board.dig(3, 3);
+    	CountDownLatch moved = new CountDownLatch(1);
+    	CountDownLatch looked = new CountDownLatch(1);
+    	Thread other = new Thread(() -> board.batch(() -> {
+    		board.flag(0, 0, null);
+    		moved.countDown();
+    		try {
+    			looked.await();
+    		} catch (InterruptedException ie) {
+    			throw new AssertionError(ie);
+    		}
+    		return null;
+    	}));
+    	other.start();
+    	moved.await();
+    	assertEquals("batch not completed", "- - - -\n- - - -\n- - - -\n- - - 1", board.toString());
+    	assertEquals("- 1", board.look(3, 2, 1, 2));
+    	looked.countDown();
+    	other.join();
+    	assertEquals("published by the batch", "F - - -\n- - - -\n- - - -\n- - - 1", board.toString());
+    	assertEquals("F -", board.look(0, 0, 1, 2));
+    }
+    
+    @Test
+    public void changeListenerSeesEveryMove() throws IOException {
+    	Board board = new Board(file);
+    	List<Change> heard = new ArrayList<>();
+    	board.setChangeListener(heard::addAll);
+    	List<Change> changes = new ArrayList<>();
+    	board.flag(0, 0, changes);
+    	board.flag(0, 0, changes);
+    	board.dig(2, 2, changes);
+    	board.deflag(0, 0, changes);
+    	assertFalse(changes.isEmpty());
+    	assertEquals("same changes as reported to the caller", changes, heard);
+    	
+    	heard.clear();
+    	board.dig(3, 3);
+    	board.flag(1, 0);
+    	assertEquals("reported without a list from the caller", 2, heard.size());
+    	board.setChangeListener(null);
+    	board.deflag(1, 0);
+    	assertEquals(2, heard.size());
+    }
+    
+    @Test
+    public void boardStatsRecorded() throws IOException {
+    	Board board = new Board(file);
+    	board.dig(3, 1);
+    	BoardStats stats = new BoardStats();
+    	board.setStats(stats);
+    	assertEquals(0, stats.lockHoldNanos().count());
+    	assertEquals(0, stats.squaresDug().percentile(0.5));
+    	
+    	board.dig(0, 2, null);
+    	board.dig(0, 2, null);
+    	board.dig(5, 0, null);
+    	board.flag(3, 3, null);
+    	board.deflag(3, 3, null);
+    	board.toString();
+    	assertEquals("moves in range; the render was published by the last move", 4,
+    			stats.lockWaitNanos().count());
+    	assertEquals(4, stats.lockHoldNanos().count());
+    	assertTrue(stats.lockHoldNanos().percentile(0.5) <= stats.lockHoldNanos().max());
+    	assertTrue(stats.lockHoldNanos().max() <= stats.lockHoldNanos().sum());
+    	assertEquals("only the dig of an untouched square", 1, stats.squaresDug().count());
+    	assertEquals("cascade", 6, stats.squaresDug().max());
+    	assertEquals("bucket of 4 to 7, capped by max", 6, stats.squaresDug().percentile(0.99));
+    	
+    	assertTrue(board.dig(2, 0, null));
+    	assertEquals(2, stats.squaresDug().count());
+    	assertEquals("cascade from a bomb counts the bomb", 12, stats.squaresDug().sum());
+    	assertEquals(6, stats.squaresDug().percentile(1));
+    	
+    	board.setStats(null);
+    	board.flag(3, 3, null);
+    	assertEquals(5, stats.lockHoldNanos().count());
+    }
+    
+    @Test
+    public void histogramPercentiles() {
+    	BoardStats.Histogram histogram = new BoardStats.Histogram();
+    	assertEquals(0, histogram.percentile(1));
+    	for (long value : new long[] { 0, 1, 2, 3, 5, 100 }) {
+    		histogram.record(value);
+    	}
+    	assertEquals(6, histogram.count());
+    	assertEquals(111, histogram.sum());
+    	assertEquals(100, histogram.max());
+    	assertEquals("bucket of 0", 0, histogram.percentile(1.0 / 6));
+    	assertEquals("bucket of 2 to 3", 3, histogram.percentile(0.5));
+    	assertEquals("bucket of 4 to 7", 7, histogram.percentile(5.0 / 6));
+    	assertEquals("bucket of 64 to 127, capped by max", 100, histogram.percentile(0.99));
+    }
+    
+    @Test
+    public void gameStatusCounters() throws IOException {
+    	File file = File.createTempFile("board", ".txt");
+    	file.deleteOnExit();
+    	try (PrintWriter out = new PrintWriter(file)) {
+    		out.print("4 3\n0 0 0 1\n0 0 0 0\n1 0 0 0\n");
+    	}
+    	Board board = new Board(file);
+    	assertEquals(10, board.safeSquaresLeft());
+    	assertEquals(0, board.flaggedSquares());
+    	assertEquals(Board.Status.PLAYING, board.status());
+    	
+    	board.flag(0, 0);
+    	board.flag(0, 0);
+    	board.flag(0, 3);
+    	assertEquals(2, board.flaggedSquares());
+    	board.deflag(0, 3);
+    	board.deflag(1, 1);
+    	assertEquals(1, board.flaggedSquares());
+    	
+    	board.dig(1, 1);
+    	assertEquals("one square dug", 9, board.safeSquaresLeft());
+    	board.dig(2, 0);
+    	assertEquals("BOOM: the bomb cleared and its cascade dug all but the flag", 1, board.safeSquaresLeft());
+    	board.dig(1, 1);
+    	assertEquals("already dug", 1, board.safeSquaresLeft());
+    	
+    	ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    	board.save(snapshot);
+    	Board copy = Board.load(new ByteArrayInputStream(snapshot.toByteArray()));
+    	assertEquals(1, copy.safeSquaresLeft());
+    	assertEquals(1, copy.flaggedSquares());
+    	
+    	board.dig(0, 0);
+    	assertEquals("flagged", 1, board.safeSquaresLeft());
+    	assertEquals(Board.Status.PLAYING, board.status());
+    	board.deflag(0, 0);
+    	board.dig(0, 0);
+    	assertEquals(0, board.flaggedSquares());
+    	assertEquals(0, board.safeSquaresLeft());
+    	assertEquals("untouched bomb left", Board.Status.WON, board.status());
+    }
+    
+    @Test
+    public void validatedMovesMatchUnvalidated() throws IOException {
+    	File bombs = writeBoardFile(20, 30, true);
+    	String expected = null;
+    	for (Board.Validation validation : Board.Validation.values()) {
+    		for (int tileSize : new int[] { Integer.MAX_VALUE, 1, 4 }) {
+    			Board board = new Board(bombs, tileSize);
+    			board.setValidation(validation);
+    			Random random = new Random(15);
+    			for (int k = 0; k < 2000; k++) {
+    				int row = random.nextInt(20);
+    				int col = random.nextInt(30);
+    				switch (random.nextInt(3)) {
+    				case 0: board.dig(row, col, null); break;
+    				case 1: board.flag(row, col, null); break;
+    				default: board.deflag(row, col, null); break;
+    				}
+    			}
+    			if (expected == null) {
+    				expected = board.toString();
+    			}
+    			assertEquals(validation + " " + tileSize, expected, board.toString());
+    		}
+    	}
+    }
+    
+    @Test
+    public void validatedCascadeFromBomb() throws IOException {
+    	File file = File.createTempFile("board", ".txt");
+    	file.deleteOnExit();
+    	try (PrintWriter out = new PrintWriter(file)) {
+    		out.print("3 3\n1 1 0\n0 0 0\n0 0 0\n");
+    	}
+    	Board board = new Board(file);
+    	board.setValidation(Board.Validation.FULL);
+    	assertEquals("BOOM!", board.dig(0, 0));
+    	assertEquals("the cascade from a bomb digs its neighbors, bomb or not",
+    			"  1 -\n1 1 -\n- - -", board.toString());
+    }
+    
+    @Test
+    public void findInvalidSquares() {
+    	int dug = Grid.DUG;
+    	int bomb = Grid.BOMB;
+    	byte[] valid = { (byte) bomb, (byte) (dug | 1), 0, (byte) Grid.FLAGGED, (byte) (dug | 1), (byte) dug };
+    	Grid grid = new Grid(2, 3, valid);
+    	assertEquals(-1, grid.findInvalid(0, 0, 1, 2));
+    	
+    	byte[][] invalid = {
+    			{ (byte) bomb, (byte) (dug | 2), 0, 0, 0, 0 }, // wrong count
+    			{ (byte) bomb, (byte) (dug | 1), 0, 0, 0, (byte) (dug | 1) }, // count with no bomb nearby
+    			{ (byte) (bomb | dug | 2), 0, 0, 0, 0, 0 }, // wrong count on a bomb dug by a cascade
+    	};
+    	int[] expected = { 1, 5, 0 };
+    	for (int k = 0; k < invalid.length; k++) {
+    		assertEquals(expected[k], new Grid(2, 3, invalid[k]).findInvalid(0, 0, 1, 2));
+    	}
+    	assertEquals("outside the rectangle", -1, new Grid(2, 3, invalid[1]).findInvalid(0, 0, 1, 1));
+    	
+    	Grid marked = new Grid(2, 3, new byte[6]);
+    	marked.mark(1, 2);
+    	assertEquals("marked PENDING", 5, marked.findInvalid(0, 0, 1, 2));
+    }
+    
+    @Test
+    public void seededRandomBoards() throws IOException {
+    	ByteArrayOutputStream first = new ByteArrayOutputStream();
+    	ByteArrayOutputStream second = new ByteArrayOutputStream();
+    	ByteArrayOutputStream other = new ByteArrayOutputStream();
+    	new Board(300, 400, 16, 42, 0.25).save(first);
+    	new Board(300, 400, Integer.MAX_VALUE, 42, 0.25).save(second);
+    	new Board(300, 400, 16, 43, 0.25).save(other);
+    	assertArrayEquals("same seed, same bombs", first.toByteArray(), second.toByteArray());
+    	assertFalse("different seed, different bombs", Arrays.equals(first.toByteArray(), other.toByteArray()));
+    	
+    	Board empty = new Board(50, 60, 8, 7, 0);
+    	assertNotEquals("BOOM!", empty.dig(0, 0));
+    	assertTrue("density 0: no bombs, every square dug",
+    			empty.toString().chars().allMatch(c -> c == ' ' || c == '\n'));
+    	Board full = new Board(50, 60, 8, 7, 1);
+    	assertEquals("density 1: a bomb in every square", "BOOM!", full.dig(49, 59));
+    	assertEquals("BOOM!", full.dig(0, 0));
+    }
+    
+    @Test
+    public void randomGridSameInParallel() {
+    	for (int[] size : new int[][] { { 2000, 700 }, { 300000, 1 }, { 3, 100000 } }) {
+    		Grid sequential = Grid.random(size[0], size[1], -5, 0.25, false);
+    		Grid parallel = Grid.random(size[0], size[1], -5, 0.25, true);
+    		byte[] cells = new byte[size[0] * size[1]];
+    		byte[] parallelCells = new byte[cells.length];
+    		sequential.copyCells(cells);
+    		parallel.copyCells(parallelCells);
+    		assertArrayEquals(cells, parallelCells);
+    		
+    		int bombs = 0;
+    		for (int row = 0; row < size[0]; row++) {
+    			for (int col = 0; col < size[1]; col++) {
+    				boolean bomb = (cells[row * size[1] + col] & Grid.BOMB) != 0;
+    				bombs += bomb ? 1 : 0;
+    				int nearby = 0;
+    				for (int i = Math.max(row - 1, 0); i <= Math.min(row + 1, size[0] - 1); i++) {
+    					for (int j = Math.max(col - 1, 0); j <= Math.min(col + 1, size[1] - 1); j++) {
+    						nearby += (cells[i * size[1] + j] & Grid.BOMB) != 0 ? 1 : 0;
+    					}
+    				}
+    				assertEquals(nearby, sequential.bombsNearby(row, col));
+    				assertEquals(nearby, parallel.bombsNearby(row, col));
+    			}
+    		}
+    		assertEquals("density 0.25", 0.25, (double) bombs / cells.length, 0.01);
+    	}
+    }
+    
+    @Test
+    public void digLargeOpenRegion() throws IOException {
+    	Board board = new Board(writeBoardFile(1000, 1000, false));
+    	board.dig(500, 500);
+    	assertTrue("dug: every square revealed without recursion", 
+    			board.toString().chars().allMatch(c -> c == ' ' || c == '\n'));
+    }
+    
+    @Test
+    public void boardFileWindowsAndLineEnds() throws IOException {
+    	File file = writeBoardFile(20, 30, true);
+    	for (int windowSize : new int[] { 1, 7, 64, 1 << 20 }) {
+    		Grid grid = BoardFile.read(file, windowSize);
+    		for (int i = 0; i < 20; i++) {
+    			for (int j = 0; j < 30; j++) {
+    				assertEquals("window " + windowSize, isBomb(i, j), grid.hasBomb(i, j));
+    			}
+    		}
+    	}
+    	
+    	File crlf = File.createTempFile("board", ".txt");
+    	crlf.deleteOnExit();
+    	try (PrintWriter out = new PrintWriter(crlf)) {
+    		out.print("3 3 \r\n0 1 0 \r\n1 0 0\r0 0 1");
+    	}
+    	Grid grid = BoardFile.read(crlf);
+    	assertTrue(grid.hasBomb(0, 1) && grid.hasBomb(1, 0) && grid.hasBomb(2, 2));
+    	assertFalse(grid.hasBomb(0, 0) || grid.hasBomb(1, 1) || grid.hasBomb(2, 1));
+    	
+    	for (String invalid : new String[] { "", "3 3\n0 1 0\n1 0 2\n0 0 1\n", "3 3\n0 1 0\n1 0 0\n",
+    			"3 3\n0 1 0\n1 0 0\n0 0 1\n\n", "3 3\n0 1 0\n1 0\n0 0 1\n", "3 3\n0  1 0\n1 0 0\n0 0 1\n",
+    			"3 3\n0 1 0 0\n1 0 0\n0 0 1\n", "3\n0 1 0\n1 0 0\n0 0 1\n" }) {
+    		try (PrintWriter out = new PrintWriter(crlf)) {
+    			out.print(invalid);
+    		}
+    		try {
+    			new Board(crlf);
+    			fail("expected IOException for " + invalid);
+    		} catch (IOException ioe) { }
+    	}
+    }
+    
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+    	Board board = new Board(writeBoardFile(7, 9, true));
+    	board.flag(6, 8);
+    	board.dig(0, 1);
+    	board.dig(3, 3);
+    	ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    	board.save(snapshot);
+    	assertEquals("header, bit-packed bombs, 4-bit states, checksum", 
+    			4 + 2 + 4 + 4 + 8 + (63 + 7) / 8 + (63 + 1) / 2 + 4, snapshot.size());
+    	Board copy = Board.load(new ByteArrayInputStream(snapshot.toByteArray()), 2);
+    	assertEquals(7, copy.getRows());
+    	assertEquals(9, copy.getColumns());
+    	assertEquals(3, copy.moves());
+    	assertEquals(board.toString(), copy.toString());
+    	for (int i = 0; i < 7; i++) {
+    		for (int j = 0; j < 9; j++) {
+    			board.dig(i, j);
+    			copy.dig(i, j);
+    		}
+    	}
+    	assertEquals("same bombs", board.toString(), copy.toString());
+    	
+    	byte[] bytes = snapshot.toByteArray();
+    	try {
+    		Board.load(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+    		fail("expected IOException for truncated snapshot");
+    	} catch (IOException ioe) { }
+    	bytes[20] ^= 1;
+    	try {
+    		Board.load(new ByteArrayInputStream(bytes));
+    		fail("expected IOException for checksum mismatch");
+    	} catch (IOException ioe) { }
+    	bytes[20] ^= 1;
+    	bytes[5] = 3;
+    	try {
+    		Board.load(new ByteArrayInputStream(bytes));
+    		fail("expected IOException for unsupported version");
+    	} catch (IOException ioe) { }
+    }
+    
+    @Test
+    public void moveLogReplayedOnSnapshot() throws IOException {
+    	Board board = new Board(writeBoardFile(8, 8, true));
+    	board.dig(0, 1);
+    	board.flag(7, 7);
+    	ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    	assertEquals(2, board.save(snapshot));
+    	
+    	List<String> log = new ArrayList<>();
+    	board.setMoveLog((move, kind, row, col) -> log.add(move + " " + kind + " " + row + " " + col));
+    	board.deflag(7, 7);
+    	board.dig(7, 7);
+    	board.flag(3, 3);
+    	board.dig(3, 3); // no change: flagged
+    	board.dig(-1, 0); // not a move: out of the board
+    	board.dig(4, 4);
+    	assertEquals(Arrays.asList("3 DEFLAG 7 7", "4 DIG 7 7", "5 FLAG 3 3", "6 DIG 3 3", "7 DIG 4 4"), log);
+    	assertEquals(7, board.moves());
+    	
+    	Board copy = Board.load(new ByteArrayInputStream(snapshot.toByteArray()));
+    	for (String move : log) {
+    		String[] parts = move.split(" ");
+    		int row = Integer.parseInt(parts[2]);
+    		int col = Integer.parseInt(parts[3]);
+    		switch (MoveLog.Kind.valueOf(parts[1])) {
+    		case DIG: copy.dig(row, col); break;
+    		case FLAG: copy.flag(row, col); break;
+    		case DEFLAG: copy.deflag(row, col); break;
+    		}
+    	}
+    	assertEquals(board.moves(), copy.moves());
+    	assertEquals(board.toString(), copy.toString());
+    }
+    
+    @Test(timeout = 60000)
+    public void concurrentDigsLoseNoUpdates() throws Exception {
+    	File bombs = writeBoardFile(60, 50, true);
+    	int bombCount = 0;
+    	for (int i = 0; i < 60; i++) {
+    		for (int j = 0; j < 50; j++) {
+    			bombCount += isBomb(i, j) ? 1 : 0;
+    		}
+    	}
+    	for (Board board : new Board[] { new Board(bombs), new Board(bombs, 1), new Board(bombs, 7) }) {
+    		board.setValidation(Board.Validation.FULL);
+    		AtomicInteger booms = new AtomicInteger();
+    		runConcurrently(4, thread -> {
+    			List<Integer> squares = new ArrayList<>();
+    			for (int k = 0; k < 60 * 50; k++) {
+    				squares.add(k);
+    			}
+    			Collections.shuffle(squares, new Random(thread));
+    			for (int k : squares) {
+    				if (board.dig(k / 50, k % 50).equals("BOOM!")) {
+    					booms.incrementAndGet();
+    				}
+    			}
+    		});
+    		assertEquals("every bomb exploded exactly once", bombCount, booms.get());
+    		assertTrue("every square dug and every count reduced to 0", 
+    				board.toString().chars().allMatch(c -> c == ' ' || c == '\n'));
+    	}
+    }
+    
+    @Test(timeout = 60000)
+    public void concurrentFlagsLoseNoUpdates() throws Exception {
+    	File bombs = writeBoardFile(60, 50, true);
+    	String expected = null;
+    	for (Board board : new Board[] { new Board(bombs), new Board(bombs, 1), new Board(bombs, 7) }) {
+    		runConcurrently(4, thread -> {
+    			for (int k = thread; k < 60 * 50; k += 4) {
+    				board.flag(k / 50, k % 50);
+    			}
+    			for (int k = thread; k < 60 * 50; k += 8) {
+    				board.deflag(k / 50, k % 50);
+    			}
+    		});
+    		String boardMessage = board.toString();
+    		for (int k = 0; k < 60 * 50; k++) {
+    			assertEquals("square " + k, k % 8 < 4 ? '-' : 'F', boardMessage.charAt(2 * k));
+    		}
+    		if (expected != null) {
+    			assertEquals("same result as with one lock", expected, boardMessage);
+    		}
+    		expected = boardMessage;
+    	}
+    }
+    
+    @Test
+    public void lookReusesViewUntilChanged() throws IOException {
+    	Board board = new Board(file, 2);
+    	String untouched = board.toString();
+    	assertSame("no move since", untouched, board.toString());
+    	board.dig(3, 1, null);
+    	board.dig(3, 1, null);
+    	board.deflag(0, 0, null);
+    	board.flag(3, 1, null);
+    	String dug = board.toString();
+    	assertEquals("- - - -\n- - - -\n- - - -\n- 1 - -", dug);
+    	assertSame("moves that changed nothing", dug, board.toString());
+    	board.flag(0, 0, null);
+    	assertEquals("F - - -\n- - - -\n- - - -\n- 1 - -", board.toString());
+    	assertEquals("- - - -\n- - - -\n- - - -\n- 1 - -", board.deflag(0, 0));
+    	assertEquals("BOOM!", board.dig(2, 0));
+    	assertEquals("- - - -\n1 1 1 -\n    1 -\n    1 -", board.toString());
+    }
+    
+    @Test
+    public void lookRegionMatchesBoard() throws IOException {
+    	for (int tileSize : new int[] { Integer.MAX_VALUE, 1, 3 }) {
+    		Board board = new Board(file, tileSize);
+    		board.flag(0, 3, null);
+    		board.dig(1, 1, null);
+    		board.dig(3, 1, null);
+    		for (int round = 0; round < 2; round++) {
+    			// first from the squares, then from the view rendered at the end of the round
+    			assertEquals("2", board.look(1, 1, 1, 1));
+    			assertEquals("- - - F", board.look(0, 0, 1, 4));
+    			assertEquals("F\n-\n-\n-", board.look(0, 3, 4, 1));
+    			assertEquals("2 -\n- -", board.look(1, 1, 2, 2));
+    			assertEquals("- - -\n1 - -", board.look(2, 1, 2, 3));
+    			assertEquals(board.toString(), board.look(0, 0, 4, 4));
+    		}
+    	}
+    }
+    
+    @Test(timeout = 60000)
+    public void concurrentLooksSeeCompletedMoves() throws Exception {
+    	File bombs = writeBoardFile(40, 40, false);
+    	for (Board board : new Board[] { new Board(bombs), new Board(bombs, 3) }) {
+    		runConcurrently(4, thread -> {
+    			for (int k = 0; k < 2000; k++) {
+    				int row = thread * 10 + k % 10;
+    				int col = k % 40;
+    				int square = 2 * (row * 40 + col);
+    				if (thread == 3) {
+    					assertEquals(2 * 40 * 40 - 1, board.toString().length());
+    					continue;
+    				}
+    				board.flag(row, col, null);
+    				assertEquals("own flag shown", 'F', board.toString().charAt(square));
+    				board.deflag(row, col, null);
+    				assertEquals("own deflag shown", '-', board.toString().charAt(square));
+    			}
+    		});
+    		assertFalse(board.toString().contains("F"));
+    	}
+    }
+    
+    /**
+     * A task run by one of several threads.
+     */
+    private interface ThreadTask {
+    	void run(int thread) throws Exception;
+    }
+    
+    /**
+     * Run a task on several threads at once and wait for all of them to finish.
+     * @param threads number of threads
+     * @param task task to run, given the number of the thread running it
+     * @throws Exception the first exception or assertion failure of a thread, if any
+     */
+    private static void runConcurrently(int threads, ThreadTask task) throws Exception {
+    	List<Thread> running = new ArrayList<>();
+    	List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+    	for (int t = 0; t < threads; t++) {
+    		final int thread = t;
+    		running.add(new Thread(() -> {
+    			try {
+    				task.run(thread);
+    			} catch (Exception | AssertionError e) {
+    				failures.add(e);
+    			}
+    		}));
+    	}
+    	for (Thread thread : running) {
+    		thread.start();
+    	}
+    	for (Thread thread : running) {
+    		thread.join();
+    	}
+    	if ( ! failures.isEmpty() && failures.get(0) instanceof AssertionError) {
+    		throw (AssertionError) failures.get(0);
+    	}
+    	if ( ! failures.isEmpty()) {
+    		throw (Exception) failures.get(0);
+    	}
+    }
+    
+    /**
+     * @return true if the board written by writeBoardFile with bombs has a bomb at (row, col)
+     */
+    private static boolean isBomb(int row, int col) {
+    	return (row * 7 + col * 13) % 9 == 0;
+    }
+    
+    /**
+     * Write a board file to a temporary file.
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param bombs if true, place bombs where isBomb(row, col), otherwise place no bombs
+     * @return the file written
+     * @throws IOException if the file cannot be written
+     */
+    private static File writeBoardFile(int rows, int cols, boolean bombs) throws IOException {
+    	File file = File.createTempFile("board", ".txt");
+    	file.deleteOnExit();
+    	try (PrintWriter out = new PrintWriter(file)) {
+    		out.print(cols + " " + rows + "\n");
+    		for (int i = 0; i < rows; i++) {
+    			StringBuilder line = new StringBuilder();
+    			for (int j = 0; j < cols; j++) {
+    				line.append(j > 0 ? " " : "").append(bombs && isBomb(i, j) ? 1 : 0);
+    			}
+    			out.print(line + "\n");
+    		}
+    	}
+    	return file;
+    }
 }
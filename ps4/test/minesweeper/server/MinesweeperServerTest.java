@@ -5,17 +5,33 @@ package minesweeper.server;
 
 import static org.junit.Assert.*;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import minesweeper.Board;
 import minesweeper.server.MinesweeperServer;
 
 
@@ -31,8 +47,34 @@ public class MinesweeperServerTest {
 
     // Testing strategy: board initialized from a file
 	//      basic look, dig, flag, deflag command and X,Y directions
+    //		look at a region: inside the board, clipped at its edges, outside it, invalid
     //		server mode: debug
     //		playerCount
+    //		protocol mode: full board replies, delta replies
+    //		engine: thread per connection, virtual thread per connection (if the running Java
+    //		        has them), selector with workers; line terminators, several
+    //		        commands sent at once, a partial last line, lines after bye
+    //		rooms: join new room, join room with players, leave, rejoin after eviction;
+    //		        too many rooms, evicted rooms removed and no longer counted, entering a
+    //		        removed room;
+    //		        checkpoint, restart from checkpoint; journal, recovery from journal; moves
+    //		        journaled before and after checkpoints, recovery from both
+    //		win: announced to the winner in its reply and to the other players, threads and
+    //		        selector engines
+    //		subscribe: whole board first, changes by other players pushed, follows the player
+    //		        to a joined room, threads and selector engines; subscribers that never
+    //		        read, more of them than delivery threads, do not hold up other rooms
+    //		stats: each kind of statistic after moves, a BOOM, a cascade and an invalid
+    //		        command, through the stats command and JMX, threads and selector engines
+    //		rate limits: burst then rejected, other commands unlimited, rejections counted;
+    //		        delayed by command and output limits, threads and selector engines; token
+    //		        bucket refill, burst and debt; limits parsed and invalid
+    //		binary protocol: negotiated with and without deflate, look, dig, flag, text
+    //		        commands and invalid frames, bye, threads and selector engines; boards
+    //		        of odd and even squares round trip, deflated when shorter; frames parsed
+    //		        and invalid
+    //		request parsing: each command, coordinates negative, zero, positive, at and beyond
+    //		        the int range; missing, extra or malformed tokens
     
 	@Test(expected=AssertionError.class)
     public void testAssertionEnabled() {
@@ -46,12 +88,26 @@ public class MinesweeperServerTest {
      * @throws IOException if the board file cannot be found
      */
     private static Thread startMinesweeperServer(String boardFile) throws IOException {
+        return startMinesweeperServer(boardFile, PORT);
+    }
+
+    /**
+     * Start a MinesweeperServer in debug mode with a board file from BOARDS_PKG.
+     * @param boardFile board to load
+     * @param port port to listen on
+     * @param options more command-line arguments
+     * @return thread running the server
+     * @throws IOException if the board file cannot be found
+     */
+    private static Thread startMinesweeperServer(String boardFile, int port, String... options) throws IOException {
         final String boardPath = new File("board_file_5.txt").getAbsolutePath();
-        final String[] args = new String[] {
-                "--debug",
-                "--port", Integer.toString(PORT),
-                "--file", boardPath
-        };
+        final String[] args = new String[5 + options.length];
+        args[0] = "--debug";
+        args[1] = "--port";
+        args[2] = Integer.toString(port);
+        args[3] = "--file";
+        args[4] = boardPath;
+        System.arraycopy(options, 0, args, 5, options.length);
         Thread serverThread = new Thread(() -> MinesweeperServer.main(args));
         serverThread.start();
         return serverThread;
@@ -64,10 +120,21 @@ public class MinesweeperServerTest {
      * @throws IOException if the connection fails
      */
     private static Socket connectToMinesweeperServer(Thread server) throws IOException {
+        return connectToMinesweeperServer(server, PORT);
+    }
+
+    /**
+     * Connect to a MinesweeperServer and return the connected socket.
+     * @param server abort connection attempts if the server thread dies
+     * @param port port the server listens on
+     * @return socket connected to the server
+     * @throws IOException if the connection fails
+     */
+    private static Socket connectToMinesweeperServer(Thread server, int port) throws IOException {
         int attempts = 0;
         while (true) {
             try {
-                Socket socket = new Socket(LOCALHOST, PORT);
+                Socket socket = new Socket(LOCALHOST, port);
                 socket.setSoTimeout(3000);
                 return socket;
             } catch (ConnectException ce) {
@@ -155,6 +222,8 @@ public class MinesweeperServerTest {
         
         out3.println("dig 4 1");
         assertEquals("BOOM!", in3.readLine());
+        assertEquals("the cascade from the bomb digs every other square",
+                "WIN! Every square without a bomb in room main is dug.", in3.readLine());
 
         out3.println("look"); // debug mode is on
         assertEquals("             ", in3.readLine());
@@ -172,4 +241,841 @@ public class MinesweeperServerTest {
         
     }
     
+    @Test(timeout = 10000)
+    public void deltaModeTest() throws IOException {
+
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 1);
+
+        Socket socket = connectToMinesweeperServer(thread, PORT + 1);
+        
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+        
+        out.println("delta");
+        assertEquals("DELTA 0", in.readLine());
+        
+        out.println("flag 2 1");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("2 1 F", in.readLine());
+        
+        out.println("flag 2 1");
+        assertEquals("flag a flagged square changes nothing", "DELTA 0", in.readLine());
+        
+        out.println("dig 3 1");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("3 1 1", in.readLine());
+        
+        out.println("deflag 2 1");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("2 1 -", in.readLine());
+        
+        out.println("dig 4 1");
+        assertEquals("BOOM!", in.readLine());
+        String header = in.readLine();
+        assertTrue(header, header.matches("DELTA \\d+"));
+        assertEquals("4 1 0", in.readLine());
+        for (int i = 1; i < Integer.parseInt(header.substring("DELTA ".length())); i++) {
+            String change = in.readLine();
+            assertTrue(change, change.matches("\\d \\d [-F0-8]"));
+        }
+        assertEquals("WIN! Every square without a bomb in room main is dug.", in.readLine());
+        
+        out.println("look"); // look still returns the whole board
+        assertEquals("             ", in.readLine());
+        assertEquals("             ", in.readLine());
+        assertEquals("             ", in.readLine());
+        assertEquals("             ", in.readLine());
+        assertEquals("             ", in.readLine());
+        assertEquals("1 1          ", in.readLine());
+        assertEquals("- 1          ", in.readLine());
+        
+        out.println("bye");
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void selectorEngineTest() throws IOException {
+
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 2, "--nio", "--workers", "2");
+
+        Socket socket = connectToMinesweeperServer(thread, PORT + 2);
+        
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+
+        assertEquals("expected HELLO message with 1 player", in.readLine(), "Welcome to "
+        		+ "Minesweeper. Board: 7 columns by 7 rows. Players: 1 including you. Type "
+        		+ "'help' for help.");
+        
+        // several commands at once, with each kind of line terminator
+        out.write("dig 3 1\r\nflag 2 1\rhelp\nfoo".getBytes());
+        out.flush();
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i == 1 ? "- - - 1 - - -" : "- - - - - - -", in.readLine());
+        }
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i == 1 ? "- - F 1 - - -" : "- - - - - - -", in.readLine());
+        }
+        assertEquals("Enter command: 'look', 'look X Y W H', 'dig X Y', 'flag X Y', 'deflag X Y', 'delta', 'join ROOM', 'leave', 'checkpoint', 'subscribe', 'stats', 'binary', 'help', or 'bye'.", 
+                in.readLine());
+        
+        Socket socket2 = connectToMinesweeperServer(thread, PORT + 2);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        assertEquals("expected HELLO message with 2 players", in2.readLine(), "Welcome to "
+        		+ "Minesweeper. Board: 7 columns by 7 rows. Players: 2 including you. Type "
+        		+ "'help' for help.");
+        out2.println("deflag 2 1");
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i == 1 ? "- - - 1 - - -" : "- - - - - - -", in2.readLine());
+        }
+        out2.println("bye");
+        assertEquals("server closes the connection after bye", null, in2.readLine());
+        socket2.close();
+        
+        // line completed by the end of the first command
+        out.write("2 1\nlook\n".getBytes());
+        out.flush();
+        assertEquals("Enter command: 'look', 'look X Y W H', 'dig X Y', 'flag X Y', 'deflag X Y', 'delta', 'join ROOM', 'leave', 'checkpoint', 'subscribe', 'stats', 'binary', 'help', or 'bye'.", 
+                in.readLine());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i == 1 ? "- - - 1 - - -" : "- - - - - - -", in.readLine());
+        }
+        
+        out.write("bye\n".getBytes());
+        out.flush();
+        assertEquals("server closes the connection after bye", null, in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void pipelinedCommandsTest() throws IOException {
+        String[][] engines = { {}, { "--nio" } };
+        for (int k = 0; k < engines.length; k++) {
+            Thread thread = startMinesweeperServer("board_file_5", PORT + 13 + k, engines[k]);
+            Socket socket = connectToMinesweeperServer(thread, PORT + 13 + k);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+
+            // replies to whole lines are sent without waiting for the partial last line
+            out.write("flag 0 0\nlook\ndelta\ndig 3 1\nhelp\nfla".getBytes());
+            out.flush();
+            for (int i = 0; i < 7; i++) {
+                assertEquals(i == 0 ? "F - - - - - -" : "- - - - - - -", in.readLine());
+            }
+            for (int i = 0; i < 7; i++) {
+                assertEquals(i == 0 ? "F - - - - - -" : "- - - - - - -", in.readLine());
+            }
+            assertEquals("DELTA 0", in.readLine());
+            assertEquals("DELTA 1", in.readLine());
+            assertEquals("3 1 1", in.readLine());
+            assertTrue(in.readLine().startsWith("Enter command"));
+
+            // lines after bye are not handled
+            out.write("g 1 0\nbye\nflag 2 0\n".getBytes());
+            out.flush();
+            assertEquals("DELTA 1", in.readLine());
+            assertEquals("1 0 F", in.readLine());
+            assertEquals("server closes the connection after bye", null, in.readLine());
+            socket.close();
+
+            Socket socket2 = connectToMinesweeperServer(thread, PORT + 13 + k);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome to Minesweeper."));
+            out2.println("look");
+            assertEquals("F F - - - - -", in2.readLine());
+            assertEquals("- - - 1 - - -", in2.readLine());
+            for (int i = 2; i < 7; i++) {
+                assertEquals("- - - - - - -", in2.readLine());
+            }
+            out2.println("bye");
+            socket2.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void virtualThreadsTest() throws IOException {
+        try {
+            MinesweeperServer.virtualThreadFactory();
+        } catch (UnsupportedOperationException uoe) {
+            Assume.assumeNoException(uoe);
+        }
+
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 3, "--virtual-threads");
+
+        Socket socket = connectToMinesweeperServer(thread, PORT + 3);
+        
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        assertEquals("expected HELLO message with 1 player", in.readLine(), "Welcome to "
+        		+ "Minesweeper. Board: 7 columns by 7 rows. Players: 1 including you. Type "
+        		+ "'help' for help.");
+        
+        out.println("dig 3 1");
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i == 1 ? "- - - 1 - - -" : "- - - - - - -", in.readLine());
+        }
+        
+        out.println("bye");
+        assertEquals("server closes the connection after bye", null, in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void winBroadcastTest() throws IOException {
+        String[][] engines = { {}, { "--nio" } };
+        for (int k = 0; k < engines.length; k++) {
+            List<String> options = new ArrayList<>(Arrays.asList("--size", "2,2", "--density", "0"));
+            options.addAll(Arrays.asList(engines[k]));
+            Thread thread = startMinesweeperServer("board_file_5", PORT + 9 + k, options.toArray(new String[0]));
+            Socket watcher = connectToMinesweeperServer(thread, PORT + 9 + k);
+            BufferedReader watcherIn = new BufferedReader(new InputStreamReader(watcher.getInputStream()));
+            PrintWriter watcherOut = new PrintWriter(watcher.getOutputStream(), true);
+            assertTrue("expected HELLO message", watcherIn.readLine().startsWith("Welcome to Minesweeper."));
+            watcherOut.println("look");
+            assertEquals("- -", watcherIn.readLine());
+            assertEquals("- -", watcherIn.readLine());
+
+            Socket winner = connectToMinesweeperServer(thread, PORT + 9 + k);
+            BufferedReader winnerIn = new BufferedReader(new InputStreamReader(winner.getInputStream()));
+            PrintWriter winnerOut = new PrintWriter(winner.getOutputStream(), true);
+            assertTrue("expected HELLO message", winnerIn.readLine().startsWith("Welcome to Minesweeper."));
+            winnerOut.println("dig 0 0");
+            assertEquals("   ", winnerIn.readLine());
+            assertEquals("   ", winnerIn.readLine());
+            assertEquals("WIN! Every square without a bomb in room main is dug.", winnerIn.readLine());
+            assertEquals("announced to the other player without a command",
+                    "WIN! Every square without a bomb in room main is dug.", watcherIn.readLine());
+
+            winnerOut.println("dig 1 1");
+            assertEquals("   ", winnerIn.readLine());
+            assertEquals("   ", winnerIn.readLine());
+            winnerOut.println("help");
+            assertTrue("announced once", winnerIn.readLine().startsWith("Enter command"));
+            watcherOut.println("bye");
+            winnerOut.println("bye");
+            watcher.close();
+            winner.close();
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void statsTest() throws Exception {
+        String[][] engines = { {}, { "--nio" } };
+        for (int k = 0; k < engines.length; k++) {
+            int port = PORT + 16 + k;
+            Thread thread = startMinesweeperServer("board_file_5", port, engines[k]);
+            Socket socket = connectToMinesweeperServer(thread, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+            
+            out.println("flag 0 0");
+            out.println("dig 3 3");
+            out.println("bogus");
+            out.println("dig 4 1");
+            out.println("stats");
+            String header = in.readLine();
+            while ( ! header.startsWith("STATS")) {
+                header = in.readLine();
+            }
+            assertTrue(header, header.matches("STATS \\d+"));
+            Map<String, Long> stats = new HashMap<>();
+            for (int i = Integer.parseInt(header.substring("STATS ".length())); i > 0; i--) {
+                String[] stat = in.readLine().split(" ");
+                assertEquals(2, stat.length);
+                stats.put(stat[0], Long.parseLong(stat[1]));
+            }
+            assertEquals(Long.valueOf(1), stats.get("players"));
+            assertEquals(Long.valueOf(2), stats.get("commands.dig"));
+            assertEquals(Long.valueOf(1), stats.get("commands.flag"));
+            assertEquals(Long.valueOf(1), stats.get("commands.invalid"));
+            assertEquals("counts itself", Long.valueOf(1), stats.get("commands.stats"));
+            assertEquals(Long.valueOf(0), stats.get("commands.look"));
+            assertEquals(Long.valueOf(1), stats.get("booms"));
+            assertTrue(stats.get("bytes.written") > 0);
+            assertEquals("two digs of untouched squares", Long.valueOf(2), stats.get("dig.squares.count"));
+            assertTrue("a cascade", stats.get("dig.squares.max") > 1);
+            assertTrue("moves and renders", stats.get("lock.hold.ns.count") >= 5);
+            assertTrue(stats.get("lock.wait.ns.p50") <= stats.get("lock.wait.ns.max"));
+            
+            ObjectName name = new ObjectName("minesweeper.server:type=ServerStats,port=" + port);
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, beans.getAttribute(name, "Booms"));
+            assertEquals(1L, beans.getAttribute(name, "Players"));
+            out.println("bye");
+            assertEquals("server closes the connection after bye", null, in.readLine());
+            socket.close();
+            assertEquals("player uncounted once its connection is closed", 0L, beans.getAttribute(name, "Players"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void subscribeTest() throws IOException {
+        String[][] engines = { {}, { "--nio" } };
+        for (int k = 0; k < engines.length; k++) {
+            Thread thread = startMinesweeperServer("board_file_5", PORT + 11 + k, engines[k]);
+            Socket subscriber = connectToMinesweeperServer(thread, PORT + 11 + k);
+            BufferedReader subscriberIn = new BufferedReader(new InputStreamReader(subscriber.getInputStream()));
+            PrintWriter subscriberOut = new PrintWriter(subscriber.getOutputStream(), true);
+            assertTrue("expected HELLO message", subscriberIn.readLine().startsWith("Welcome to Minesweeper."));
+            subscriberOut.println("subscribe");
+            assertPushedBoard("Subscribed to room main.", subscriberIn);
+
+            Socket player = connectToMinesweeperServer(thread, PORT + 11 + k);
+            BufferedReader playerIn = new BufferedReader(new InputStreamReader(player.getInputStream()));
+            PrintWriter playerOut = new PrintWriter(player.getOutputStream(), true);
+            assertTrue("expected HELLO message", playerIn.readLine().startsWith("Welcome to Minesweeper."));
+            playerOut.println("flag 1 2");
+            for (int i = 0; i < 7; i++) {
+                playerIn.readLine();
+            }
+            assertEquals("pushed without a command", "EVENT 1", subscriberIn.readLine());
+            assertEquals("1 2 F", subscriberIn.readLine());
+
+            subscriberOut.println("join r1");
+            assertPushedBoard("Welcome to room r1. Board: 7 columns by 7 rows. Players: 1 including you.",
+                    subscriberIn);
+            playerOut.println("deflag 1 2");
+            for (int i = 0; i < 7; i++) {
+                playerIn.readLine();
+            }
+            subscriberOut.println("look");
+            for (int i = 0; i < 7; i++) {
+                assertEquals("no changes pushed from the main room", "- - - - - - -", subscriberIn.readLine());
+            }
+            subscriberOut.println("bye");
+            playerOut.println("bye");
+            subscriber.close();
+            player.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void slowSubscribersTest() throws IOException {
+        String[][] engines = { {}, { "--nio" } };
+        for (int k = 0; k < engines.length; k++) {
+            int port = PORT + 27 + k;
+            List<String> options = new ArrayList<>(Arrays.asList("--size", "2000,1500"));
+            options.addAll(Arrays.asList(engines[k]));
+            Thread thread = startMinesweeperServer("board_file_5", port, options.toArray(new String[0]));
+            Socket player = connectToMinesweeperServer(thread, port);
+            BufferedReader playerIn = new BufferedReader(new InputStreamReader(player.getInputStream()));
+            PrintWriter playerOut = new PrintWriter(player.getOutputStream(), true);
+            assertTrue("expected HELLO message", playerIn.readLine().startsWith("Welcome to Minesweeper."));
+            playerOut.println("delta");
+            assertEquals("DELTA 0", playerIn.readLine());
+            playerOut.println("join slow");
+            assertTrue(playerIn.readLine().startsWith("Welcome to room slow."));
+
+            // more subscribers that never read their pushed boards than threads delivering them
+            List<Socket> stalled = new ArrayList<>();
+            for (int i = 0; i < 17; i++) {
+                Socket socket = new Socket();
+                socket.setReceiveBufferSize(4096);
+                socket.connect(new InetSocketAddress(LOCALHOST, port));
+                stalled.add(socket);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+                out.println("join slow");
+                assertTrue(in.readLine().startsWith("Welcome to room slow."));
+                out.println("subscribe");
+                String line = in.readLine();
+                assertTrue("subscribed: " + line, line.equals("Subscribed to room slow.") || line.equals("BOARD"));
+            }
+            for (int i = 0; i < 100; i++) {
+                playerOut.println("flag " + i + " 0");
+                assertEquals("DELTA 1", playerIn.readLine());
+                playerIn.readLine();
+            }
+
+            Socket watcher = connectToMinesweeperServer(thread, port);
+            BufferedReader watcherIn = new BufferedReader(new InputStreamReader(watcher.getInputStream()));
+            PrintWriter watcherOut = new PrintWriter(watcher.getOutputStream(), true);
+            assertTrue("expected HELLO message", watcherIn.readLine().startsWith("Welcome to Minesweeper."));
+            watcherOut.println("join fast");
+            assertTrue(watcherIn.readLine().startsWith("Welcome to room fast."));
+            watcherOut.println("subscribe");
+            for (int i = 0; i < 1502; i++) {
+                watcherIn.readLine(); // the reply, and the BOARD message before or after it
+            }
+            playerOut.println("join fast");
+            assertTrue(playerIn.readLine().startsWith("Welcome to room fast."));
+            playerOut.println("flag 0 0");
+            assertEquals("DELTA 1", playerIn.readLine());
+            assertEquals("0 0 F", playerIn.readLine());
+            assertEquals("pushed in spite of the stalled subscribers", "EVENT 1", watcherIn.readLine());
+            assertEquals("0 0 F", watcherIn.readLine());
+
+            for (Socket socket : stalled) {
+                socket.close();
+            }
+            playerOut.println("bye");
+            watcherOut.println("bye");
+            player.close();
+            watcher.close();
+        }
+    }
+
+    /**
+     * Read a reply and the BOARD message pushed to a player subscribing to an untouched 7*7
+     * board, which may come before or after the reply.
+     * @param reply expected reply
+     * @param in input from the server
+     * @throws IOException if the input cannot be read
+     */
+    private static void assertPushedBoard(String reply, BufferedReader in) throws IOException {
+        String line = in.readLine();
+        boolean replyFirst = line.equals(reply);
+        if (replyFirst) {
+            line = in.readLine();
+        }
+        assertEquals("BOARD", line);
+        for (int i = 0; i < 7; i++) {
+            assertEquals("- - - - - - -", in.readLine());
+        }
+        if ( ! replyFirst) {
+            assertEquals(reply, in.readLine());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void roomsTest() throws IOException, InterruptedException {
+
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 4, "--room-idle", "0", "--max-rooms", "3");
+
+        Socket socket = connectToMinesweeperServer(thread, PORT + 4);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+
+        out.println("join r1");
+        assertEquals("Welcome to room r1. Board: 7 columns by 7 rows. Players: 1 including you.", in.readLine());
+        out.println("checkpoint");
+        assertEquals("Saved room r1.", in.readLine());
+        out.println("flag 0 0");
+        assertEquals("F - - - - - -", in.readLine());
+        for (int i = 1; i < 7; i++) {
+            assertEquals("- - - - - - -", in.readLine());
+        }
+
+        Socket socket2 = connectToMinesweeperServer(thread, PORT + 4);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        assertEquals("player in room r1 is not counted in the main room", "Welcome to Minesweeper. "
+                + "Board: 7 columns by 7 rows. Players: 1 including you. Type 'help' for help.", in2.readLine());
+        out2.println("join r1");
+        assertEquals("Welcome to room r1. Board: 7 columns by 7 rows. Players: 2 including you.", in2.readLine());
+        out2.println("leave");
+        assertEquals("Welcome to room main. Board: 7 columns by 7 rows. Players: 1 including you.", in2.readLine());
+        out2.println("look");
+        for (int i = 0; i < 7; i++) {
+            assertEquals("rooms have separate boards", "- - - - - - -", in2.readLine());
+        }
+
+        out.println("leave");
+        assertEquals("Welcome to room main. Board: 7 columns by 7 rows. Players: 2 including you.", in.readLine());
+        Thread.sleep(100); // let r1 be evicted
+        out.println("join r1");
+        assertEquals("Welcome to room r1. Board: 7 columns by 7 rows. Players: 1 including you.", in.readLine());
+        out.println("look");
+        assertEquals("board survives eviction", "F - - - - - -", in.readLine());
+        for (int i = 1; i < 7; i++) {
+            assertEquals("- - - - - - -", in.readLine());
+        }
+
+        out2.println("join r2");
+        assertEquals("main, r1 and r2", "Welcome to room r2. Board: 7 columns by 7 rows. Players: 1 including you.",
+                in2.readLine());
+        out2.println("join r3");
+        assertEquals("Too many rooms. Room r3 cannot be created.", in2.readLine());
+        out2.println("leave");
+        assertEquals("Welcome to room main. Board: 7 columns by 7 rows. Players: 1 including you.", in2.readLine());
+        Thread.sleep(100); // let r2 be evicted
+        out2.println("join r3");
+        assertEquals("Welcome to room r3. Board: 7 columns by 7 rows. Players: 1 including you.", in2.readLine());
+
+        out.println("join R1");
+        assertEquals("Enter command: 'look', 'look X Y W H', 'dig X Y', 'flag X Y', 'deflag X Y', 'delta', 'join ROOM', "
+                + "'leave', 'checkpoint', 'subscribe', 'stats', 'binary', 'help', or 'bye'.", in.readLine());
+
+        out.println("bye");
+        out2.println("bye");
+        socket.close();
+        socket2.close();
+    }
+    
+    @Test
+    public void roomsLimitedAndRemoved() throws IOException {
+        File directory = Files.createTempDirectory("rooms").toFile();
+        directory.deleteOnExit();
+        ServerOptions options = ServerOptions.DEFAULT.withMaxRooms(2).withRoomIdleMillis(0).withRoomDirectory(directory);
+        Rooms rooms = new Rooms(new Board(3, 3), id -> new Board(3, 3), options, null);
+        Rooms.Room a = rooms.get("a");
+        assertSame(a, rooms.get("a"));
+        assertNull("main and a", rooms.get("b"));
+        Notices player = message -> true;
+        assertNotNull(a.enter(player));
+        a.exit(player);
+        new File(directory, "a.snapshot").deleteOnExit();
+        rooms.evictIdle();
+        assertNull("removed", a.enter(player));
+        assertNotNull("a no longer counted", rooms.get("b"));
+        assertNull("main and b", rooms.get("a"));
+        assertSame(rooms.main(), rooms.get(Rooms.MAIN));
+    }
+    
+    @Test(timeout = 10000)
+    public void checkpointTest() throws IOException {
+        File directory = Files.createTempDirectory("rooms").toFile();
+        directory.deleteOnExit();
+
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 5, "--rooms", directory.getPath());
+        Socket socket = connectToMinesweeperServer(thread, PORT + 5);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+        out.println("flag 6 0");
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i == 0 ? "- - - - - - F" : "- - - - - - -", in.readLine());
+        }
+        out.println("checkpoint");
+        assertEquals("Saved room main.", in.readLine());
+        out.println("dig 3 1"); // not checkpointed
+        for (int i = 0; i < 7; i++) {
+            in.readLine();
+        }
+        out.println("bye");
+        socket.close();
+        new File(directory, "main.snapshot").deleteOnExit();
+
+        Thread restarted = startMinesweeperServer("board_file_5", PORT + 6, "--rooms", directory.getPath());
+        Socket socket2 = connectToMinesweeperServer(restarted, PORT + 6);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome to Minesweeper."));
+        out2.println("look");
+        for (int i = 0; i < 7; i++) {
+            assertEquals("board resumed from checkpoint", i == 0 ? "- - - - - - F" : "- - - - - - -",
+                    in2.readLine());
+        }
+        out2.println("bye");
+        socket2.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void journalRecoveryTest() throws IOException {
+        File directory = Files.createTempDirectory("rooms").toFile();
+        directory.deleteOnExit();
+
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 7, "--rooms", directory.getPath(), "--journal");
+        Socket socket = connectToMinesweeperServer(thread, PORT + 7);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+        out.println("delta");
+        assertEquals("DELTA 0", in.readLine());
+        out.println("flag 6 0");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("6 0 F", in.readLine());
+        out.println("dig 3 1");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("3 1 1", in.readLine());
+        new File(directory, "main.snapshot").deleteOnExit();
+        new File(directory, "main.journal").deleteOnExit();
+
+        // a second server on the same directory recovers the moves without a checkpoint
+        Thread recovered = startMinesweeperServer("board_file_5", PORT + 8, "--rooms", directory.getPath(), "--journal");
+        Socket socket2 = connectToMinesweeperServer(recovered, PORT + 8);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome to Minesweeper."));
+        out2.println("look");
+        for (int i = 0; i < 7; i++) {
+            assertEquals("board recovered from journal", i == 0 ? "- - - - - - F" : i == 1 ? "- - - 1 - - -"
+                    : "- - - - - - -", in2.readLine());
+        }
+        out.println("bye");
+        out2.println("bye");
+        socket.close();
+        socket2.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void journalAfterCheckpointTest() throws IOException {
+        File directory = Files.createTempDirectory("rooms").toFile();
+        directory.deleteOnExit();
+
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 25, "--rooms", directory.getPath(), "--journal");
+        Socket socket = connectToMinesweeperServer(thread, PORT + 25);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+        out.println("delta");
+        assertEquals("DELTA 0", in.readLine());
+        out.println("flag 6 0");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("6 0 F", in.readLine());
+        out.println("checkpoint");
+        assertEquals("Saved room main.", in.readLine());
+        out.println("dig 3 1"); // journaled after the checkpoint
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("3 1 1", in.readLine());
+        out.println("checkpoint");
+        assertEquals("Saved room main.", in.readLine());
+        out.println("flag 0 6");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("0 6 F", in.readLine());
+        new File(directory, "main.snapshot").deleteOnExit();
+        new File(directory, "main.journal").deleteOnExit();
+
+        // a second server on the same directory resumes the checkpoint and recovers the rest
+        Thread recovered = startMinesweeperServer("board_file_5", PORT + 26, "--rooms", directory.getPath(), "--journal");
+        Socket socket2 = connectToMinesweeperServer(recovered, PORT + 26);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        assertTrue("expected HELLO message", in2.readLine().startsWith("Welcome to Minesweeper."));
+        out2.println("look");
+        for (int i = 0; i < 7; i++) {
+            assertEquals("board recovered from checkpoint and journal", i == 0 ? "- - - - - - F"
+                    : i == 1 ? "- - - 1 - - -" : i == 6 ? "F - - - - - -" : "- - - - - - -", in2.readLine());
+        }
+        out.println("bye");
+        out2.println("bye");
+        socket.close();
+        socket2.close();
+    }
+    
+    @Test
+    public void parseRequestTest() {
+        assertEquals(Request.Type.LOOK, Request.parse("look").type());
+        assertEquals(Request.Type.HELP, Request.parse("help").type());
+        assertEquals(Request.Type.BYE, Request.parse("bye").type());
+        assertEquals(Request.Type.DELTA, Request.parse("delta").type());
+        assertEquals(Request.Type.LEAVE, Request.parse("leave").type());
+        assertEquals(0, Request.parse("look").width());
+        Request region = Request.parse("look -1 2 30 40");
+        assertEquals(Request.Type.LOOK, region.type());
+        assertEquals(-1, region.x());
+        assertEquals(2, region.y());
+        assertEquals(30, region.width());
+        assertEquals(40, region.height());
+        Request join = Request.parse("join room_7-b");
+        assertEquals(Request.Type.JOIN, join.type());
+        assertEquals("room_7-b", join.room());
+        
+        Request dig = Request.parse("dig 3 -1");
+        assertEquals(Request.Type.DIG, dig.type());
+        assertEquals(3, dig.x());
+        assertEquals(-1, dig.y());
+        Request flag = Request.parse("flag 0 2147483647");
+        assertEquals(Request.Type.FLAG, flag.type());
+        assertEquals(0, flag.x());
+        assertEquals(Integer.MAX_VALUE, flag.y());
+        Request deflag = Request.parse("deflag -2147483648 12");
+        assertEquals(Request.Type.DEFLAG, deflag.type());
+        assertEquals(Integer.MIN_VALUE, deflag.x());
+        assertEquals(12, deflag.y());
+        
+        for (String invalid : new String[] { "", "Look", "look ", " look", "dig", "dig 1",
+                "dig 1 ", "dig  1 2", "dig 1 2 ", "dig 1 2 3", "dig - 2", "dig 1 +2", "dig 1 x",
+                "dig 2147483648 0", "dig 0 -2147483649", "dig 99999999999999999999 0",
+                "dig\t1 2", "flagg 1 2", "deflag 1", "join", "join ", "join a b", "join Main",
+                "leave now", "look 1 2 3", "look 1 2 3 0", "look 1 2 -3 4", "look 1 2 3 4 5",
+                "look 1 2 3 2147483648", "look  1 2 3 4" }) {
+            assertEquals("expected invalid: '" + invalid + "'",
+                    Request.Type.INVALID, Request.parse(invalid).type());
+        }
+    }
+    
+    @Test(timeout = 20000)
+    public void rateLimitTest() throws IOException {
+        String[][] engines = { {}, { "--nio" } };
+        for (int k = 0; k < engines.length; k++) {
+            List<String> reject = new ArrayList<>(Arrays.asList(engines[k]));
+            reject.addAll(Arrays.asList("--limit", "look=1/2", "--throttle", "reject"));
+            Thread thread = startMinesweeperServer("board_file_5", PORT + 18 + k, reject.toArray(new String[0]));
+            Socket socket = connectToMinesweeperServer(thread, PORT + 18 + k);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+            out.print("look\nlook\nlook\nlook\nhelp\n");
+            out.flush();
+            for (int i = 0; i < 2 * 7; i++) {
+                assertEquals("burst of two looks", "- - - - - - -", in.readLine());
+            }
+            assertEquals("Too many requests. Request rejected.", in.readLine());
+            assertEquals("Too many requests. Request rejected.", in.readLine());
+            assertTrue("other commands unlimited", in.readLine().startsWith("Enter command:"));
+            out.println("stats");
+            String stat;
+            while ( ! (stat = in.readLine()).startsWith("limits.rejected ")) {
+            }
+            assertEquals("limits.rejected 2", stat);
+            socket.close();
+            
+            List<String> delay = new ArrayList<>(Arrays.asList(engines[k]));
+            delay.addAll(Arrays.asList("--limit", "look=20/1", "--output-limit", "1000/100"));
+            thread = startMinesweeperServer("board_file_5", PORT + 20 + k, delay.toArray(new String[0]));
+            socket = connectToMinesweeperServer(thread, PORT + 20 + k);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+            long start = System.nanoTime();
+            out.print("look\nlook\nlook\nlook\nlook\nbye\n");
+            out.flush();
+            for (int i = 0; i < 5 * 7; i++) {
+                assertEquals("every look delayed, none rejected", "- - - - - - -", in.readLine());
+            }
+            assertEquals("server closes the connection after bye", null, in.readLine());
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            assertTrue("4 looks of 98 characters over 1000 a second: " + elapsedMillis, elapsedMillis >= 300);
+            socket.close();
+        }
+    }
+    
+    @Test
+    public void tokenBucketLimits() {
+        TokenBucket bucket = new TokenBucket(new RateLimit(10, 2), 0);
+        assertEquals("full", 0, bucket.delayNanos(0));
+        bucket.spend(1, 0);
+        assertEquals(0, bucket.delayNanos(0));
+        bucket.spend(1, 0);
+        assertEquals("one token in a tenth of a second", 100000000, bucket.delayNanos(0));
+        assertEquals(50000000, bucket.delayNanos(50000000));
+        assertEquals(0, bucket.delayNanos(100000000));
+        assertEquals("never more than the burst", 0, bucket.delayNanos(10000000000L));
+        bucket.spend(5, 10000000000L);
+        assertEquals("in debt", 400000000, bucket.delayNanos(10000000000L));
+        
+        assertEquals(new RateLimit(10, 10), RateLimit.parse("10"));
+        assertEquals(new RateLimit(0.5, 1), RateLimit.parse("0.5"));
+        assertEquals(new RateLimit(100, 5), RateLimit.parse("100/5"));
+        for (String invalid : new String[] { "", "0", "-1", "1/0.5", "x", "1/", "Infinity", "NaN/2" }) {
+            try {
+                RateLimit.parse(invalid);
+                fail("expected IllegalArgumentException for \"" + invalid + "\"");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+        assertTrue(ServerOptions.isLimitableCommand("look"));
+        assertTrue(ServerOptions.isLimitableCommand("invalid"));
+        assertFalse(ServerOptions.isLimitableCommand("bye"));
+        assertFalse(ServerOptions.isLimitableCommand("LOOK"));
+    }
+    
+    @Test(timeout = 10000)
+    public void lookRegionTest() throws IOException {
+        Thread thread = startMinesweeperServer("board_file_5", PORT + 24);
+        Socket socket = connectToMinesweeperServer(thread, PORT + 24);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+        out.println("delta");
+        assertEquals("DELTA 0", in.readLine());
+        out.println("flag 6 0");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("6 0 F", in.readLine());
+        out.println("dig 3 1");
+        assertEquals("DELTA 1", in.readLine());
+        assertEquals("3 1 1", in.readLine());
+        
+        out.println("look 2 0 3 2");
+        assertEquals("VIEW 2 0 3 2", in.readLine());
+        assertEquals("- - -", in.readLine());
+        assertEquals("- 1 -", in.readLine());
+        out.println("look 5 -1 4 3");
+        assertEquals("clipped to the board", "VIEW 5 0 2 2", in.readLine());
+        assertEquals("- F", in.readLine());
+        assertEquals("- -", in.readLine());
+        out.println("look 7 0 1 1");
+        assertEquals("VIEW 7 0 0 0", in.readLine());
+        out.println("look -2147483648 -2147483648 2147483647 2147483647");
+        assertEquals("VIEW -2147483648 -2147483648 0 0", in.readLine());
+        out.println("look 0 0 0 1");
+        assertTrue("empty region", in.readLine().startsWith("Enter command:"));
+        out.println("bye");
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void binaryProtocolTest() throws IOException {
+        String untouched = String.join("\n", Collections.nCopies(7, "- - - - - - -"));
+        String[][] engines = { {}, { "--nio" } };
+        for (int k = 0; k < engines.length; k++) {
+            Thread thread = startMinesweeperServer("board_file_5", PORT + 22 + k, engines[k]);
+            Socket socket = connectToMinesweeperServer(thread, PORT + 22 + k);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome to Minesweeper."));
+            out.println("binary deflate");
+            assertEquals("BINARY DEFLATE", in.readLine());
+            
+            InputStream frameIn = socket.getInputStream();
+            OutputStream frameOut = socket.getOutputStream();
+            frameOut.write(Frames.request(Frames.LOOK));
+            byte[] look = Frames.readReply(frameIn);
+            assertEquals(Frames.BOARD_REPLY, look[0]);
+            assertEquals("uniform cells deflated", Frames.DEFLATED, look[1]);
+            assertEquals(untouched, Frames.decodeReply(look));
+            assertTrue("a third of the text board: " + look.length, 4 + look.length < untouched.length() / 3);
+            
+            frameOut.write(Frames.request(Frames.FLAG, 6, 0));
+            frameOut.write(Frames.request(Frames.DIG, 3, 1));
+            frameOut.write(Frames.text(Frames.TEXT, "help"));
+            frameOut.write(new byte[] { 0, 0, 0, 1, 0x7F });
+            String flagged = Frames.decodeReply(Frames.readReply(frameIn));
+            assertTrue(flagged, flagged.startsWith("- - - - - - F\n- - - - - - -\n"));
+            String dug = Frames.decodeReply(Frames.readReply(frameIn));
+            assertTrue(dug, dug.startsWith("- - - - - - F\n- - - 1 - - -\n"));
+            byte[] help = Frames.readReply(frameIn);
+            assertEquals(Frames.TEXT_REPLY, help[0]);
+            assertTrue(Frames.decodeReply(help).startsWith("Enter command:"));
+            assertTrue("invalid frame", Frames.decodeReply(Frames.readReply(frameIn)).startsWith("Enter command:"));
+            
+            frameOut.write(Frames.text(Frames.TEXT, "bye"));
+            assertEquals("server closes the connection after bye", -1, frameIn.read());
+            socket.close();
+        }
+    }
+    
+    @Test
+    public void framesEncodeAndParse() throws IOException {
+        String odd = "1 F -\n  2 -\n- - 8";
+        byte[] frame = Frames.board(odd, 3, false);
+        assertEquals("9 squares in 5 bytes", 4 + 1 + 9 + 5, frame.length);
+        assertEquals(odd, Frames.decodeReply(Arrays.copyOfRange(frame, 4, frame.length)));
+        byte[] short_ = Frames.board("- F", 2, true);
+        assertEquals("too short to deflate", 0, short_[5]);
+        assertEquals("- F", Frames.decodeReply(Arrays.copyOfRange(short_, 4, short_.length)));
+        String large = String.join("\n", Collections.nCopies(100, String.join(" ", Collections.nCopies(100, "-"))));
+        byte[] deflated = Frames.board(large, 100, true);
+        assertEquals(Frames.DEFLATED, deflated[5]);
+        assertTrue(deflated.length < 100);
+        assertEquals(large, Frames.decodeReply(Arrays.copyOfRange(deflated, 4, deflated.length)));
+        
+        byte[] dig = Frames.request(Frames.DIG, 3, -1);
+        Request request = Frames.parse(Arrays.copyOfRange(dig, 4, dig.length));
+        assertEquals(Request.Type.DIG, request.type());
+        assertEquals(3, request.x());
+        assertEquals(-1, request.y());
+        assertEquals(Request.Type.LOOK, Frames.parse(new byte[] { Frames.LOOK }).type());
+        byte[] join = Frames.text(Frames.TEXT, "join r");
+        assertEquals(Request.Type.JOIN, Frames.parse(Arrays.copyOfRange(join, 4, join.length)).type());
+        for (byte[] invalid : new byte[][] { {}, { Frames.LOOK, 0 }, { Frames.DIG, 1, 2 }, { 0x7F },
+                { Frames.BOARD_REPLY } }) {
+            assertEquals("expected invalid: " + Arrays.toString(invalid),
+                    Request.Type.INVALID, Frames.parse(invalid).type());
+        }
+        assertEquals(Request.Type.BINARY, Request.parse("binary").type());
+        assertTrue(Request.parse("binary deflate").deflate());
+        assertEquals(Request.Type.INVALID, Request.parse("binary gzip").type());
+    }
 }